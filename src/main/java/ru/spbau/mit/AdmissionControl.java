@@ -0,0 +1,108 @@
+package ru.spbau.mit;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.spbau.mit.TorrentTrackerConfig.RequestClass;
+
+/**
+ * Created by ldvsoft on 03.06.16.
+ *
+ * Bounds the work the tracker takes: every request class has its own limit of requests handled at once and
+ * its own bounded queue of waiting ones. Classes do not share permits, so a burst of LIST requests can only
+ * occupy the few bulk permits, while announces and lookups keep their own.
+ */
+final class AdmissionControl {
+    private final Map<RequestClass, Limit> limits = new EnumMap<>(RequestClass.class);
+    private final long timeout;
+
+    private static final class Limit {
+        private final Semaphore permits;
+        private final int concurrency;
+        private final int queueLimit;
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        private Limit(int concurrency, int queueLimit) {
+            this.permits = new Semaphore(concurrency, true);
+            this.concurrency = concurrency;
+            this.queueLimit = queueLimit;
+        }
+    }
+
+    /*package*/ AdmissionControl(TorrentTrackerConfig config) {
+        for (RequestClass requestClass : RequestClass.values()) {
+            limits.put(requestClass, new Limit(
+                    config.getConcurrencyLimit(requestClass),
+                    config.getQueueLimit(requestClass)
+            ));
+        }
+        timeout = config.getAdmissionTimeout();
+    }
+
+    /**
+     * @param mayWait whether the caller may block for a while in the queue
+     * @return whether the request is admitted; if so, leave() should be called once it is handled
+     */
+    /*package*/ boolean enter(RequestClass requestClass, boolean mayWait) {
+        Limit limit = limits.get(requestClass);
+        if (limit.permits.tryAcquire()) {
+            return true;
+        }
+        if (!mayWait || limit.waiting.incrementAndGet() > limit.queueLimit) {
+            if (mayWait) {
+                limit.waiting.decrementAndGet();
+            }
+            return false;
+        }
+        try {
+            return limit.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            limit.waiting.decrementAndGet();
+        }
+    }
+
+    /*package*/ void leave(RequestClass requestClass) {
+        limits.get(requestClass).permits.release();
+    }
+
+    /**
+     * @return number of requests of the class being handled now
+     */
+    /*package*/ int getActive(RequestClass requestClass) {
+        Limit limit = limits.get(requestClass);
+        return limit.concurrency - limit.permits.availablePermits();
+    }
+
+    /**
+     * @return number of requests of the class queued for a permit now
+     */
+    /*package*/ int getWaiting(RequestClass requestClass) {
+        return limits.get(requestClass).waiting.get();
+    }
+
+    /*package*/ static RequestClass getRequestClass(int request) {
+        switch (request) {
+            case TorrentTrackerConnection.REQUEST_UPDATE:
+            case TorrentTrackerConnection.REQUEST_UPDATE_PARTS:
+            case TorrentTrackerConnection.REQUEST_ANNOUNCE_DELTA:
+            case TorrentTrackerConnection.REQUEST_KEEPALIVE:
+                return RequestClass.ANNOUNCE;
+            case TorrentTrackerConnection.REQUEST_SOURCES:
+            case TorrentTrackerConnection.REQUEST_SOURCES_PARTS:
+            case TorrentTrackerConnection.REQUEST_ENTRY:
+            case TorrentTrackerConnection.REQUEST_SCRAPE:
+                return RequestClass.LOOKUP;
+            case TorrentTrackerConnection.REQUEST_UPLOAD:
+            case TorrentTrackerConnection.REQUEST_BULK_UPLOAD:
+                return RequestClass.UPLOAD;
+            default:
+                return RequestClass.BULK;
+        }
+    }
+}
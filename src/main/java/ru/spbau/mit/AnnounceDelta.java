@@ -0,0 +1,91 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Created by ldvsoft on 01.06.16.
+ *
+ * Changes of a seeder since the announce acknowledged by the tracker with version base: files added or whose
+ * parts have changed, with their part bitmaps, and files no longer seeded. With base equal to FULL changed
+ * files are the whole list, replacing everything the tracker knew.
+ * Files whose download has completed since the last acknowledged announce are flagged, for SCRAPE counters.
+ *
+ * Format: {@code <base: Int> <changed: see ClientInfo.writePartsTo> <removed: Collection<Int>>
+ * <completed: Collection<Int>>}.
+ */
+public class AnnounceDelta {
+    public static final int FULL = -1;
+
+    private final int base;
+    private final ClientInfo changed;
+    private final List<Integer> removed;
+    private final List<Integer> completed;
+
+    public AnnounceDelta(int base, ClientInfo changed, List<Integer> removed) {
+        this(base, changed, removed, Collections.emptyList());
+    }
+
+    public AnnounceDelta(int base, ClientInfo changed, List<Integer> removed, List<Integer> completed) {
+        if (!changed.hasParts()) {
+            throw new IllegalArgumentException("Changed files should come with parts.");
+        }
+        if (base == FULL && !removed.isEmpty()) {
+            throw new IllegalArgumentException("Full announce cannot remove files.");
+        }
+        this.base = base;
+        this.changed = changed;
+        this.removed = removed;
+        this.completed = completed;
+    }
+
+    public static AnnounceDelta full(ClientInfo files) {
+        return full(files, Collections.emptyList());
+    }
+
+    public static AnnounceDelta full(ClientInfo files, List<Integer> completed) {
+        return new AnnounceDelta(FULL, files, Collections.emptyList(), completed);
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public boolean isFull() {
+        return base == FULL;
+    }
+
+    public ClientInfo getChanged() {
+        return changed;
+    }
+
+    public List<Integer> getRemoved() {
+        return removed;
+    }
+
+    public List<Integer> getCompleted() {
+        return completed;
+    }
+
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(base);
+        changed.writePartsTo(dos);
+        IOUtils.writeCollection(removed, DataOutputStream::writeInt, dos);
+        IOUtils.writeCollection(completed, DataOutputStream::writeInt, dos);
+    }
+
+    public static AnnounceDelta readFrom(DataInputStream dis) throws IOException {
+        int base = dis.readInt();
+        ClientInfo changed = ClientInfo.readPartsFrom(dis);
+        List<Integer> removed = IOUtils.readCollection(new ArrayList<>(), DataInputStream::readInt, dis);
+        List<Integer> completed = IOUtils.readCollection(new ArrayList<>(), DataInputStream::readInt, dis);
+        if (base == FULL && !removed.isEmpty()) {
+            throw new IOException("Full announce cannot remove files.");
+        }
+        return new AnnounceDelta(base, changed, removed, completed);
+    }
+}
@@ -0,0 +1,45 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Created by ldvsoft on 07.06.16.
+ *
+ * Answer to ANNOUNCE_DELTA and KEEPALIVE: version of the lease, ANNOUNCE_REJECTED if the tracker has not
+ * accepted the announce, and how soon the tracker wants the next one, in milliseconds.
+ */
+public class AnnounceResponse {
+    private final int version;
+    private final int interval;
+
+    public AnnounceResponse(int version, int interval) {
+        this.version = version;
+        this.interval = interval;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isRejected() {
+        return version == TorrentTrackerConnection.ANNOUNCE_REJECTED;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(version);
+        dos.writeInt(interval);
+    }
+
+    public static AnnounceResponse readFrom(DataInputStream dis) throws IOException {
+        return new AnnounceResponse(
+                dis.readInt(),
+                dis.readInt()
+        );
+    }
+}
@@ -0,0 +1,183 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by ldvsoft on 12.06.16.
+ *
+ * Cold part of the catalog: entries nobody has seeded for long. They are kept out of memory in a segment of
+ * the catalog snapshot, sorted by id, and read from there when asked for by id. Entries archived or revived
+ * since the segment was written are tracked in memory until the next snapshot replaces it.
+ *
+ * Segment: {@code <count: Int> (<id: Int> <offset: Int>)* <entries, with ids>}, offsets are from the end
+ * of the table.
+ *
+ * Not thread-safe, guarded by the tracker lock.
+ */
+final class CatalogArchive {
+    private Segment segment = Segment.EMPTY;
+    private final Map<Integer, FileEntry> recent = new HashMap<>();
+    /**
+     * Ids of segment entries that are hot again.
+     */
+    private final Set<Integer> revived = new HashSet<>();
+
+    /*package*/ static final class Segment {
+        /*package*/ static final Segment EMPTY = new Segment(new int[0], new int[0], ByteBuffer.allocate(0));
+
+        private final int[] ids;
+        private final int[] offsets;
+        private final ByteBuffer entries;
+
+        private Segment(int[] ids, int[] offsets, ByteBuffer entries) {
+            this.ids = ids;
+            this.offsets = offsets;
+            this.entries = entries;
+        }
+
+        /**
+         * Reads the table, entries are left in the buffer which should not be changed afterwards.
+         */
+        /*package*/ static Segment readFrom(ByteBuffer buffer) {
+            int count = buffer.getInt();
+            int[] ids = new int[count];
+            int[] offsets = new int[count];
+            for (int i = 0; i != count; i++) {
+                ids[i] = buffer.getInt();
+                offsets[i] = buffer.getInt();
+            }
+            return new Segment(ids, offsets, buffer.slice());
+        }
+
+        private boolean contains(int id) {
+            return Arrays.binarySearch(ids, id) >= 0;
+        }
+
+        private int getLength(int id) {
+            int position = Arrays.binarySearch(ids, id);
+            int end = position + 1 < ids.length ? offsets[position + 1] : entries.limit();
+            return end - offsets[position];
+        }
+
+        private void writeEntry(int id, DataOutputStream dos) throws IOException {
+            ByteBuffer buffer = entries.duplicate();
+            buffer.position(offsets[Arrays.binarySearch(ids, id)]);
+            byte[] bytes = new byte[getLength(id)];
+            buffer.get(bytes);
+            dos.write(bytes);
+        }
+
+        private FileEntry get(int id) throws IOException {
+            int position = Arrays.binarySearch(ids, id);
+            if (position < 0) {
+                return null;
+            }
+            ByteBuffer buffer = entries.duplicate();
+            buffer.position(offsets[position]);
+            return FileEntry.readFrom(new DataInputStream(IOUtils.asInputStream(buffer)), true);
+        }
+    }
+
+    /*package*/ CatalogArchive() {
+    }
+
+    private CatalogArchive(CatalogArchive other) {
+        segment = other.segment;
+        recent.putAll(other.recent);
+        revived.addAll(other.revived);
+    }
+
+    /**
+     * @return copy that can be written without the lock while this one goes on changing
+     */
+    /*package*/ CatalogArchive copy() {
+        return new CatalogArchive(this);
+    }
+
+    /**
+     * Switches to a segment just written from a copy of this archive, forgetting changes it already has.
+     */
+    /*package*/ void setSegment(Segment newSegment) {
+        segment = newSegment;
+        recent.keySet().removeIf(newSegment::contains);
+        revived.removeIf(id -> !newSegment.contains(id));
+    }
+
+    /*package*/ boolean contains(int id) {
+        return recent.containsKey(id) || !revived.contains(id) && segment.contains(id);
+    }
+
+    /**
+     * @return archived entry, or null if there is no such
+     */
+    /*package*/ FileEntry get(int id) throws IOException {
+        FileEntry entry = recent.get(id);
+        if (entry != null || revived.contains(id)) {
+            return entry;
+        }
+        return segment.get(id);
+    }
+
+    /*package*/ void add(FileEntry entry) {
+        revived.remove(entry.getId());
+        recent.put(entry.getId(), entry);
+    }
+
+    /**
+     * @return entry taken out of the archive, or null if there is no such
+     */
+    /*package*/ FileEntry remove(int id) throws IOException {
+        FileEntry entry = get(id);
+        if (entry != null) {
+            recent.remove(id);
+            revived.add(id);
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the segment of all entries archived, segment entries are copied as they are.
+     */
+    /*package*/ void writeTo(DataOutputStream dos) throws IOException {
+        List<Integer> ids = new ArrayList<>(recent.keySet());
+        for (int id : segment.ids) {
+            if (!revived.contains(id) && !recent.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        ids.sort(null);
+        Map<Integer, byte[]> encodedRecent = new HashMap<>();
+        for (Map.Entry<Integer, FileEntry> entry : recent.entrySet()) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            entry.getValue().writeTo(new DataOutputStream(stream));
+            encodedRecent.put(entry.getKey(), stream.toByteArray());
+        }
+        dos.writeInt(ids.size());
+        int offset = 0;
+        for (int id : ids) {
+            dos.writeInt(id);
+            dos.writeInt(offset);
+            byte[] encoded = encodedRecent.get(id);
+            offset += encoded != null ? encoded.length : segment.getLength(id);
+        }
+        for (int id : ids) {
+            byte[] encoded = encodedRecent.get(id);
+            if (encoded != null) {
+                dos.write(encoded);
+            } else {
+                segment.writeEntry(id, dos);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.spbau.mit;
+
+import java.util.List;
+
+/**
+ * Created by ldvsoft on 17.06.16.
+ *
+ * Catalog part of the answer to REPLICATE: entries uploaded or revived and ids moved to the archive since the
+ * requested catalog version, each with its version. If the primary cannot tell the moves since then, it sends
+ * every hot entry instead, and the replica should archive the rest.
+ */
+public class CatalogChanges {
+    private final int version;
+    private final int filesCount;
+    private final boolean isFull;
+    private final List<FileEntry> entries;
+    private final List<Integer> versions;
+    private final List<Integer> archivedIds;
+    private final List<Integer> archivedVersions;
+
+    public CatalogChanges(
+            int version,
+            int filesCount,
+            boolean isFull,
+            List<FileEntry> entries,
+            List<Integer> versions,
+            List<Integer> archivedIds,
+            List<Integer> archivedVersions
+    ) {
+        this.version = version;
+        this.filesCount = filesCount;
+        this.isFull = isFull;
+        this.entries = entries;
+        this.versions = versions;
+        this.archivedIds = archivedIds;
+        this.archivedVersions = archivedVersions;
+    }
+
+    /**
+     * @return catalog version the next change will get
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of local indexes given out by the primary, archived ones included
+     */
+    public int getFilesCount() {
+        return filesCount;
+    }
+
+    /**
+     * @return whether these are all the hot entries rather than changes
+     */
+    public boolean isFull() {
+        return isFull;
+    }
+
+    /**
+     * @return entries by ascending version
+     */
+    public List<FileEntry> getEntries() {
+        return entries;
+    }
+
+    public List<Integer> getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return ids moved to the archive by ascending version, empty if isFull()
+     */
+    public List<Integer> getArchivedIds() {
+        return archivedIds;
+    }
+
+    public List<Integer> getArchivedVersions() {
+        return archivedVersions;
+    }
+}
@@ -0,0 +1,30 @@
+package ru.spbau.mit;
+
+import java.util.List;
+
+/**
+ * Created by ldvsoft on 22.05.16.
+ *
+ * Answer to LIST_SINCE: entries uploaded or revived since the requested catalog version, and the catalog version
+ * they are taken from.
+ */
+public class CatalogDelta {
+    private final int version;
+    private final List<FileEntry> entries;
+
+    public CatalogDelta(int version, List<FileEntry> entries) {
+        this.version = version;
+        this.entries = entries;
+    }
+
+    /**
+     * @return catalog version the next change will get, to be passed to the next LIST_SINCE
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public List<FileEntry> getEntries() {
+        return entries;
+    }
+}
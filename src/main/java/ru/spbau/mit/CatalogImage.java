@@ -0,0 +1,317 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by ldvsoft on 20.05.16.
+ *
+ * Pre-encoded LIST response. Every change of the catalog gets the next catalog version: upload, move to the
+ * archive and move back. Entries are encoded once and kept in the order of their versions, so a revived entry
+ * goes to the tail again and LIST_SINCE finds everything changed after a version by binary search. Archived
+ * entries are cut out, their moves are kept in a short log for replicas.
+ *
+ * Bytes are never changed after being published, so every Version is immutable and can be written to a socket
+ * without holding any lock. Changing is not thread-safe, owner should serialize it; changes are seen after
+ * publish() only, and may be published up to some version, so that uploads are not seen before they are durable
+ * while later changes already have their places.
+ */
+final class CatalogImage {
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int INITIAL_ENTRIES = 64;
+    private static final int INITIAL_MOVES = 64;
+    /**
+     * Archive moves kept at most, older half is dropped when there are more.
+     */
+    private static final int MAX_MOVES = 4096;
+
+    private byte[] data;
+    private int[] offsets;
+    private int[] indexes;
+    private int[] versions;
+    private int count;
+    private int end;
+    private int nextVersion;
+    private int[] movedIndexes;
+    private int[] movedVersions;
+    private int movesCount;
+    private int movesSince;
+    private volatile Version current;
+
+    /*package*/ static final class Version {
+        private final byte[] data;
+        private final int[] offsets;
+        private final int[] indexes;
+        private final int[] versions;
+        private final int count;
+        private final int end;
+        private final int nextVersion;
+        private final int[] movedIndexes;
+        private final int[] movedVersions;
+        private final int movesCount;
+        private final int movesSince;
+
+        /**
+         * @param limit changes with this version and later ones are left out
+         */
+        private Version(CatalogImage image, int limit) {
+            data = image.data;
+            offsets = image.offsets;
+            indexes = image.indexes;
+            versions = image.versions;
+            movedIndexes = image.movedIndexes;
+            movedVersions = image.movedVersions;
+            movesSince = image.movesSince;
+            end = image.end;
+            nextVersion = Math.min(limit, image.nextVersion);
+            count = lowerBound(versions, image.count, nextVersion);
+            movesCount = lowerBound(movedVersions, image.movesCount, nextVersion);
+        }
+
+        /*package*/ int getCount() {
+            return count;
+        }
+
+        /**
+         * @return number of local indexes given out, archived ones included
+         */
+        /*package*/ int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return version the next change will get
+         */
+        /*package*/ int getNextVersion() {
+            return nextVersion;
+        }
+
+        /**
+         * @return position of the first entry with version not less than given one
+         */
+        /*package*/ int getPosition(int version) {
+            return lowerBound(versions, count, version);
+        }
+
+        /*package*/ int getIndex(int position) {
+            return indexes[position];
+        }
+
+        /*package*/ int getVersion(int position) {
+            return versions[position];
+        }
+
+        /*package*/ byte[] getData() {
+            return data;
+        }
+
+        /*package*/ int getLength() {
+            return offsets[count];
+        }
+
+        /**
+         * @return offset of the entry at given position in data, or getLength() for position equal to count
+         */
+        /*package*/ int getOffset(int position) {
+            return offsets[position];
+        }
+
+        /**
+         * @return whether every archive move after given version is still in the log
+         */
+        /*package*/ boolean hasMovesSince(int version) {
+            return version == nextVersion || version >= movesSince && version < nextVersion;
+        }
+
+        /**
+         * @return position of the first archive move with version not less than given one
+         */
+        /*package*/ int getMovePosition(int version) {
+            return lowerBound(movedVersions, movesCount, version);
+        }
+
+        /*package*/ int getMovesCount() {
+            return movesCount;
+        }
+
+        /*package*/ int getMovedIndex(int position) {
+            return movedIndexes[position];
+        }
+
+        /*package*/ int getMovedVersion(int position) {
+            return movedVersions[position];
+        }
+    }
+
+    /**
+     * @param files catalog by local index, null for archived entries
+     * @param fileVersions versions of the entries by local index
+     * @param nextVersion version the next change will get
+     */
+    /*package*/ CatalogImage(List<FileEntry> files, List<Integer> fileVersions, int nextVersion)
+            throws IOException {
+        reset(files, fileVersions, nextVersion);
+    }
+
+    /**
+     * Builds the image anew and forgets archive moves, versions published before are left as they are.
+     * @param files catalog by local index, null for archived entries
+     * @param fileVersions versions of the entries by local index
+     * @param nextVersion version the next change will get
+     */
+    /*package*/ void reset(List<FileEntry> files, List<Integer> fileVersions, int nextVersion) throws IOException {
+        data = new byte[INITIAL_CAPACITY];
+        offsets = new int[INITIAL_ENTRIES + 1];
+        indexes = new int[INITIAL_ENTRIES];
+        versions = new int[INITIAL_ENTRIES];
+        count = 0;
+        Integer[] byVersion = new Integer[files.size()];
+        int hotCount = 0;
+        for (int index = 0; index != files.size(); index++) {
+            if (files.get(index) != null) {
+                byVersion[hotCount++] = index;
+            }
+        }
+        Arrays.sort(byVersion, 0, hotCount, (a, b) -> Integer.compare(fileVersions.get(a), fileVersions.get(b)));
+        for (int i = 0; i != hotCount; i++) {
+            encode(byVersion[i], files.get(byVersion[i]), fileVersions.get(byVersion[i]));
+        }
+        end = files.size();
+        this.nextVersion = nextVersion;
+        movedIndexes = new int[INITIAL_MOVES];
+        movedVersions = new int[INITIAL_MOVES];
+        movesCount = 0;
+        movesSince = nextVersion;
+        publish();
+    }
+
+    /*package*/ Version getVersion() {
+        return current;
+    }
+
+    /**
+     * @return state with changes not published yet, to be written to a snapshot
+     */
+    /*package*/ Version getLatest() {
+        return new Version(this, nextVersion);
+    }
+
+    /*package*/ int getNextVersion() {
+        return nextVersion;
+    }
+
+    /**
+     * Puts an uploaded or revived entry to the tail.
+     * @param version not less than getNextVersion()
+     */
+    /*package*/ void append(int index, FileEntry entry, int version) throws IOException {
+        encode(index, entry, version);
+        end = Math.max(end, index + 1);
+        nextVersion = version + 1;
+    }
+
+    /**
+     * Records a move to the archive, the entry itself should be cut out with remove() afterwards.
+     * @param version not less than getNextVersion()
+     */
+    /*package*/ void archive(int index, int version) {
+        if (movesCount == MAX_MOVES) {
+            int dropped = movesCount / 2;
+            movesSince = movedVersions[dropped - 1] + 1;
+            movesCount -= dropped;
+            int[] newIndexes = new int[movedIndexes.length];
+            int[] newVersions = new int[movedVersions.length];
+            System.arraycopy(movedIndexes, dropped, newIndexes, 0, movesCount);
+            System.arraycopy(movedVersions, dropped, newVersions, 0, movesCount);
+            movedIndexes = newIndexes;
+            movedVersions = newVersions;
+        } else if (movesCount == movedIndexes.length) {
+            movedIndexes = Arrays.copyOf(movedIndexes, movesCount * 2);
+            movedVersions = Arrays.copyOf(movedVersions, movesCount * 2);
+        }
+        movedIndexes[movesCount] = index;
+        movedVersions[movesCount] = version;
+        movesCount++;
+        end = Math.max(end, index + 1);
+        nextVersion = version + 1;
+    }
+
+    /**
+     * Cuts out entries with given local indexes. Entries left are copied into new arrays as they are, without
+     * encoding them again.
+     */
+    /*package*/ void remove(Set<Integer> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        byte[] newData = new byte[data.length];
+        int[] newOffsets = new int[offsets.length];
+        int[] newIndexes = new int[indexes.length];
+        int[] newVersions = new int[versions.length];
+        int newCount = 0;
+        for (int position = 0; position != count; position++) {
+            if (removed.contains(indexes[position])) {
+                continue;
+            }
+            int length = offsets[position + 1] - offsets[position];
+            System.arraycopy(data, offsets[position], newData, newOffsets[newCount], length);
+            newOffsets[newCount + 1] = newOffsets[newCount] + length;
+            newIndexes[newCount] = indexes[position];
+            newVersions[newCount] = versions[position];
+            newCount++;
+        }
+        data = newData;
+        offsets = newOffsets;
+        indexes = newIndexes;
+        versions = newVersions;
+        count = newCount;
+    }
+
+    /**
+     * Makes the changes visible to getVersion().
+     */
+    /*package*/ void publish() {
+        publish(nextVersion);
+    }
+
+    /**
+     * Makes the changes before given version visible to getVersion().
+     */
+    /*package*/ void publish(int limit) {
+        current = new Version(this, limit);
+    }
+
+    /**
+     * @return position of the first of ascending items not less than given value
+     */
+    private static int lowerBound(int[] items, int size, int value) {
+        int position = Arrays.binarySearch(items, 0, size, value);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private void encode(int index, FileEntry entry, int version) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        entry.writeTo(new DataOutputStream(stream));
+        byte[] encoded = stream.toByteArray();
+
+        int length = offsets[count];
+        if (length + encoded.length > data.length) {
+            // Old versions keep referencing the old array, so it is never modified again
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + encoded.length));
+        }
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            indexes = Arrays.copyOf(indexes, offsets.length - 1);
+            versions = Arrays.copyOf(versions, offsets.length - 1);
+        }
+        System.arraycopy(encoded, 0, data, length, encoded.length);
+        offsets[count + 1] = length + encoded.length;
+        indexes[count] = index;
+        versions[count] = version;
+        count++;
+    }
+}
@@ -0,0 +1,558 @@
+package ru.spbau.mit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Created by ldvsoft on 18.05.16.
+ *
+ * Durable storage of the tracker catalog: compacted snapshot plus append-only journal of uploads and of
+ * entries moved to and from the archive (see CatalogArchive). Archived entries are left as nulls in the
+ * catalog list, so that ids are never reused. Every record carries its catalog version (see CatalogImage),
+ * hot entries keep the version of their last upload or revival.
+ *
+ * Journal is split into generations. Snapshot is taken by starting a new generation first, then writing every
+ * entry from the older ones into a temporary file which atomically replaces the previous snapshot; only after
+ * that older generations are deleted. Startup maps the snapshot and replays the journals left.
+ *
+ * Snapshot: {@code <magic: Int> <format: Int> <files count: Int> <next version: Int> <hot count: Int>
+ * (<version: Int> <entry>)* <archive segment>}, hot entries in the order of versions.
+ * Journal: {@code <magic: Int> <format: Int> <record>*}, record is
+ * {@code <length: Int> <crc32: Int> <type: Byte> <version: Int> (<entry> | <id: Int>)}; torn tail record
+ * is ignored on replay. Files of another format are refused, so that they are not misread. Snapshot without
+ * the header, {@code <count: Int> <entry>*}, is the one of trackers before the journal; it is rewritten in the
+ * current format on startup.
+ */
+final class CatalogStore implements AutoCloseable {
+    private static final String SNAPSHOT_FILE = "tracker-state.dat";
+    private static final String SNAPSHOT_TEMP_FILE = "tracker-state.dat.tmp";
+    private static final String JOURNAL_PREFIX = "tracker-journal-";
+    private static final String JOURNAL_SUFFIX = ".dat";
+    private static final Pattern JOURNAL_PATTERN = Pattern.compile(
+            Pattern.quote(JOURNAL_PREFIX) + "(\\d+)" + Pattern.quote(JOURNAL_SUFFIX)
+    );
+    private static final int SNAPSHOT_MAGIC = 0x54534E50;
+    private static final int JOURNAL_MAGIC = 0x544A524E;
+    /**
+     * Format of both files, to be increased on every change of either.
+     */
+    private static final int FORMAT = 2;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int RECORD_UPLOAD = 0;
+    private static final int RECORD_ARCHIVE = 1;
+    private static final int RECORD_REVIVE = 2;
+
+    private final Path workingDir;
+    private final IdSpace idSpace;
+
+    private final Object appendLock = new Object();
+    private FileChannel journal;
+    private long generation;
+    private long appended = 0;
+    private int journalLength = 0;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncDone = syncLock.newCondition();
+    private boolean isSyncing = false;
+    private long synced = 0;
+
+    /**
+     * Catalog as loaded: entries and their versions by local index.
+     */
+    /*package*/ static final class Catalog {
+        private final List<FileEntry> files = new ArrayList<>();
+        private final List<Integer> versions = new ArrayList<>();
+        private int nextVersion = 0;
+
+        private Catalog() {
+        }
+
+        /**
+         * @return catalog by local index, null for archived entries
+         */
+        /*package*/ List<FileEntry> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return versions of the entries by local index, meaningless for archived ones
+         */
+        /*package*/ List<Integer> getVersions() {
+            return versions;
+        }
+
+        /*package*/ int getNextVersion() {
+            return nextVersion;
+        }
+
+        /**
+         * Fills the catalog with nulls up to given size, for entries not known here.
+         */
+        private void pad(int size) {
+            while (files.size() < size) {
+                files.add(null);
+                versions.add(0);
+            }
+        }
+
+        private void set(int index, FileEntry entry, int version) {
+            pad(index + 1);
+            files.set(index, entry);
+            versions.set(index, version);
+        }
+    }
+
+    /*package*/ CatalogStore(Path workingDir, IdSpace idSpace) {
+        this.workingDir = workingDir;
+        this.idSpace = idSpace;
+    }
+
+    /**
+     * Reads the catalog and opens a new journal generation for appending.
+     * @param archive empty archive to load archived entries into
+     */
+    /*package*/ Catalog load(CatalogArchive archive) throws IOException {
+        Files.createDirectories(workingDir);
+        Catalog catalog = loadSnapshot(archive);
+        TreeMap<Long, Path> journals = listJournals();
+        for (Path path : journals.values()) {
+            if (Files.size(path) < FILE_HEADER_SIZE) {
+                // Created, but the header has not made it to disk, so there cannot be any records
+                Files.delete(path);
+                continue;
+            }
+            journalLength += replay(path, catalog, archive);
+        }
+        generation = journals.isEmpty() ? 0 : journals.lastKey() + 1;
+        journal = openJournal(generation);
+        return catalog;
+    }
+
+    /**
+     * Writes the entry to the journal. Caller should hold the catalog lock, so records go in version order;
+     * durability is achieved by calling sync() with the returned ticket, preferably without the lock.
+     * Replicas record revived entries this way too, as they may have never seen them before.
+     */
+    /*package*/ long append(FileEntry entry, int version) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payloadStream);
+        dos.writeByte(RECORD_UPLOAD);
+        dos.writeInt(version);
+        entry.writeTo(dos);
+        return appendRecord(payloadStream.toByteArray());
+    }
+
+    /**
+     * Records that the entry has moved to the archive, same as append().
+     */
+    /*package*/ long appendArchive(int id, int version) throws IOException {
+        return appendRecord(encodeMove(RECORD_ARCHIVE, id, version));
+    }
+
+    /**
+     * Records that the entry has moved back from the archive, same as append().
+     */
+    /*package*/ long appendRevive(int id, int version) throws IOException {
+        return appendRecord(encodeMove(RECORD_REVIVE, id, version));
+    }
+
+    private static byte[] encodeMove(int type, int id, int version) {
+        return ByteBuffer.allocate(1 + 2 * Integer.BYTES).put((byte) type).putInt(version).putInt(id).array();
+    }
+
+    private long appendRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        synchronized (appendLock) {
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            journalLength++;
+            return ++appended;
+        }
+    }
+
+    /**
+     * Group commit: waits until the record with given ticket is on disk. Only one thread calls fsync at once,
+     * and it covers every record appended before it started.
+     */
+    /*package*/ void sync(long ticket) throws IOException {
+        try (LockHandler handler = LockHandler.lock(syncLock)) {
+            while (synced < ticket) {
+                if (isSyncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                isSyncing = true;
+                long target;
+                FileChannel channel;
+                synchronized (appendLock) {
+                    target = appended;
+                    channel = journal;
+                }
+                syncLock.unlock();
+                try {
+                    channel.force(false);
+                } finally {
+                    syncLock.lock();
+                    isSyncing = false;
+                    syncDone.signalAll();
+                }
+                synced = Math.max(synced, target);
+            }
+        }
+    }
+
+    /**
+     * @return ticket of the last record known to be on disk
+     */
+    /*package*/ long getSynced() {
+        try (LockHandler handler = LockHandler.lock(syncLock)) {
+            return synced;
+        }
+    }
+
+    /**
+     * @return number of journal records not yet compacted into the snapshot
+     */
+    /*package*/ int getJournalLength() {
+        synchronized (appendLock) {
+            return journalLength;
+        }
+    }
+
+    /**
+     * Starts a new journal generation. Caller should hold the catalog lock and copy the catalog at the same
+     * moment, this copy is to be passed to writeSnapshot() afterwards.
+     * @return generation started, which should be passed to writeSnapshot()
+     */
+    /*package*/ long rotate() throws IOException {
+        try (LockHandler handler = LockHandler.lock(syncLock)) {
+            while (isSyncing) {
+                syncDone.awaitUninterruptibly();
+            }
+            synchronized (appendLock) {
+                journal.force(false);
+                journal.close();
+                synced = appended;
+                generation++;
+                journalLength = 0;
+                journal = openJournal(generation);
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot, then removes journal generations older than given one.
+     * @param image hot entries, with all the changes made before rotate(); they are copied as encoded
+     * @param archive archive copy, written as the new archive segment
+     * @return new archive segment, see CatalogArchive.setSegment
+     */
+    /*package*/ CatalogArchive.Segment writeSnapshot(
+            CatalogImage.Version image,
+            CatalogArchive archive,
+            long sinceGeneration
+    ) throws IOException {
+        Path temp = workingDir.resolve(SNAPSHOT_TEMP_FILE);
+        long segmentOffset;
+        try (FileChannel channel = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)
+            ));
+            dos.writeInt(SNAPSHOT_MAGIC);
+            dos.writeInt(FORMAT);
+            dos.writeInt(image.getEnd());
+            dos.writeInt(image.getNextVersion());
+            dos.writeInt(image.getCount());
+            for (int position = 0; position != image.getCount(); position++) {
+                dos.writeInt(image.getVersion(position));
+                int offset = image.getOffset(position);
+                dos.write(image.getData(), offset, image.getOffset(position + 1) - offset);
+            }
+            segmentOffset = dos.size();
+            archive.writeTo(dos);
+            dos.flush();
+            channel.force(true);
+        }
+        Path path = workingDir.resolve(SNAPSHOT_FILE);
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (Map.Entry<Long, Path> journalEntry : listJournals().entrySet()) {
+            if (journalEntry.getKey() < sinceGeneration) {
+                Files.deleteIfExists(journalEntry.getValue());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return CatalogArchive.Segment.readFrom(channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    segmentOffset,
+                    channel.size() - segmentOffset
+            ));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (journal != null && journal.isOpen()) {
+                journal.force(false);
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Archive segment stays mapped, archived entries are read from it when needed.
+     */
+    private Catalog loadSnapshot(CatalogArchive archive) throws IOException {
+        Catalog catalog = new Catalog();
+        Path path = workingDir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            return catalog;
+        }
+        if (!hasHeader(path)) {
+            migrateSnapshot(path);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream dis = new DataInputStream(IOUtils.asInputStream(buffer));
+            checkHeader(path, SNAPSHOT_MAGIC, dis.readInt(), dis.readInt());
+            int filesCount = dis.readInt();
+            catalog.nextVersion = dis.readInt();
+            int hotCount = dis.readInt();
+            catalog.pad(filesCount);
+            for (int i = 0; i != hotCount; i++) {
+                int version = dis.readInt();
+                FileEntry entry = FileEntry.readFrom(dis, true);
+                catalog.set(idSpace.toIndex(entry.getId()), entry, version);
+            }
+            archive.setSegment(CatalogArchive.Segment.readFrom(buffer));
+            return catalog;
+        }
+    }
+
+    private static boolean hasHeader(Path path) throws IOException {
+        try (DataInputStream dis = new DataInputStream(Files.newInputStream(path))) {
+            return dis.readInt() == SNAPSHOT_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites a snapshot without the header in the current format, entries get versions in the order of ids.
+     */
+    private void migrateSnapshot(Path path) throws IOException {
+        List<FileEntry> entries;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            entries = IOUtils.readCollection(new ArrayList<>(), input -> FileEntry.readFrom(input, true), dis);
+            if (dis.read() != -1) {
+                throw new IOException("Snapshot has bytes after the entries.");
+            }
+        } catch (IOException e) {
+            throw new IOException(String.format("%s is not a tracker catalog file.", path), e);
+        }
+        int filesCount = 0;
+        for (FileEntry entry : entries) {
+            int index = idSpace.toIndex(entry.getId());
+            if (index == -1) {
+                throw new IOException(String.format(
+                        "Snapshot %s is inconsistent: got id %d of another shard.", path, entry.getId()
+                ));
+            }
+            filesCount = Math.max(filesCount, index + 1);
+        }
+        Path temp = workingDir.resolve(SNAPSHOT_TEMP_FILE);
+        try (FileChannel channel = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)
+            ));
+            dos.writeInt(SNAPSHOT_MAGIC);
+            dos.writeInt(FORMAT);
+            dos.writeInt(filesCount);
+            dos.writeInt(entries.size());
+            dos.writeInt(entries.size());
+            for (int version = 0; version != entries.size(); version++) {
+                dos.writeInt(version);
+                entries.get(version).writeTo(dos);
+            }
+            new CatalogArchive().writeTo(dos);
+            dos.flush();
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * @return number of records read
+     */
+    private int replay(Path path, Catalog catalog, CatalogArchive archive) throws IOException {
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            checkHeader(path, JOURNAL_MAGIC, buffer.getInt(), buffer.getInt());
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                count++;
+                apply(path, ByteBuffer.wrap(payload), catalog, archive);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replays a record over the snapshot. Journals older than the snapshot may be replayed again after a crash,
+     * so records with versions already applied are skipped.
+     */
+    private void apply(Path path, ByteBuffer payload, Catalog catalog, CatalogArchive archive)
+            throws IOException {
+        int type = payload.get();
+        int version = payload.getInt();
+        if (version < catalog.nextVersion) {
+            return;
+        }
+        catalog.nextVersion = version + 1;
+        List<FileEntry> files = catalog.files;
+        if (type == RECORD_UPLOAD) {
+            FileEntry entry = FileEntry.readFrom(new DataInputStream(IOUtils.asInputStream(payload)), true);
+            int index = idSpace.toIndex(entry.getId());
+            if (index == -1) {
+                throw new IOException(String.format(
+                        "Journal %s is inconsistent: got id %d of another shard.", path, entry.getId()
+                ));
+            }
+            if (index < files.size() && files.get(index) == null) {
+                // Revived on a replica, which may have never seen the entry before
+                archive.remove(entry.getId());
+            }
+            // Replica skips entries archived by the primary, leaving nulls in their places
+            catalog.set(index, entry, version);
+            return;
+        }
+        int id = payload.getInt();
+        int index = idSpace.toIndex(id);
+        if (type == RECORD_ARCHIVE && index != -1) {
+            catalog.pad(index + 1);
+            if (files.get(index) != null) {
+                archive.add(files.get(index));
+                files.set(index, null);
+            }
+            return;
+        }
+        if (type != RECORD_REVIVE || index == -1 || index >= files.size()) {
+            throw new IOException(String.format("Journal %s is inconsistent: got unknown id %d.", path, id));
+        }
+        if (files.get(index) == null) {
+            FileEntry entry = archive.remove(id);
+            if (entry == null) {
+                throw new IOException(String.format("Journal %s is inconsistent: %d is not archived.", path, id));
+            }
+            catalog.set(index, entry, version);
+        }
+    }
+
+    private static void checkHeader(Path path, int expectedMagic, int magic, int format) throws IOException {
+        if (magic != expectedMagic) {
+            throw new IOException(String.format("%s is not a tracker catalog file.", path));
+        }
+        if (format != FORMAT) {
+            throw new IOException(String.format(
+                    "%s has catalog format %d, while this tracker reads format %d only.", path, format, FORMAT
+            ));
+        }
+    }
+
+    private TreeMap<Long, Path> listJournals() throws IOException {
+        TreeMap<Long, Path> result = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(workingDir, JOURNAL_PREFIX + "*")) {
+            for (Path path : stream) {
+                Matcher matcher = JOURNAL_PATTERN.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    result.put(Long.parseLong(matcher.group(1)), path);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Opens a new journal generation, its header is made durable along with the first records.
+     */
+    private FileChannel openJournal(long journalGeneration) throws IOException {
+        FileChannel channel = FileChannel.open(
+                workingDir.resolve(JOURNAL_PREFIX + journalGeneration + JOURNAL_SUFFIX),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+        );
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(JOURNAL_MAGIC).putInt(FORMAT);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        syncDirectory();
+        return channel;
+    }
+
+    private void syncDirectory() {
+        // Makes renames and new files durable, not supported on every platform
+        try (FileChannel channel = FileChannel.open(workingDir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -11,12 +11,27 @@ import java.util.List;
  * Created by ldvsoft on 22.03.16.
  */
 public class ClientInfo {
+    // Enough for PART_SIZE * 8M, which is way more than anyone shares
+    /*package*/ static final int MAX_BITMAP_LENGTH = 1024 * 1024;
+
     private final InetSocketAddress socketAddress;
     private final List<Integer> ids;
+    private final List<byte[]> parts;
 
     public ClientInfo(InetSocketAddress socketAddress, List<Integer> ids) {
+        this(socketAddress, ids, null);
+    }
+
+    /**
+     * @param parts bitmaps of available parts (see PartsSet.toBitmap), in the same order as ids
+     */
+    public ClientInfo(InetSocketAddress socketAddress, List<Integer> ids, List<byte[]> parts) {
+        if (parts != null && parts.size() != ids.size()) {
+            throw new IllegalArgumentException("Parts should be given for every file.");
+        }
         this.socketAddress = socketAddress;
         this.ids = ids;
+        this.parts = parts;
     }
 
     public InetSocketAddress getSocketAddress() {
@@ -27,6 +42,17 @@ public class ClientInfo {
         return ids;
     }
 
+    /**
+     * @return bitmaps of available parts, or null if client has not reported them
+     */
+    public List<byte[]> getParts() {
+        return parts;
+    }
+
+    public boolean hasParts() {
+        return parts != null;
+    }
+
     public void writeTo(DataOutputStream dos) throws IOException {
         IOUtils.writeAddress(dos, socketAddress);
         IOUtils.writeCollection(ids, DataOutputStream::writeInt, dos);
@@ -38,4 +64,39 @@ public class ClientInfo {
                 IOUtils.readCollection(new ArrayList<>(), DataInputStream::readInt, dis)
         );
     }
+
+    /**
+     * Format: {@code <address> <count: Int> (<id: Int> <length: Int> <bitmap: Bytes>)*}, address is the same as
+     * in writeTo().
+     */
+    public void writePartsTo(DataOutputStream dos) throws IOException {
+        if (parts == null) {
+            throw new IllegalStateException("There are no parts to write.");
+        }
+        IOUtils.writeAddress(dos, socketAddress);
+        dos.writeInt(ids.size());
+        for (int i = 0; i != ids.size(); i++) {
+            dos.writeInt(ids.get(i));
+            dos.writeInt(parts.get(i).length);
+            dos.write(parts.get(i));
+        }
+    }
+
+    public static ClientInfo readPartsFrom(DataInputStream dis) throws IOException {
+        InetSocketAddress address = IOUtils.readAddress(dis);
+        int count = dis.readInt();
+        List<Integer> ids = new ArrayList<>();
+        List<byte[]> parts = new ArrayList<>();
+        for (int i = 0; i != count; i++) {
+            ids.add(dis.readInt());
+            int length = dis.readInt();
+            if (length < 0 || length > MAX_BITMAP_LENGTH) {
+                throw new IOException("Wrong parts bitmap length: " + length);
+            }
+            byte[] bitmap = new byte[length];
+            dis.readFully(bitmap);
+            parts.add(bitmap);
+        }
+        return new ClientInfo(address, ids, parts);
+    }
 }
@@ -1,8 +1,13 @@
 package ru.spbau.mit;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Collection;
@@ -11,15 +16,73 @@ import java.util.Collection;
  * Created by ldvsoft on 22.03.16.
  */
 public abstract class Connection implements AutoCloseable {
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
     private Socket socket;
+    private InetSocketAddress remoteAddress;
 
     private DataInputStream dis;
     private DataOutputStream dos;
+    private CountingInputStream received;
+
+    /**
+     * Counts bytes taken from the socket, read ahead ones included.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            count += result;
+            return result;
+        }
+    }
 
     protected Connection(Socket socket) throws IOException {
+        this(socket, new CountingInputStream(socket.getInputStream()));
+    }
+
+    private Connection(Socket socket, CountingInputStream received) throws IOException {
+        // Buffered, so a request is sent in one packet; every write*() flushes when done
+        this(
+                new BufferedInputStream(received),
+                new BufferedOutputStream(socket.getOutputStream()),
+                (InetSocketAddress) socket.getRemoteSocketAddress()
+        );
         this.socket = socket;
-        this.dis = new DataInputStream(socket.getInputStream());
-        this.dos = new DataOutputStream(socket.getOutputStream());
+        this.received = received;
+    }
+
+    /**
+     * Connection over already-received bytes, used when the transport is not a plain blocking socket.
+     */
+    protected Connection(InputStream input, OutputStream output, InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+        this.dis = new DataInputStream(input);
+        this.dos = new DataOutputStream(output);
     }
 
     public DataInputStream getInput() {
@@ -30,18 +93,54 @@ public abstract class Connection implements AutoCloseable {
         return dos;
     }
 
+    /**
+     * @return number of bytes received from the socket so far, or -1 if the transport is not a socket
+     */
+    public long getReceived() {
+        return received == null ? -1 : received.count;
+    }
+
     public String getHost() {
-        return ((InetSocketAddress) socket.getRemoteSocketAddress()).getHostString();
+        return remoteAddress.getHostString();
     };
 
     @Override
     public void close() {
+        if (socket == null) {
+            return;
+        }
         try {
             socket.close();
         } catch (IOException ignored) {
         }
     }
 
+    /**
+     * Closes the connection after an answer sent without reading the whole request. Closing a socket with data
+     * unread resets the connection, and the peer may lose the answer then, so the output is shut down first
+     * and the input is dropped until the peer closes it too, for given time at most.
+     */
+    public void drainAndClose(int timeout) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            dos.flush();
+            socket.shutdownOutput();
+            long deadline = System.currentTimeMillis() + timeout;
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            for (long left = timeout; left > 0; left = deadline - System.currentTimeMillis()) {
+                socket.setSoTimeout((int) left);
+                if (received.read(buffer) == -1) {
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            close();
+        }
+    }
+
     public int readRequest() throws IOException {
         return dis.readUnsignedByte();
     }
@@ -0,0 +1,204 @@
+package ru.spbau.mit;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by ldvsoft on 14.06.16.
+ *
+ * Assigns missing parts of one file to the peers having them, so that parts are fetched from several peers
+ * at once. Every part in flight belongs to exactly one peer; there is a limit of parts in flight for the
+ * file and another one for every peer. PiecePicker chooses among the parts some peer may send now, using
+ * how many known peers have every part; part goes to the least loaded peer having it, earlier peers first.
+ * These candidates are kept up to date as parts and peers change, rather than gathered on every assignment.
+ *
+ * Not thread-safe, owned by the thread running the download.
+ */
+final class DownloadPlan {
+    private final PartsSet missing;
+    private final PartsSet inFlight;
+    private final int maxParts;
+    private final int maxPartsPerPeer;
+    private final PiecePicker picker;
+    private final Map<InetSocketAddress, Peer> peers = new LinkedHashMap<>();
+    /**
+     * Number of known peers having every part.
+     */
+    private final int[] availability;
+    /**
+     * Number of known peers below their limit having every part.
+     */
+    private final int[] openHolders;
+    /**
+     * Missing parts not in flight that some known peer below its limit has.
+     */
+    private final PartsSet candidates;
+
+    /*package*/ static final class Assignment {
+        private final InetSocketAddress peer;
+        private final int partId;
+        /**
+         * Peer state at the time of assignment, the peer may be dropped and added anew meanwhile.
+         */
+        private final Peer peerState;
+
+        private Assignment(InetSocketAddress peer, int partId, Peer peerState) {
+            this.peer = peer;
+            this.partId = partId;
+            this.peerState = peerState;
+        }
+
+        /*package*/ InetSocketAddress getPeer() {
+            return peer;
+        }
+
+        /*package*/ int getPartId() {
+            return partId;
+        }
+    }
+
+    private static final class Peer {
+        private PartsSet parts;
+        private int load = 0;
+        /**
+         * Cleared when the peer is dropped, its parts are not counted since.
+         */
+        private boolean isKnown = true;
+
+        private Peer(PartsSet parts) {
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * @param missing parts to download, taken by the plan
+     * @param maxParts parts in flight at most
+     * @param maxPartsPerPeer parts in flight from one peer at most
+     */
+    /*package*/ DownloadPlan(PartsSet missing, int maxParts, int maxPartsPerPeer, PiecePicker picker) {
+        this.missing = missing;
+        this.inFlight = new PartsSet(missing.getSize(), false);
+        this.maxParts = maxParts;
+        this.maxPartsPerPeer = maxPartsPerPeer;
+        this.picker = picker;
+        this.availability = new int[missing.getSize()];
+        this.openHolders = new int[missing.getSize()];
+        this.candidates = new PartsSet(missing.getSize(), false);
+    }
+
+    /*package*/ boolean isComplete() {
+        return missing.getCount() == 0;
+    }
+
+    /*package*/ int getInFlight() {
+        return inFlight.getCount();
+    }
+
+    /*package*/ boolean hasPeer(InetSocketAddress peer) {
+        return peers.containsKey(peer);
+    }
+
+    /**
+     * Adds the peer, or updates the parts it has; parts already in flight from it stay assigned.
+     */
+    /*package*/ void addPeer(InetSocketAddress peer, PartsSet parts) {
+        Peer known = peers.get(peer);
+        if (known != null) {
+            countParts(known, -1);
+            known.parts = parts;
+        } else {
+            known = new Peer(parts);
+            peers.put(peer, known);
+        }
+        countParts(known, 1);
+    }
+
+    /**
+     * @return next part to fetch and the peer to fetch it from, or null if none may be started now
+     */
+    /*package*/ Assignment next() {
+        if (inFlight.getCount() >= maxParts || candidates.getCount() == 0) {
+            return null;
+        }
+        int partId = picker.pick(candidates, availability, missing.getSize() - missing.getCount());
+        InetSocketAddress peer = pickPeer(partId);
+        Peer peerState = peers.get(peer);
+        changeLoad(peerState, 1);
+        inFlight.set(partId, true);
+        updateCandidate(partId);
+        return new Assignment(peer, partId, peerState);
+    }
+
+    /*package*/ void complete(Assignment assignment) {
+        missing.set(assignment.partId, false);
+        release(assignment);
+    }
+
+    /**
+     * Part goes back to missing ones, and the peer is dropped until added again.
+     */
+    /*package*/ void fail(Assignment assignment) {
+        release(assignment);
+        if (peers.remove(assignment.peer, assignment.peerState)) {
+            countParts(assignment.peerState, -1);
+            assignment.peerState.isKnown = false;
+        }
+    }
+
+    private void release(Assignment assignment) {
+        inFlight.set(assignment.partId, false);
+        changeLoad(assignment.peerState, -1);
+        updateCandidate(assignment.partId);
+    }
+
+    private boolean isOpen(Peer peer) {
+        return peer.load < maxPartsPerPeer;
+    }
+
+    /**
+     * Parts of a peer reaching or leaving its limit stop or start being candidates.
+     */
+    private void changeLoad(Peer peer, int change) {
+        boolean wasOpen = isOpen(peer);
+        peer.load += change;
+        if (peer.isKnown && wasOpen != isOpen(peer)) {
+            countOpenHolders(peer.parts, wasOpen ? -1 : 1);
+        }
+    }
+
+    private void countParts(Peer peer, int change) {
+        int partId = -1;
+        while ((partId = peer.parts.getFirstBitAtLeast(partId + 1)) != -1) {
+            availability[partId] += change;
+        }
+        if (isOpen(peer)) {
+            countOpenHolders(peer.parts, change);
+        }
+    }
+
+    private void countOpenHolders(PartsSet parts, int change) {
+        int partId = -1;
+        while ((partId = parts.getFirstBitAtLeast(partId + 1)) != -1) {
+            openHolders[partId] += change;
+            updateCandidate(partId);
+        }
+    }
+
+    private void updateCandidate(int partId) {
+        candidates.set(partId, missing.get(partId) && !inFlight.get(partId) && openHolders[partId] > 0);
+    }
+
+    private InetSocketAddress pickPeer(int partId) {
+        InetSocketAddress best = null;
+        int bestLoad = maxPartsPerPeer;
+        for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            if (peer.load < bestLoad && peer.parts.get(partId)) {
+                best = entry.getKey();
+                bestLoad = peer.load;
+            }
+        }
+        return best;
+    }
+}
@@ -3,15 +3,30 @@ package ru.spbau.mit;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Created by ldvsoft on 02.04.16.
  */
 public abstract class IOUtils {
+    /**
+     * Size of an encoded seeder address: IPv4 and port.
+     */
+    public static final int ADDRESS_LENGTH = 6;
+
     private static final int IP4_LENGTH = 4;
+    private static final int PORT_BITS = 16;
+    private static final int PORT_MASK = 0xFFFF;
+    private static final long IP4_MASK = 0xFFFFFFFFL;
+    private static final int BYTE_MASK = 0xFF;
 
     public static <T> void writeCollection(
             Collection<T> list,
@@ -51,6 +66,126 @@ public abstract class IOUtils {
         return new InetSocketAddress(InetAddress.getByAddress(buffer), port);
     }
 
+    /**
+     * Packs IPv4 address and port into a single long: ip in bits 16..47, port in bits 0..15.
+     * Result is never zero for a valid seeder (port is never zero).
+     */
+    public static long packAddress(InetSocketAddress address) {
+        if (!(address.getAddress() instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Only IPv4 addresses are supported: " + address);
+        }
+        byte[] ip = address.getAddress().getAddress();
+        return (ByteBuffer.wrap(ip).getInt() & IP4_MASK) << PORT_BITS | address.getPort();
+    }
+
+    public static InetSocketAddress unpackAddress(long packed) {
+        byte[] ip = ByteBuffer.allocate(IP4_LENGTH).putInt((int) (packed >>> PORT_BITS)).array();
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), (int) (packed & PORT_MASK));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return IPv4 address of packed one, as int
+     */
+    public static int getPackedIp(long packed) {
+        return (int) (packed >>> PORT_BITS);
+    }
+
+    public static void writePackedAddress(DataOutputStream dos, long packed) throws IOException {
+        dos.writeInt(getPackedIp(packed));
+        dos.writeShort((int) (packed & PORT_MASK));
+    }
+
+    /**
+     * Parses comma-separated list of {@code host[:port]} addresses, as given by user.
+     */
+    public static List<InetSocketAddress> parseAddresses(String addresses, int defaultPort) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (List<InetSocketAddress> group : parseAddressGroups(addresses, defaultPort)) {
+            if (group.size() != 1) {
+                throw new IllegalArgumentException(String.format("Replicas are not expected: \"%s\".", addresses));
+            }
+            result.add(group.get(0));
+        }
+        return result;
+    }
+
+    /**
+     * Parses comma-separated list of groups of {@code host[:port]} addresses joined with '+', as given by user.
+     * The groups are tracker shards, the first address of a group is the primary, the rest are its replicas.
+     */
+    public static List<List<InetSocketAddress>> parseAddressGroups(String addresses, int defaultPort) {
+        List<List<InetSocketAddress>> result = new ArrayList<>();
+        for (String group : addresses.split(",")) {
+            if (group.trim().isEmpty()) {
+                continue;
+            }
+            List<InetSocketAddress> parsedGroup = new ArrayList<>();
+            for (String address : group.split("\\+")) {
+                address = address.trim();
+                if (address.isEmpty()) {
+                    throw new IllegalArgumentException(String.format("Empty address in \"%s\".", group));
+                }
+                parsedGroup.add(parseAddress(address, defaultPort));
+            }
+            result.add(parsedGroup);
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("No addresses given.");
+        }
+        return result;
+    }
+
+    /**
+     * Parses single {@code host[:port]} address.
+     */
+    public static InetSocketAddress parseAddress(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        if (colon == -1) {
+            return InetSocketAddress.createUnresolved(address, defaultPort);
+        }
+        return InetSocketAddress.createUnresolved(
+                address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1))
+        );
+    }
+
+    /**
+     * Stream view of the remaining buffer contents, buffer position is advanced while reading.
+     */
+    public static InputStream asInputStream(ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                return buffer.get() & BYTE_MASK;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0) {
+                    return 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
     public interface Writer<T> {
         void write(DataOutputStream dos, T o) throws IOException;
     }
@@ -0,0 +1,62 @@
+package ru.spbau.mit;
+
+/**
+ * Created by ldvsoft on 25.05.16.
+ *
+ * Partitioning of file ids between tracker shards: shard k of n owns ids k, k + n, k + 2n, ...
+ * Inside a shard files are addressed by dense local indexes 0, 1, 2, ...
+ */
+public final class IdSpace {
+    public static final IdSpace SINGLE = new IdSpace(0, 1);
+
+    private final int shard;
+    private final int shardsCount;
+
+    public IdSpace(int shard, int shardsCount) {
+        if (shardsCount <= 0 || shard < 0 || shard >= shardsCount) {
+            throw new IllegalArgumentException(String.format("Wrong shard %d of %d.", shard, shardsCount));
+        }
+        this.shard = shard;
+        this.shardsCount = shardsCount;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShardsCount() {
+        return shardsCount;
+    }
+
+    public static int getShard(int id, int shardsCount) {
+        return Math.floorMod(id, shardsCount);
+    }
+
+    public boolean owns(int id) {
+        return id >= 0 && getShard(id, shardsCount) == shard;
+    }
+
+    public int toId(int index) {
+        return shard + index * shardsCount;
+    }
+
+    /**
+     * @return local index of the id, or -1 if it is not owned by this shard
+     */
+    public int toIndex(int id) {
+        if (!owns(id)) {
+            return -1;
+        }
+        return (id - shard) / shardsCount;
+    }
+
+    /**
+     * @return the smallest local index whose id is not less than given one
+     */
+    public int toIndexAtLeast(int id) {
+        if (id <= shard) {
+            return 0;
+        }
+        return (int) (((long) id - shard + shardsCount - 1) / shardsCount);
+    }
+}
@@ -0,0 +1,42 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Created by ldvsoft on 01.06.16.
+ */
+public class KeepAliveRequest {
+    private final int port;
+    private final int version;
+
+    /**
+     * @param port seeding port of the client
+     * @param version last announce version acknowledged by the tracker
+     */
+    public KeepAliveRequest(int port, int version) {
+        this.port = port;
+        this.version = version;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeShort(port);
+        dos.writeInt(version);
+    }
+
+    public static KeepAliveRequest readFrom(DataInputStream dis) throws IOException {
+        return new KeepAliveRequest(
+                dis.readUnsignedShort(),
+                dis.readInt()
+        );
+    }
+}
@@ -0,0 +1,77 @@
+package ru.spbau.mit;
+
+/**
+ * Created by ldvsoft on 29.05.16.
+ *
+ * Log-linear histogram of non-negative values: every power of two is split into 32 equal buckets,
+ * so percentiles are accurate within about 3% at any scale while the histogram stays small.
+ * Not thread-safe, meant to be filled by one thread and merged afterwards.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long max = 0;
+
+    /*package*/ void record(long value) {
+        value = Math.max(value, 0);
+        counts[getIndex(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    /*package*/ void merge(LatencyHistogram other) {
+        for (int i = 0; i != BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /*package*/ long getCount() {
+        return count;
+    }
+
+    /*package*/ long getMax() {
+        return max;
+    }
+
+    /**
+     * @param quantile from 0 to 1
+     * @return upper bound of the bucket holding given quantile, 0 if empty
+     */
+    /*package*/ long getQuantile(double quantile) {
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i != BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(max, getLowerBound(i + 1) - 1);
+            }
+        }
+        return max;
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+}
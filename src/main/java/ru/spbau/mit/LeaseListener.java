@@ -0,0 +1,29 @@
+package ru.spbau.mit;
+
+/**
+ * Created by ldvsoft on 21.06.16.
+ *
+ * Collaborator of SeederRegistry following the changes of its leases. Called under the registry lock, in the
+ * order the changes are made.
+ */
+/*package*/ interface LeaseListener {
+    /**
+     * Lease has been announced, in full or with a delta; it is given with its new files and version.
+     */
+    void onAnnounced(SeederRegistry.Lease lease);
+
+    void onRenewed(long address, long deadline);
+
+    void onExpired(long address);
+
+    /**
+     * Seeder has gained (delta 1) or lost (delta -1) the file.
+     * @param isComplete whether the seeder has all parts of the file, or has not reported them
+     */
+    void onSeederChanged(int index, boolean isComplete, int delta);
+
+    /**
+     * Seeder has completed a download of the file and has it all now.
+     */
+    void onDownloaded(int index);
+}
@@ -0,0 +1,75 @@
+package ru.spbau.mit;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Created by ldvsoft on 08.06.16.
+ *
+ * Saved seeder leases, so that a restarted tracker can answer SOURCES before seeders announce again, along
+ * with completed downloads counters. Unlike the catalog these are soft state: the file is replaced atomically
+ * from time to time, and a missing, damaged or foreign one just means starting with no seeders.
+ *
+ * Format: {@code <shard: Int> <shards count: Int> <leases, see SeederRegistry.getEncodedLeases>}, leases refer
+ * to files by local index, so they are only valid for the same shard.
+ */
+final class LeaseStore {
+    private static final String LEASES_FILE = "tracker-leases.dat";
+    private static final String LEASES_TEMP_FILE = "tracker-leases.dat.tmp";
+
+    private final Path workingDir;
+    private final IdSpace idSpace;
+
+    /*package*/ LeaseStore(Path workingDir, IdSpace idSpace) {
+        this.workingDir = workingDir;
+        this.idSpace = idSpace;
+    }
+
+    /*package*/ void save(SeederRegistry seeders) throws IOException {
+        byte[] leases = seeders.getEncodedLeases();
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+        header.putInt(idSpace.getShard()).putInt(idSpace.getShardsCount());
+        header.flip();
+        Path temp = workingDir.resolve(LEASES_TEMP_FILE);
+        try (FileChannel channel = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            ByteBuffer body = ByteBuffer.wrap(leases);
+            ByteBuffer[] buffers = {header, body};
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, workingDir.resolve(LEASES_FILE), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores leases saved, if any, dropping expired ones; files of the catalog should be added to seeders.
+     */
+    /*package*/ void load(SeederRegistry seeders, long now) {
+        Path path = workingDir.resolve(LEASES_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (dis.readInt() != idSpace.getShard() || dis.readInt() != idSpace.getShardsCount()) {
+                return;
+            }
+            seeders.readLeases(dis, now);
+        } catch (IOException e) {
+            // Leases read before the damage are kept, the rest will announce again
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ru.spbau.mit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by ldvsoft on 20.06.16.
+ *
+ * Open addressing map from longs, keys stored in one flat array without boxing, same as in LongHashSet.
+ * Zero is reserved as an empty cell marker and cannot be a key; null cannot be a value.
+ */
+final class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 4;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int HASH_SHIFT = 32;
+    // Grow when more than 3/4 full
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    /*package*/ LongHashMap() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+    }
+
+    /*package*/ int size() {
+        return size;
+    }
+
+    /*package*/ boolean containsKey(long key) {
+        return find(key) != -1;
+    }
+
+    /**
+     * @return value of the key, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    /*package*/ V get(long key) {
+        int i = find(key);
+        return i == -1 ? null : (V) values[i];
+    }
+
+    /**
+     * @return previous value of the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    /*package*/ V put(long key, V value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Zero cannot be a key in LongHashMap.");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Null cannot be a value in LongHashMap.");
+        }
+        if ((size + 1) * LOAD_DENOMINATOR > keys.length * LOAD_NUMERATOR) {
+            rehash(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * @return removed value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    /*package*/ V remove(long key) {
+        int i = find(key);
+        if (i == -1) {
+            return null;
+        }
+        final V old = (V) values[i];
+        int mask = keys.length - 1;
+        // Backward shift deletion keeps probe chains unbroken without tombstones
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = index(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    /**
+     * @return copy of all the values, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    /*package*/ List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for (int i = 0; i != keys.length; i++) {
+            if (keys[i] != 0) {
+                result.add((V) values[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return cell of the key, or -1 if there is none
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        size = 0;
+        for (int i = 0; i != oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        return (int) ((key * HASH_MULTIPLIER) >>> HASH_SHIFT) & mask;
+    }
+}
@@ -0,0 +1,125 @@
+package ru.spbau.mit;
+
+import java.util.Arrays;
+
+/**
+ * Created by ldvsoft on 16.05.16.
+ *
+ * Open addressing set of longs stored in one flat array, without boxing.
+ * Zero is reserved as an empty cell marker and cannot be stored.
+ */
+final class LongHashSet {
+    private static final int MIN_CAPACITY = 4;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int HASH_SHIFT = 32;
+    // Grow when more than 3/4 full
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+
+    private long[] table;
+    private int size = 0;
+
+    /*package*/ LongHashSet() {
+        table = new long[MIN_CAPACITY];
+    }
+
+    /*package*/ int size() {
+        return size;
+    }
+
+    /*package*/ boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*package*/ boolean contains(long value) {
+        int mask = table.length - 1;
+        for (int i = index(value, mask); table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*package*/ boolean add(long value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("Zero cannot be stored in LongHashSet.");
+        }
+        if ((size + 1) * LOAD_DENOMINATOR > table.length * LOAD_NUMERATOR) {
+            rehash(table.length * 2);
+        }
+        int mask = table.length - 1;
+        int i = index(value, mask);
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        return true;
+    }
+
+    /*package*/ boolean remove(long value) {
+        int mask = table.length - 1;
+        int i = index(value, mask);
+        while (table[i] != value) {
+            if (table[i] == 0) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // Backward shift deletion keeps probe chains unbroken without tombstones
+        int hole = i;
+        for (int j = (hole + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = index(table[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = 0;
+        size--;
+        return true;
+    }
+
+    /*package*/ long[] toArray() {
+        long[] result = new long[size];
+        int pos = 0;
+        for (long value : table) {
+            if (value != 0) {
+                result[pos++] = value;
+            }
+        }
+        return result;
+    }
+
+    /*package*/ void addAllTo(LongHashSet other) {
+        for (long value : table) {
+            if (value != 0) {
+                other.add(value);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        size = 0;
+        for (long value : old) {
+            if (value != 0) {
+                add(value);
+            }
+        }
+    }
+
+    private static int index(long value, int mask) {
+        return (int) ((value * HASH_MULTIPLIER) >>> HASH_SHIFT) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
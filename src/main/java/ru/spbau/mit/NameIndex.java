@@ -0,0 +1,172 @@
+package ru.spbau.mit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Created by ldvsoft on 05.06.16.
+ *
+ * Case-insensitive substring index of file names. Every name is split into trigrams, each mapped to ascending
+ * local indexes of the names containing it; a query walks the shortest list among its trigrams and checks the
+ * candidates. Queries shorter than a trigram scan the names in order. Archived entries are not indexed: they
+ * are taken out of the lists of their trigrams when archived and put back in place when revived.
+ * Not thread-safe, guarded by the tracker lock.
+ */
+final class NameIndex {
+    private static final int GRAM = 3;
+    private static final int INITIAL_POSTINGS = 2;
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+
+    private static final class Postings {
+        private int[] items = new int[INITIAL_POSTINGS];
+        private int size = 0;
+
+        private void add(int index) {
+            if (size != 0 && items[size - 1] == index) {
+                // Same trigram met twice in one name
+                return;
+            }
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = index;
+        }
+
+        /**
+         * Puts the index in place, keeping the items ascending.
+         */
+        private void insert(int index) {
+            int position = lowerBound(index);
+            if (position != size && items[position] == index) {
+                return;
+            }
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            System.arraycopy(items, position, items, position + 1, size - position);
+            items[position] = index;
+            size++;
+        }
+
+        private void remove(int index) {
+            int position = lowerBound(index);
+            if (position == size || items[position] != index) {
+                return;
+            }
+            System.arraycopy(items, position + 1, items, position, size - position - 1);
+            size--;
+        }
+
+        private int lowerBound(int index) {
+            int position = Arrays.binarySearch(items, 0, size, index);
+            return position >= 0 ? position : -position - 1;
+        }
+    }
+
+    /**
+     * @param files catalog by local index, null for archived entries
+     */
+    /*package*/ NameIndex(List<FileEntry> files) {
+        files.forEach(this::add);
+    }
+
+    /**
+     * Indexes the name of the file with next local index.
+     * @param entry file, or null to skip the index
+     */
+    /*package*/ void add(FileEntry entry) {
+        int index = names.size();
+        if (entry == null) {
+            names.add(null);
+            return;
+        }
+        String name = normalize(entry.getName());
+        names.add(name);
+        for (int i = 0; i + GRAM <= name.length(); i++) {
+            postings.computeIfAbsent(getTrigram(name, i), key -> new Postings()).add(index);
+        }
+    }
+
+    /**
+     * Indexes the name of a revived file.
+     */
+    /*package*/ void put(int index, FileEntry entry) {
+        String name = normalize(entry.getName());
+        names.set(index, name);
+        for (int i = 0; i + GRAM <= name.length(); i++) {
+            postings.computeIfAbsent(getTrigram(name, i), key -> new Postings()).insert(index);
+        }
+    }
+
+    /**
+     * Drops the name of an archived file.
+     */
+    /*package*/ void remove(int index) {
+        String name = names.get(index);
+        if (name == null) {
+            return;
+        }
+        names.set(index, null);
+        for (int i = 0; i + GRAM <= name.length(); i++) {
+            long trigram = getTrigram(name, i);
+            Postings indexes = postings.get(trigram);
+            if (indexes == null) {
+                continue;
+            }
+            indexes.remove(index);
+            if (indexes.size == 0) {
+                postings.remove(trigram);
+            }
+        }
+    }
+
+    /**
+     * @return ascending local indexes of names containing the query, starting from given index;
+     * at most limit + 1 of them, so that the caller can tell whether there are more
+     */
+    /*package*/ List<Integer> search(String query, int from, int limit) {
+        String pattern = normalize(query);
+        List<Integer> result = new ArrayList<>();
+        if (pattern.length() < GRAM) {
+            for (int index = from; index < names.size() && result.size() <= limit; index++) {
+                if (names.get(index) != null && names.get(index).contains(pattern)) {
+                    result.add(index);
+                }
+            }
+            return result;
+        }
+        Postings shortest = null;
+        for (int i = 0; i + GRAM <= pattern.length(); i++) {
+            Postings candidates = postings.get(getTrigram(pattern, i));
+            if (candidates == null) {
+                return result;
+            }
+            if (shortest == null || candidates.size < shortest.size) {
+                shortest = candidates;
+            }
+        }
+        for (int i = shortest.lowerBound(from); i < shortest.size && result.size() <= limit; i++) {
+            int index = shortest.items[i];
+            if (names.get(index).contains(pattern)) {
+                result.add(index);
+            }
+        }
+        return result;
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static long getTrigram(String name, int offset) {
+        return (long) name.charAt(offset) << (2 * Character.SIZE)
+                | (long) name.charAt(offset + 1) << Character.SIZE
+                | name.charAt(offset + 2);
+    }
+}
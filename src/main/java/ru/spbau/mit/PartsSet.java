@@ -11,6 +11,9 @@ import java.util.Arrays;
  * I write my own bitset because I don't like the java.util one with auto-incrementing size etc
  */
 public class PartsSet {
+    private static final int BITS_IN_BYTE = 8;
+    private static final int BYTE_MASK = 0xFF;
+
     private int count = 0;
     private boolean[] flags;
 
@@ -42,6 +45,48 @@ public class PartsSet {
         return count;
     }
 
+    public int getSize() {
+        return flags.length;
+    }
+
+    /**
+     * @return compact form: bit i of byte j tells whether part j * 8 + i is present
+     */
+    public byte[] toBitmap() {
+        byte[] bitmap = new byte[getBitmapLength(flags.length)];
+        for (int i = 0; i != flags.length; i++) {
+            if (flags[i]) {
+                bitmap[i / BITS_IN_BYTE] |= 1 << (i % BITS_IN_BYTE);
+            }
+        }
+        return bitmap;
+    }
+
+    public static PartsSet fromBitmap(byte[] bitmap, int size) {
+        if (bitmap.length != getBitmapLength(size)) {
+            throw new IllegalArgumentException("Bitmap length does not match parts count.");
+        }
+        PartsSet result = new PartsSet(size, false);
+        for (int i = 0; i != size; i++) {
+            if ((bitmap[i / BITS_IN_BYTE] & (1 << (i % BITS_IN_BYTE))) != 0) {
+                result.set(i, true);
+            }
+        }
+        return result;
+    }
+
+    public static int getBitmapLength(int size) {
+        return (size + BITS_IN_BYTE - 1) / BITS_IN_BYTE;
+    }
+
+    public static int getBitmapCount(byte[] bitmap) {
+        int result = 0;
+        for (byte b : bitmap) {
+            result += Integer.bitCount(b & BYTE_MASK);
+        }
+        return result;
+    }
+
     public void writeTo(DataOutputStream dos) throws IOException {
         dos.writeInt(count);
         for (int i = 0; i != flags.length; i++) {
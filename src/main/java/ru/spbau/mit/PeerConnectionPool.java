@@ -0,0 +1,195 @@
+package ru.spbau.mit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by ldvsoft on 16.06.16.
+ *
+ * Keeps one connection open to every peer, shared by all requests to it. Requests are pipelined: every one is
+ * sent as soon as it is made, and responses, which the peer sends in the order of requests, are read by the
+ * callers in turn. So the next GET is already waiting on the peer while the previous part is transferred.
+ * Connections idle for too long are dropped before the peer closes them itself; if the peer still has closed
+ * a reused one, the request is repeated over a fresh connection, which is safe as STAT and GET change nothing.
+ * A peer keeping silent while a response is expected fails the connection, so one stalled peer does not hold
+ * its callers and their parts forever.
+ */
+final class PeerConnectionPool implements AutoCloseable {
+    private static final int IDLE_TIMEOUT = TorrentP2PConnection.SESSION_TIMEOUT / 2;
+    private static final int READ_TIMEOUT = 10 * 1000;
+
+    private final Map<InetSocketAddress, Channel> channels = new HashMap<>();
+    private final int idleTimeout;
+    private final int readTimeout;
+    private boolean isClosed = false;
+
+    /*package*/ interface Request {
+        void write(TorrentP2PConnection connection) throws IOException;
+    }
+
+    /*package*/ interface Response<T> {
+        T read(TorrentP2PConnection connection) throws IOException;
+    }
+
+    /**
+     * Connection to one peer. Requests are numbered as they are sent, response to request n is read once
+     * responses to all the previous ones are.
+     */
+    private final class Channel {
+        private final InetSocketAddress address;
+        private TorrentP2PConnection connection = null;
+        /**
+         * Thread whose request has opened the connection, until its response is read.
+         */
+        private Thread opener = null;
+        private long sent = 0;
+        private long received = 0;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean isBroken = false;
+
+        private Channel(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private <T> T exchange(Request request, Response<T> response) throws IOException {
+            long ticket;
+            synchronized (this) {
+                checkBroken();
+                try {
+                    if (connection == null) {
+                        opener = Thread.currentThread();
+                        connection = open(address);
+                    }
+                    request.write(connection);
+                } catch (IOException | RuntimeException e) {
+                    breakDown();
+                    throw e;
+                }
+                ticket = sent++;
+                while (received != ticket && !isBroken) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        // Response would be left unread, following ones could not be told apart
+                        breakDown();
+                        throw new InterruptedIOException("Interrupted while waiting for a peer.");
+                    }
+                }
+                checkBroken();
+            }
+            // Only this caller reads now, others wait for their turn
+            try {
+                T result = response.read(connection);
+                synchronized (this) {
+                    received++;
+                    opener = null;
+                    lastUsed = System.currentTimeMillis();
+                    notifyAll();
+                }
+                return result;
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    breakDown();
+                }
+                throw e;
+            }
+        }
+
+        private synchronized boolean isUsable(long now) {
+            return !isBroken && (sent != received || now - lastUsed < idleTimeout);
+        }
+
+        /**
+         * @return whether the connection has been opened for the request of the thread, so its failure
+         *         means that the peer is unavailable rather than that it has closed an old connection
+         */
+        private synchronized boolean isOpenedBy(Thread thread) {
+            return opener == thread;
+        }
+
+        private void checkBroken() throws SocketException {
+            if (isBroken) {
+                throw new SocketException("Connection to the peer is lost.");
+            }
+        }
+
+        /**
+         * Closes the connection, requests waiting for their responses fail.
+         */
+        private synchronized void breakDown() {
+            isBroken = true;
+            if (connection != null) {
+                connection.close();
+            }
+            notifyAll();
+        }
+    }
+
+    /*package*/ PeerConnectionPool() {
+        this(IDLE_TIMEOUT, READ_TIMEOUT);
+    }
+
+    /**
+     * @param idleTimeout time after which an idle connection is not used anymore
+     * @param readTimeout longest time a peer may keep silent while a response is expected
+     */
+    /*package*/ PeerConnectionPool(int idleTimeout, int readTimeout) {
+        this.idleTimeout = idleTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sends the request to the peer over the shared connection and reads its response.
+     */
+    /*package*/ <T> T execute(InetSocketAddress address, Request request, Response<T> response)
+            throws IOException {
+        Channel channel = getChannel(address);
+        try {
+            return channel.exchange(request, response);
+        } catch (EOFException | SocketException e) {
+            if (channel.isOpenedBy(Thread.currentThread())) {
+                throw e;
+            }
+        }
+        return getChannel(address).exchange(request, response);
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        for (Channel channel : channels.values()) {
+            channel.breakDown();
+        }
+        channels.clear();
+    }
+
+    private synchronized Channel getChannel(InetSocketAddress address) throws SocketException {
+        if (isClosed) {
+            throw new SocketException("Peer connections are closed.");
+        }
+        Channel channel = channels.get(address);
+        if (channel == null || !channel.isUsable(System.currentTimeMillis())) {
+            if (channel != null) {
+                channel.breakDown();
+            }
+            channel = new Channel(address);
+            channels.put(address, channel);
+        }
+        return channel;
+    }
+
+    private TorrentP2PConnection open(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        // Pipelined requests are small and should not wait for acknowledgement of the previous ones
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(readTimeout);
+        return new TorrentP2PConnection(socket);
+    }
+}
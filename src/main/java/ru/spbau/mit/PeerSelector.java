@@ -0,0 +1,25 @@
+package ru.spbau.mit;
+
+/**
+ * Created by ldvsoft on 06.06.16.
+ *
+ * Policy choosing which of the seeders of a file the tracker tells a requester about.
+ */
+public interface PeerSelector {
+    /**
+     * Requester address given when it cannot be packed, that is when it is not IPv4.
+     */
+    long UNKNOWN_REQUESTER = -1;
+
+    /**
+     * Tells about every seeder known, in no particular order.
+     */
+    PeerSelector ALL = (candidates, requester) -> candidates.length;
+
+    /**
+     * @param candidates packed addresses of all seeders known, may be reordered
+     * @param requester packed address of the requester, port is 0
+     * @return number of leading candidates to send
+     */
+    int select(long[] candidates, long requester);
+}
@@ -0,0 +1,107 @@
+package ru.spbau.mit;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Created by ldvsoft on 15.06.16.
+ *
+ * Policy choosing which part of a file a download fetches next, see DownloadPlan.
+ */
+public interface PiecePicker {
+    /**
+     * Lowest-numbered part first, so that the file may be read while it is downloaded.
+     */
+    PiecePicker SEQUENTIAL = (candidates, availability, downloaded) -> candidates.getFirstBitAtLeast(0);
+
+    /**
+     * Part held by the fewest known peers first, at random among equally rare ones. Parts every leecher
+     * has to take from the few holders are spread before those holders leave.
+     */
+    PiecePicker RAREST_FIRST = new PiecePicker() {
+        @Override
+        public int pick(PartsSet candidates, int[] availability, int downloaded) {
+            Random random = ThreadLocalRandom.current();
+            int result = -1;
+            int ties = 0;
+            for (int partId = 0; partId != candidates.getSize(); partId++) {
+                if (!candidates.get(partId)) {
+                    continue;
+                }
+                if (result == -1 || availability[partId] < availability[result]) {
+                    result = partId;
+                    ties = 1;
+                } else if (availability[partId] == availability[result] && random.nextInt(++ties) == 0) {
+                    result = partId;
+                }
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Random parts until a few are downloaded, rarest first afterwards. Rarest parts are slow to get while
+     * a new peer has nothing to share yet, any part lets it start uploading sooner.
+     */
+    PiecePicker RANDOM_FIRST = new PiecePicker() {
+        private static final int RANDOM_PARTS = 4;
+
+        @Override
+        public int pick(PartsSet candidates, int[] availability, int downloaded) {
+            if (downloaded >= RANDOM_PARTS) {
+                return RAREST_FIRST.pick(candidates, availability, downloaded);
+            }
+            int skip = ThreadLocalRandom.current().nextInt(candidates.getCount());
+            int result = candidates.getFirstBitAtLeast(0);
+            for (int i = 0; i != skip; i++) {
+                result = candidates.getFirstBitAtLeast(result + 1);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Picker of a file, stored in the client state by its code, which never changes.
+     */
+    enum Strategy {
+        SEQUENTIAL('S', PiecePicker.SEQUENTIAL),
+        RAREST_FIRST('R', PiecePicker.RAREST_FIRST),
+        RANDOM_FIRST('F', PiecePicker.RANDOM_FIRST);
+
+        private final char code;
+        private final PiecePicker picker;
+
+        Strategy(char code, PiecePicker picker) {
+            this.code = code;
+            this.picker = picker;
+        }
+
+        public char getCode() {
+            return code;
+        }
+
+        public PiecePicker getPicker() {
+            return picker;
+        }
+
+        /**
+         * @return strategy with the code, or null if there is none
+         */
+        public static Strategy fromCode(int code) {
+            for (Strategy strategy : values()) {
+                if (strategy.code == code) {
+                    return strategy;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param candidates parts that may be fetched now, not empty; kept by the plan, must not be changed
+     * @param availability number of known peers having each part
+     * @param downloaded number of parts of the file already downloaded
+     * @return one of the candidates
+     */
+    int pick(PartsSet candidates, int[] availability, int downloaded);
+}
@@ -0,0 +1,82 @@
+package ru.spbau.mit;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Created by ldvsoft on 06.06.16.
+ *
+ * Tells about at most limit seeders, chosen at random for every request, so that leechers of a popular file
+ * do not all come to the same ones. Locality-aware selector prefers seeders sharing the longest IPv4 prefix
+ * with the requester, choosing at random among equally close ones.
+ */
+public class RandomPeerSelector implements PeerSelector {
+    private final int limit;
+    private final boolean isLocalityAware;
+
+    public RandomPeerSelector(int limit, boolean isLocalityAware) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Peers limit should be positive.");
+        }
+        this.limit = limit;
+        this.isLocalityAware = isLocalityAware;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isLocalityAware() {
+        return isLocalityAware;
+    }
+
+    @Override
+    public int select(long[] candidates, long requester) {
+        int count = Math.min(limit, candidates.length);
+        Random random = ThreadLocalRandom.current();
+        if (!isLocalityAware || requester == UNKNOWN_REQUESTER) {
+            // Only the part sent needs to be shuffled
+            shuffle(candidates, count, random);
+            return count;
+        }
+        shuffle(candidates, candidates.length, random);
+
+        // Counting sort by distance is stable, so equally close seeders stay shuffled
+        int requesterIp = IOUtils.getPackedIp(requester);
+        int[] starts = new int[Integer.SIZE + 2];
+        for (long candidate : candidates) {
+            starts[getDistance(candidate, requesterIp) + 1]++;
+        }
+        for (int distance = 1; distance != starts.length; distance++) {
+            starts[distance] += starts[distance - 1];
+        }
+        long[] closest = new long[count];
+        for (long candidate : candidates) {
+            int position = starts[getDistance(candidate, requesterIp)]++;
+            if (position < count) {
+                closest[position] = candidate;
+            }
+        }
+        System.arraycopy(closest, 0, candidates, 0, count);
+        return count;
+    }
+
+    /**
+     * @return number of trailing IPv4 bits that differ, from 0 for the same host to 32
+     */
+    private static int getDistance(long candidate, int requesterIp) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(IOUtils.getPackedIp(candidate) ^ requesterIp);
+    }
+
+    /**
+     * Moves random candidates to the first count positions.
+     */
+    private static void shuffle(long[] candidates, int count, Random random) {
+        for (int i = 0; i != count; i++) {
+            int j = i + random.nextInt(candidates.length - i);
+            long candidate = candidates[i];
+            candidates[i] = candidates[j];
+            candidates[j] = candidate;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Created by ldvsoft on 11.06.16.
+ *
+ * Request of a replica for changes of the primary: catalog changes from the given catalog version on, as in
+ * LIST_SINCE, and seeder changes after the given position of the log with the given epoch (see ReplicationLog).
+ */
+public class ReplicateRequest {
+    private final int since;
+    private final long epoch;
+    private final long position;
+
+    public ReplicateRequest(int since, long epoch, long position) {
+        this.since = since;
+        this.epoch = epoch;
+        this.position = position;
+    }
+
+    public int getSince() {
+        return since;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(since);
+        dos.writeLong(epoch);
+        dos.writeLong(position);
+    }
+
+    public static ReplicateRequest readFrom(DataInputStream dis) throws IOException {
+        return new ReplicateRequest(
+                dis.readInt(),
+                dis.readLong(),
+                dis.readLong()
+        );
+    }
+}
@@ -0,0 +1,27 @@
+package ru.spbau.mit;
+
+/**
+ * Created by ldvsoft on 19.06.16.
+ *
+ * Answer of the primary to REPLICATE, read as a whole before anything of it is applied.
+ */
+public class ReplicateResponse {
+    private final CatalogChanges catalog;
+    private final byte[] seederChanges;
+
+    public ReplicateResponse(CatalogChanges catalog, byte[] seederChanges) {
+        this.catalog = catalog;
+        this.seederChanges = seederChanges;
+    }
+
+    public CatalogChanges getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * @return seeder changes as written by SeederRegistry.writeChanges
+     */
+    public byte[] getSeederChanges() {
+        return seederChanges;
+    }
+}
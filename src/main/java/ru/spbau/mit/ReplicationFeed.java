@@ -0,0 +1,83 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Created by ldvsoft on 21.06.16.
+ *
+ * Writes the changes of leases to a ReplicationLog, for replicas to follow (see SeederRegistry.writeChanges).
+ * Change: {@code <type: Byte>}, then the lease as in SeederRegistry.getEncodedLeases for LEASE,
+ * {@code <address: Long> <deadline: Long>} for RENEW, {@code <address: Long>} for DROP and
+ * {@code <index: Int>} for DOWNLOADED.
+ *
+ * Not thread-safe, same as the log.
+ */
+final class ReplicationFeed implements LeaseListener {
+    /*package*/ static final int EVENT_LEASE = 0;
+    /*package*/ static final int EVENT_RENEW = 1;
+    /*package*/ static final int EVENT_DROP = 2;
+    /*package*/ static final int EVENT_DOWNLOADED = 3;
+
+    private final ReplicationLog log;
+
+    @FunctionalInterface
+    private interface ChangeWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    /*package*/ ReplicationFeed(ReplicationLog log) {
+        this.log = log;
+    }
+
+    @Override
+    public void onAnnounced(SeederRegistry.Lease lease) {
+        append(dos -> {
+            dos.writeByte(EVENT_LEASE);
+            SeederRegistry.writeLease(dos, lease);
+        });
+    }
+
+    @Override
+    public void onRenewed(long address, long deadline) {
+        append(dos -> {
+            dos.writeByte(EVENT_RENEW);
+            dos.writeLong(address);
+            dos.writeLong(deadline);
+        });
+    }
+
+    @Override
+    public void onExpired(long address) {
+        append(dos -> {
+            dos.writeByte(EVENT_DROP);
+            dos.writeLong(address);
+        });
+    }
+
+    @Override
+    public void onSeederChanged(int index, boolean isComplete, int delta) {
+        // Replicas get the whole lease instead
+    }
+
+    @Override
+    public void onDownloaded(int index) {
+        append(dos -> {
+            dos.writeByte(EVENT_DOWNLOADED);
+            dos.writeInt(index);
+        });
+    }
+
+    private void append(ChangeWriter writer) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(stream));
+        } catch (IOException e) {
+            // Not thrown by memory streams
+            throw new UncheckedIOException(e);
+        }
+        log.append(stream.toByteArray());
+    }
+}
@@ -0,0 +1,96 @@
+package ru.spbau.mit;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+/**
+ * Created by ldvsoft on 11.06.16.
+ *
+ * Recent changes of the seeder registry, encoded, for replicas to follow. Changes are numbered from the
+ * start of the tracker; a replica asks for the ones after the last it has applied, and should take a snapshot
+ * instead if they are not kept any more. Only the last capacity changes are kept, in a ring.
+ * Every log has a random epoch, so that positions in the log of a restarted tracker are not mistaken for
+ * positions in the old one.
+ *
+ * Not thread-safe, ReplicationFeed appends to it and SeederRegistry reads it, both under the registry lock.
+ */
+final class ReplicationLog {
+    private final long epoch = new SecureRandom().nextLong();
+    private final byte[][] events;
+    /**
+     * Number of the change after the last one.
+     */
+    private long end = 0;
+
+    /**
+     * Place of a replica in the log of the primary.
+     */
+    /*package*/ static final class Position {
+        /**
+         * Position of a replica that has not applied anything yet.
+         */
+        /*package*/ static final Position NONE = new Position(0, -1);
+
+        private final long epoch;
+        private final long position;
+
+        /*package*/ Position(long epoch, long position) {
+            this.epoch = epoch;
+            this.position = position;
+        }
+
+        /*package*/ long getEpoch() {
+            return epoch;
+        }
+
+        /*package*/ long getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * @param capacity number of changes kept, 0 to keep none
+     */
+    /*package*/ ReplicationLog(int capacity) {
+        events = new byte[capacity][];
+    }
+
+    /*package*/ boolean isEnabled() {
+        return events.length > 0;
+    }
+
+    /*package*/ long getEpoch() {
+        return epoch;
+    }
+
+    /*package*/ long getEnd() {
+        return end;
+    }
+
+    /*package*/ void append(byte[] event) {
+        events[(int) (end % events.length)] = event;
+        end++;
+    }
+
+    /**
+     * @return whether all changes from the given position on are still kept; never if changes are not kept
+     */
+    /*package*/ boolean contains(long epoch, long position) {
+        return isEnabled()
+                && epoch == this.epoch
+                && position >= 0
+                && position <= end
+                && end - position <= events.length;
+    }
+
+    /**
+     * Writes {@code <count: Int> <changes: Bytes>}, changes being those from the given position on.
+     */
+    /*package*/ void writeSince(long position, DataOutputStream dos) throws IOException {
+        dos.writeInt((int) (end - position));
+        for (long i = position; i != end; i++) {
+            dos.write(events[(int) (i % events.length)]);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ru.spbau.mit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by ldvsoft on 21.06.16.
+ *
+ * Finds where a tracker request ends in the bytes of a session read so far, knowing the layout of every request,
+ * so that the NIO server passes only complete requests to its workers. Scanning goes on from where it has stopped,
+ * so a request split by the network is not scanned again from its start on every read.
+ */
+/*package*/ final class RequestScanner {
+    // Layout fields, positive ones are fixed sizes in bytes
+    // <length: Short> <bytes>, as written by writeUTF()
+    private static final int UTF = -1;
+    // <length: Int> <bytes>, parts bitmap of ClientInfo
+    private static final int BITMAP = -2;
+    // <count: Int>, then the next n fields count times, where n follows REPEAT in the layout
+    private static final int REPEAT = -3;
+
+    private static final int[] INTS = {REPEAT, 1, Integer.BYTES};
+    private static final int[][] LAYOUTS = new int[TorrentTrackerConnection.REQUEST_BULK_UPLOAD + 1][];
+
+    static {
+        LAYOUTS[TorrentTrackerConnection.REQUEST_LIST] = new int[0];
+        LAYOUTS[TorrentTrackerConnection.REQUEST_UPLOAD] = new int[] {UTF, Long.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_SOURCES] = INTS;
+        LAYOUTS[TorrentTrackerConnection.REQUEST_UPDATE] = new int[] {
+                IOUtils.ADDRESS_LENGTH, REPEAT, 1, Integer.BYTES
+        };
+        LAYOUTS[TorrentTrackerConnection.REQUEST_LIST_SINCE] = new int[] {Integer.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_ENTRY] = new int[] {Integer.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_UPDATE_PARTS] = new int[] {
+                IOUtils.ADDRESS_LENGTH, REPEAT, 2, Integer.BYTES, BITMAP
+        };
+        LAYOUTS[TorrentTrackerConnection.REQUEST_SOURCES_PARTS] = new int[] {Integer.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_ANNOUNCE_DELTA] = new int[] {
+                Integer.BYTES,
+                IOUtils.ADDRESS_LENGTH, REPEAT, 2, Integer.BYTES, BITMAP,
+                REPEAT, 1, Integer.BYTES,
+                REPEAT, 1, Integer.BYTES
+        };
+        LAYOUTS[TorrentTrackerConnection.REQUEST_KEEPALIVE] = new int[] {Short.BYTES, Integer.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_SEARCH] = new int[] {UTF, Integer.BYTES, Integer.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_SCRAPE] = INTS;
+        LAYOUTS[TorrentTrackerConnection.REQUEST_REPLICATE] = new int[] {Integer.BYTES, Long.BYTES, Long.BYTES};
+        LAYOUTS[TorrentTrackerConnection.REQUEST_BULK_UPLOAD] = new int[] {REPEAT, 2, UTF, Long.BYTES};
+    }
+
+    // Layout of the request scanned now, null until its code is read
+    private int[] layout = null;
+    private int field = 0;
+    private boolean isForwarded = false;
+    // Repeated fields being scanned, itemEnd is -1 outside of them
+    private int itemStart = 0;
+    private int itemEnd = -1;
+    private int itemsLeft = 0;
+    // Bytes of the request scanned so far
+    private int offset = 0;
+
+    /**
+     * Goes on scanning the request at the start of the buffer, the bytes read so far being before its position.
+     * Once a request is found complete, the scanner starts over for the next one.
+     * @return length of the request, or -1 if it has not come completely yet
+     * @throws IOException if the request is malformed or longer than TorrentTrackerConnection.MAX_REQUEST_SIZE
+     */
+    /*package*/ int scan(ByteBuffer input) throws IOException {
+        int end = input.position();
+        while (true) {
+            if (layout == null) {
+                if (offset == end) {
+                    return -1;
+                }
+                selectLayout(Byte.toUnsignedInt(input.get(offset)));
+                offset++;
+            } else if (field == itemEnd) {
+                itemsLeft--;
+                if (itemsLeft > 0) {
+                    field = itemStart;
+                } else {
+                    itemEnd = -1;
+                }
+            } else if (field == layout.length) {
+                int length = offset;
+                reset();
+                return length;
+            } else if (!scanField(input, end)) {
+                return -1;
+            }
+        }
+    }
+
+    private void selectLayout(int request) throws IOException {
+        if (request == TorrentTrackerConnection.REQUEST_FORWARDED && !isForwarded) {
+            // Forwarded request follows its prefix, it is scanned as a part of the same one
+            isForwarded = true;
+            return;
+        }
+        if (request >= LAYOUTS.length || LAYOUTS[request] == null) {
+            throw new IOException(String.format("Unknown request %d.", request));
+        }
+        layout = LAYOUTS[request];
+        field = 0;
+    }
+
+    /**
+     * @return whether the field has come completely and is skipped
+     */
+    private boolean scanField(ByteBuffer input, int end) throws IOException {
+        int kind = layout[field];
+        if (kind > 0) {
+            if (!has(end, kind)) {
+                return false;
+            }
+            offset += kind;
+            field++;
+            return true;
+        }
+        if (kind == UTF) {
+            if (!has(end, Short.BYTES)) {
+                return false;
+            }
+            int length = Short.BYTES + Short.toUnsignedInt(input.getShort(offset));
+            if (!has(end, length)) {
+                return false;
+            }
+            offset += length;
+            field++;
+            return true;
+        }
+        if (!has(end, Integer.BYTES)) {
+            return false;
+        }
+        int count = input.getInt(offset);
+        if (kind == BITMAP) {
+            if (count < 0 || count > ClientInfo.MAX_BITMAP_LENGTH) {
+                throw new IOException("Wrong parts bitmap length: " + count);
+            }
+            if (!has(end, Integer.BYTES + count)) {
+                return false;
+            }
+            offset += Integer.BYTES + count;
+            field++;
+            return true;
+        }
+        if (count < 0) {
+            throw new IOException(String.format("Wrong collection size %d.", count));
+        }
+        int start = field + 2;
+        int stop = start + layout[field + 1];
+        int itemSize = getFixedSize(start, stop);
+        if (itemSize != -1) {
+            // Items of a fixed size, such as ids, are skipped at once
+            long length = Integer.BYTES + (long) count * itemSize;
+            if (!has(end, length)) {
+                return false;
+            }
+            offset += (int) length;
+            field = stop;
+            return true;
+        }
+        offset += Integer.BYTES;
+        if (count == 0) {
+            field = stop;
+        } else {
+            field = start;
+            itemStart = start;
+            itemEnd = stop;
+            itemsLeft = count;
+        }
+        return true;
+    }
+
+    /**
+     * @return total size of the fields, or -1 if some of them has a variable size
+     */
+    private int getFixedSize(int start, int stop) {
+        int size = 0;
+        for (int i = start; i != stop; i++) {
+            if (layout[i] < 0) {
+                return -1;
+            }
+            size += layout[i];
+        }
+        return size;
+    }
+
+    /**
+     * @return whether the next length bytes of the request have been read
+     */
+    private boolean has(int end, long length) throws IOException {
+        if (offset + length > TorrentTrackerConnection.MAX_REQUEST_SIZE) {
+            throw new IOException(String.format(
+                    "Request of more than %d bytes.",
+                    TorrentTrackerConnection.MAX_REQUEST_SIZE
+            ));
+        }
+        return offset + length <= end;
+    }
+
+    private void reset() {
+        layout = null;
+        field = 0;
+        isForwarded = false;
+        itemEnd = -1;
+        itemsLeft = 0;
+        offset = 0;
+    }
+}
@@ -0,0 +1,51 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Created by ldvsoft on 05.06.16.
+ *
+ * Page of files whose names contain the query, ignoring case: at most limit of them with ids greater than after.
+ * Use -1 as after for the first page and the id of the last file got for the next ones.
+ */
+public class SearchRequest {
+    public static final int FIRST_PAGE = -1;
+
+    private final String query;
+    private final int after;
+    private final int limit;
+
+    public SearchRequest(String query, int after, int limit) {
+        this.query = query;
+        this.after = after;
+        this.limit = limit;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getAfter() {
+        return after;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeUTF(query);
+        dos.writeInt(after);
+        dos.writeInt(limit);
+    }
+
+    public static SearchRequest readFrom(DataInputStream dis) throws IOException {
+        return new SearchRequest(
+                dis.readUTF(),
+                dis.readInt(),
+                dis.readInt()
+        );
+    }
+}
@@ -0,0 +1,26 @@
+package ru.spbau.mit;
+
+import java.util.List;
+
+/**
+ * Created by ldvsoft on 05.06.16.
+ *
+ * Answer to SEARCH: matching entries by ascending id, and whether there are more after them.
+ */
+public class SearchResult {
+    private final List<FileEntry> entries;
+    private final boolean hasMore;
+
+    public SearchResult(List<FileEntry> entries, boolean hasMore) {
+        this.entries = entries;
+        this.hasMore = hasMore;
+    }
+
+    public List<FileEntry> getEntries() {
+        return entries;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
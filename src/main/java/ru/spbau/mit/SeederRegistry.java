@@ -0,0 +1,813 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created by ldvsoft on 14.05.16.
+ *
+ * Seeders known to the tracker. Every seeder address has exactly one lease, keeping sorted ids of its files and
+ * their part bitmaps if reported. Announce replaces them, or applies a delta against the version of the
+ * previous one; stale leases are dropped in bulk by the timing wheel. Seeders of every file are kept in a
+ * primitive hash set of packed addresses (see IOUtils.packAddress), with its SOURCES response cached.
+ *
+ * Every change of the leases is passed to LeaseListeners: SwarmCounters for SCRAPE and, if replicas are served,
+ * ReplicationFeed. The registry also notes when each file has last had leases, for archiving.
+ */
+final class SeederRegistry {
+    /*package*/ static final long TICK_DURATION = 1000;
+    private static final int INITIAL_FILES_CAPACITY = 16;
+    private static final int[] NO_IDS = new int[0];
+    private static final byte[][] NO_PARTS = new byte[0][];
+    private static final int UNKNOWN_PARTS = -1;
+    private static final byte[] EMPTY_SOURCES = new byte[Integer.BYTES];
+    private static final long NOT_CHECKED = 0;
+    private static final long ARCHIVED = Long.MAX_VALUE;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongHashMap<Lease> leases = new LongHashMap<>();
+    private LongHashSet[] seeders = new LongHashSet[INITIAL_FILES_CAPACITY];
+    private AtomicReferenceArray<byte[]> encodedSources = new AtomicReferenceArray<>(INITIAL_FILES_CAPACITY);
+    private final TimingWheel<Lease> wheel;
+    private int lastVersion = 0;
+    private int filesCount = 0;
+    private int[] partsCounts = new int[INITIAL_FILES_CAPACITY];
+    /**
+     * Last check that found leases of the file, ARCHIVED for archived files.
+     */
+    private long[] seededAt = new long[INITIAL_FILES_CAPACITY];
+    private final ReplicationLog log;
+    private final SwarmCounters swarms = new SwarmCounters();
+    private final LeaseListener[] listeners;
+
+    /*package*/ static final class Lease {
+        private final long address;
+        private int[] ids = NO_IDS;
+        /**
+         * Bitmap of available parts for every id, null if not reported.
+         */
+        private byte[][] parts = NO_PARTS;
+        private TimingWheel.Node<Lease> timeout;
+        private long deadline;
+        private int version;
+
+        private Lease(long address) {
+            this.address = address;
+        }
+    }
+
+    private static final class PeerParts {
+        private final long address;
+        private final byte[] bitmap;
+        private final int available;
+
+        private PeerParts(long address, byte[] bitmap) {
+            this.address = address;
+            this.bitmap = bitmap;
+            this.available = bitmap == null ? UNKNOWN_PARTS : PartsSet.getBitmapCount(bitmap);
+        }
+
+        /**
+         * Full seeds go first, then ones with unknown parts, then the rest.
+         */
+        private int getRank(int partsCount) {
+            if (available == partsCount) {
+                return 0;
+            }
+            return available == UNKNOWN_PARTS ? 1 : 2;
+        }
+    }
+
+    /**
+     * @param maxLeaseDuration longest lease expected, wheel is sized by it
+     * @param logCapacity number of changes kept for replicas, see ReplicationLog
+     */
+    /*package*/ SeederRegistry(long maxLeaseDuration, int logCapacity, long now) {
+        wheel = new TimingWheel<>(TICK_DURATION, (int) (maxLeaseDuration / TICK_DURATION) + 1, now);
+        log = new ReplicationLog(logCapacity);
+        listeners = log.isEnabled()
+                ? new LeaseListener[] {swarms, new ReplicationFeed(log)}
+                : new LeaseListener[] {swarms};
+    }
+
+    /**
+     * Registers the next file of the catalog, files should be added before they are announced.
+     */
+    /*package*/ void addFile(int partsCount) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            if (filesCount == partsCounts.length) {
+                int capacity = 2 * filesCount;
+                partsCounts = Arrays.copyOf(partsCounts, capacity);
+                seededAt = Arrays.copyOf(seededAt, capacity);
+            }
+            partsCounts[filesCount++] = partsCount;
+            swarms.addFile();
+        }
+    }
+
+    /*package*/ void archive(int index) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            seededAt[index] = ARCHIVED;
+        }
+    }
+
+    /**
+     * Marks the archived file just seeded. Files archived on load are added with unknown parts count.
+     */
+    /*package*/ void revive(int index, int partsCount, long now) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            partsCounts[index] = partsCount;
+            seededAt[index] = now;
+        }
+    }
+
+    /**
+     * Checks every file for leases. Files first checked now count as seeded now.
+     * @return ascending indexes of files to archive, having had no leases for the period, and of archived
+     * files to revive, having got leases anyway
+     */
+    /*package*/ List<Integer> checkIdle(long now, long period) {
+        List<Integer> result = new ArrayList<>();
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            for (int index = 0; index != filesCount; index++) {
+                boolean isSeeded = getSeeders(index) != null;
+                if (seededAt[index] == ARCHIVED) {
+                    if (isSeeded) {
+                        result.add(index);
+                    }
+                } else if (isSeeded || seededAt[index] == NOT_CHECKED) {
+                    seededAt[index] = now;
+                } else if (now - seededAt[index] >= period) {
+                    result.add(index);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Archives the file if it has still had no leases for the period, as checkIdle() may have found it a while
+     * ago: it could be announced, or revived by an announce, since then.
+     * @return whether the file has been archived
+     */
+    /*package*/ boolean archiveIfIdle(int index, long now, long period) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            boolean isSeeded = getSeeders(index) != null;
+            long since = seededAt[index];
+            if (isSeeded || since == ARCHIVED || since == NOT_CHECKED || now - since < period) {
+                return false;
+            }
+            seededAt[index] = ARCHIVED;
+            return true;
+        }
+    }
+
+    /**
+     * @param address packed seeder address
+     * @param fileIds files seeded, must be valid non-negative ids
+     * @param deadline time the lease expires unless renewed
+     */
+    /*package*/ void announce(long address, Collection<Integer> fileIds, long deadline) {
+        int[] ids = fileIds.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        announce(address, ids, new byte[ids.length][], Collections.emptyList(), deadline);
+    }
+
+    /**
+     * @param address packed seeder address
+     * @param files files seeded, must be valid non-negative ids, mapped to part bitmaps (null if unknown)
+     * @param completed files whose download the seeder has completed, counted if it has them all now
+     * @param deadline time the lease expires unless renewed
+     * @return version of the announce
+     */
+    /*package*/ int announce(
+            long address,
+            Map<Integer, byte[]> files,
+            Collection<Integer> completed,
+            long deadline
+    ) {
+        SortedMap<Integer, byte[]> sorted = new TreeMap<>(files);
+        int[] ids = sorted.keySet().stream().mapToInt(Integer::intValue).toArray();
+        return announce(address, ids, sorted.values().toArray(new byte[ids.length][]), completed, deadline);
+    }
+
+    /**
+     * Applies the changes to the files of the lease and renews it; only changed seeder sets are touched.
+     * @param base version of the announce the changes are made against
+     * @param changed files added or with new parts, mapped to part bitmaps (null if unknown); valid ids only
+     * @param removed files no longer seeded, these win over changed ones
+     * @param completed files whose download the seeder has completed, counted if it has them all now
+     * @return new version, or ANNOUNCE_REJECTED if the lease has expired or has another version
+     */
+    /*package*/ int announceDelta(
+            long address,
+            int base,
+            Map<Integer, byte[]> changed,
+            Collection<Integer> removed,
+            Collection<Integer> completed,
+            long deadline
+    ) {
+        SortedMap<Integer, byte[]> sortedChanged = new TreeMap<>(changed);
+        int[] removedIds = removed.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            Lease lease = leases.get(address);
+            if (lease == null || lease.version != base) {
+                return TorrentTrackerConnection.ANNOUNCE_REJECTED;
+            }
+            renew(lease, deadline);
+            applyDelta(lease, sortedChanged, removedIds);
+            countCompleted(lease, completed);
+            lease.version = nextVersion();
+            for (LeaseListener listener : listeners) {
+                listener.onAnnounced(lease);
+            }
+            return lease.version;
+        }
+    }
+
+    /**
+     * Renews the lease if it is still of given version.
+     */
+    /*package*/ boolean keepAlive(long address, int version, long deadline) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            Lease lease = leases.get(address);
+            if (lease == null || lease.version != version) {
+                return false;
+            }
+            renew(lease, deadline);
+            for (LeaseListener listener : listeners) {
+                listener.onRenewed(address, deadline);
+            }
+            return true;
+        }
+    }
+
+    private int announce(long address, int[] ids, byte[][] parts, Collection<Integer> completed, long deadline) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            Lease lease = leases.get(address);
+            if (lease == null) {
+                lease = new Lease(address);
+                lease.timeout = wheel.schedule(lease, deadline);
+                lease.deadline = deadline;
+                leases.put(address, lease);
+            } else {
+                renew(lease, deadline);
+            }
+            count(lease, -1);
+            if (!Arrays.equals(lease.ids, ids)) {
+                unlink(lease);
+                lease.ids = ids;
+                link(lease);
+            }
+            lease.parts = parts;
+            count(lease, 1);
+            countCompleted(lease, completed);
+            lease.version = nextVersion();
+            for (LeaseListener listener : listeners) {
+                listener.onAnnounced(lease);
+            }
+            return lease.version;
+        }
+    }
+
+    /**
+     * @return packed addresses of all seeders of any of given files, without duplicates
+     */
+    /*package*/ long[] getSources(Collection<Integer> fileIds) {
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            if (fileIds.size() == 1) {
+                LongHashSet set = getSeeders(fileIds.iterator().next());
+                return set == null ? new long[0] : set.toArray();
+            }
+            LongHashSet result = new LongHashSet();
+            for (int id : fileIds) {
+                LongHashSet set = getSeeders(id);
+                if (set != null) {
+                    set.addAllTo(result);
+                }
+            }
+            return result.toArray();
+        }
+    }
+
+    /**
+     * @return SOURCES response for a single file, encoded; must not be modified
+     */
+    /*package*/ byte[] getEncodedSources(int id) throws IOException {
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            if (id < 0 || id >= encodedSources.length()) {
+                return EMPTY_SOURCES;
+            }
+            byte[] encoded = encodedSources.get(id);
+            if (encoded == null) {
+                LongHashSet set = seeders[id];
+                encoded = set == null ? EMPTY_SOURCES : encode(set.toArray());
+                // Writers are excluded by the lock, so concurrent readers can only store the same contents
+                encodedSources.set(id, encoded);
+            }
+            return encoded;
+        }
+    }
+
+    /**
+     * Format: {@code <count: Int> (<ip: Int> <port: Short> <available: Int> <length: Int> <bitmap: Bytes>)*},
+     * where available is -1 and bitmap is empty if the seeder has not reported its parts.
+     * Seeders are chosen by the selector first; full seeds go first, then seeders with unknown parts, then
+     * the rest by number of parts available, otherwise the order of the selector is kept.
+     * @return encoded SOURCES_PARTS response
+     */
+    /*package*/ byte[] getEncodedPartSources(int id, int partsCount, PeerSelector selector, long requester)
+            throws IOException {
+        List<PeerParts> peers = new ArrayList<>();
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            LongHashSet set = getSeeders(id);
+            if (set != null) {
+                long[] addresses = set.toArray();
+                int count = selector.select(addresses, requester);
+                for (int i = 0; i != count; i++) {
+                    Lease lease = leases.get(addresses[i]);
+                    peers.add(new PeerParts(addresses[i], lease.parts[Arrays.binarySearch(lease.ids, id)]));
+                }
+            }
+        }
+        peers.sort(Comparator
+                .comparingInt((PeerParts peer) -> peer.getRank(partsCount))
+                .thenComparing(Comparator.comparingInt((PeerParts peer) -> peer.available).reversed())
+        );
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(stream);
+        dos.writeInt(peers.size());
+        for (PeerParts peer : peers) {
+            IOUtils.writePackedAddress(dos, peer.address);
+            dos.writeInt(peer.available);
+            if (peer.bitmap == null) {
+                dos.writeInt(0);
+            } else {
+                dos.writeInt(peer.bitmap.length);
+                dos.write(peer.bitmap);
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * @param indexes local indexes of files, -1 for unknown ones
+     * @return counters of every file, in the same order
+     */
+    /*package*/ List<SwarmStats> getStats(List<Integer> indexes) {
+        List<SwarmStats> result = new ArrayList<>(indexes.size());
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            for (int index : indexes) {
+                if (index < 0 || index >= filesCount) {
+                    result.add(SwarmStats.EMPTY);
+                } else {
+                    result.add(swarms.getStats(index));
+                }
+            }
+        }
+        return result;
+    }
+
+    /*package*/ int getLeasesCount() {
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            return leases.size();
+        }
+    }
+
+    /*package*/ void expire(long now) {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            for (Lease lease : wheel.advance(now)) {
+                remove(lease);
+                for (LeaseListener listener : listeners) {
+                    listener.onExpired(lease.address);
+                }
+            }
+        }
+    }
+
+    /**
+     * Format: {@code <last version: Int> <count: Int> (<address: Long> <deadline: Long> <version: Int>
+     * <count: Int> (<id: Int> <length: Int> <bitmap: Bytes>)*)* <files count: Int> (<downloaded: Int>)*},
+     * where length is -1 for unknown parts. Completed downloads counters go with the leases, as the other
+     * counters are restored from them.
+     * Leases are copied under the lock, so that announces are not held while the copy is written.
+     * @return all leases, encoded
+     */
+    /*package*/ byte[] getEncodedLeases() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(stream);
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            writeLeases(dos);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Restores leases written by getEncodedLeases() that have not expired yet, with their versions, so that
+     * seeders may go on with deltas and keep-alives. Files not added to the registry are dropped.
+     */
+    /*package*/ void readLeases(DataInputStream dis, long now) throws IOException {
+        int savedVersion = dis.readInt();
+        int count = readCount(dis, Integer.MAX_VALUE);
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            lastVersion = Math.max(lastVersion, savedVersion);
+            for (int i = 0; i != count; i++) {
+                Lease lease = readLease(dis);
+                if (lease.deadline > now && !leases.containsKey(lease.address)) {
+                    put(lease);
+                }
+            }
+            swarms.readDownloaded(dis);
+        }
+    }
+
+    /**
+     * Writes what a replica needs to catch up, having applied the changes of the log with given epoch
+     * up to given position: {@code <snapshot: Boolean> <epoch: Long> <end: Long>}, then the changes after that
+     * position (see ReplicationLog.writeSince), or all leases as in getEncodedLeases if those are not kept.
+     */
+    /*package*/ void writeChanges(DataOutputStream dos, long epoch, long position) throws IOException {
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            boolean isSnapshot = !log.contains(epoch, position);
+            dos.writeBoolean(isSnapshot);
+            dos.writeLong(log.getEpoch());
+            dos.writeLong(log.getEnd());
+            if (isSnapshot) {
+                writeLeases(dos);
+            } else {
+                log.writeSince(position, dos);
+            }
+        }
+    }
+
+    /**
+     * Applies what writeChanges has written, replacing all leases with a snapshot. Changes are checked as a
+     * whole first, so they are applied either all or none.
+     * @return position in the log of the primary to ask from next time
+     */
+    /*package*/ ReplicationLog.Position readChanges(byte[] changes, long now) throws IOException {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            checkChanges(new DataInputStream(new ByteArrayInputStream(changes)));
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(changes));
+            boolean isSnapshot = dis.readBoolean();
+            ReplicationLog.Position position = new ReplicationLog.Position(dis.readLong(), dis.readLong());
+            if (isSnapshot) {
+                for (Lease lease : leases.values()) {
+                    wheel.cancel(lease.timeout);
+                    remove(lease);
+                }
+                swarms.clearDownloaded();
+                readLeases(dis, now);
+                return position;
+            }
+            int count = readCount(dis, Integer.MAX_VALUE);
+            for (int i = 0; i != count; i++) {
+                applyChange(dis, now);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Reads what writeChanges has written without applying it; needs the lock.
+     * @throws IOException if the changes could not be applied
+     */
+    private void checkChanges(DataInputStream dis) throws IOException {
+        boolean isSnapshot = dis.readBoolean();
+        dis.readLong();
+        dis.readLong();
+        if (isSnapshot) {
+            dis.readInt();
+            int count = readCount(dis, Integer.MAX_VALUE);
+            for (int i = 0; i != count; i++) {
+                readLease(dis);
+            }
+            dis.readFully(new byte[readCount(dis, filesCount) * Integer.BYTES]);
+        } else {
+            int count = readCount(dis, Integer.MAX_VALUE);
+            for (int i = 0; i != count; i++) {
+                int type = dis.readUnsignedByte();
+                switch (type) {
+                    case ReplicationFeed.EVENT_LEASE:
+                        readLease(dis);
+                        break;
+                    case ReplicationFeed.EVENT_RENEW:
+                        dis.readLong();
+                        dis.readLong();
+                        break;
+                    case ReplicationFeed.EVENT_DROP:
+                        dis.readLong();
+                        break;
+                    case ReplicationFeed.EVENT_DOWNLOADED:
+                        readIndex(dis);
+                        break;
+                    default:
+                        throw new IOException(String.format("Unknown change %d.", type));
+                }
+            }
+        }
+        if (dis.read() != -1) {
+            throw new IOException("Unexpected bytes after the changes.");
+        }
+    }
+
+    private void applyChange(DataInputStream dis, long now) throws IOException {
+        int type = dis.readUnsignedByte();
+        Lease lease;
+        switch (type) {
+            case ReplicationFeed.EVENT_LEASE:
+                Lease newLease = readLease(dis);
+                lease = leases.get(newLease.address);
+                if (lease != null) {
+                    wheel.cancel(lease.timeout);
+                    remove(lease);
+                }
+                if (newLease.deadline > now) {
+                    lastVersion = Math.max(lastVersion, newLease.version);
+                    put(newLease);
+                }
+                break;
+            case ReplicationFeed.EVENT_RENEW:
+                lease = leases.get(dis.readLong());
+                long deadline = dis.readLong();
+                if (lease != null) {
+                    renew(lease, deadline);
+                }
+                break;
+            case ReplicationFeed.EVENT_DROP:
+                lease = leases.get(dis.readLong());
+                if (lease != null) {
+                    wheel.cancel(lease.timeout);
+                    remove(lease);
+                }
+                break;
+            case ReplicationFeed.EVENT_DOWNLOADED:
+                // Replicated changes are not logged again, as other replicas follow the primary
+                swarms.onDownloaded(readIndex(dis));
+                break;
+            default:
+                throw new IOException(String.format("Unknown change %d.", type));
+        }
+    }
+
+    private void writeLeases(DataOutputStream dos) throws IOException {
+        dos.writeInt(lastVersion);
+        dos.writeInt(leases.size());
+        for (Lease lease : leases.values()) {
+            writeLease(dos, lease);
+        }
+        swarms.writeDownloaded(dos);
+    }
+
+    /*package*/ static void writeLease(DataOutputStream dos, Lease lease) throws IOException {
+        dos.writeLong(lease.address);
+        dos.writeLong(lease.deadline);
+        dos.writeInt(lease.version);
+        dos.writeInt(lease.ids.length);
+        for (int i = 0; i != lease.ids.length; i++) {
+            dos.writeInt(lease.ids[i]);
+            if (lease.parts[i] == null) {
+                dos.writeInt(UNKNOWN_PARTS);
+            } else {
+                dos.writeInt(lease.parts[i].length);
+                dos.write(lease.parts[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a lease written by writeLease, possibly from a damaged file or a primary out of step. Every file
+     * of it should be added to the registry already, with bitmap of its parts count, otherwise nothing is
+     * trusted.
+     * @return lease not registered yet
+     */
+    private Lease readLease(DataInputStream dis) throws IOException {
+        Lease lease = new Lease(dis.readLong());
+        lease.deadline = dis.readLong();
+        lease.version = dis.readInt();
+        int idsCount = readCount(dis, filesCount);
+        lease.ids = new int[idsCount];
+        lease.parts = new byte[idsCount][];
+        for (int j = 0; j != idsCount; j++) {
+            int id = readIndex(dis);
+            int length = dis.readInt();
+            if (length != UNKNOWN_PARTS) {
+                if (length != PartsSet.getBitmapLength(partsCounts[id])) {
+                    throw new IOException(String.format("Bitmap of %d bytes for file %d.", length, id));
+                }
+                lease.parts[j] = new byte[length];
+                dis.readFully(lease.parts[j]);
+            }
+            lease.ids[j] = id;
+        }
+        return lease;
+    }
+
+    /**
+     * @return count read, checked to be from 0 to given maximum
+     */
+    private static int readCount(DataInputStream dis, int max) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > max) {
+            throw new IOException(String.format("Count %d is out of bounds.", count));
+        }
+        return count;
+    }
+
+    /**
+     * @return local index read, checked to be of a file added to the registry
+     */
+    private int readIndex(DataInputStream dis) throws IOException {
+        int id = dis.readInt();
+        if (id < 0 || id >= filesCount) {
+            throw new IOException(String.format("Unknown file %d.", id));
+        }
+        return id;
+    }
+
+    private void put(Lease lease) {
+        lease.timeout = wheel.schedule(lease, lease.deadline);
+        leases.put(lease.address, lease);
+        link(lease);
+        count(lease, 1);
+    }
+
+    /**
+     * Forgets the lease, which should not be in the wheel any more.
+     */
+    private void remove(Lease lease) {
+        count(lease, -1);
+        unlink(lease);
+        leases.remove(lease.address);
+    }
+
+    private void renew(Lease lease, long deadline) {
+        wheel.reschedule(lease.timeout, deadline);
+        lease.deadline = deadline;
+    }
+
+    private LongHashSet getSeeders(int id) {
+        if (id < 0 || id >= seeders.length) {
+            return null;
+        }
+        return seeders[id];
+    }
+
+    private int nextVersion() {
+        // Versions are positive, so they never match ANNOUNCE_REJECTED
+        lastVersion = lastVersion == Integer.MAX_VALUE ? 1 : lastVersion + 1;
+        return lastVersion;
+    }
+
+    /**
+     * Merges sorted changes into sorted ids of the lease, linking and unlinking only the ids that differ.
+     */
+    private void applyDelta(Lease lease, SortedMap<Integer, byte[]> changed, int[] removed) {
+        int[] ids = new int[lease.ids.length + changed.size()];
+        byte[][] parts = new byte[ids.length][];
+        int count = 0;
+        int i = 0;
+        Iterator<Map.Entry<Integer, byte[]>> iterator = changed.entrySet().iterator();
+        Map.Entry<Integer, byte[]> next = iterator.hasNext() ? iterator.next() : null;
+        while (i < lease.ids.length || next != null) {
+            int id;
+            byte[] bitmap;
+            byte[] oldBitmap = null;
+            boolean isNew = false;
+            if (next == null || (i < lease.ids.length && lease.ids[i] < next.getKey())) {
+                id = lease.ids[i];
+                bitmap = lease.parts[i];
+                oldBitmap = bitmap;
+                i++;
+            } else {
+                id = next.getKey();
+                bitmap = next.getValue();
+                if (i < lease.ids.length && lease.ids[i] == id) {
+                    oldBitmap = lease.parts[i];
+                    i++;
+                } else {
+                    isNew = true;
+                }
+                next = iterator.hasNext() ? iterator.next() : null;
+            }
+            if (Arrays.binarySearch(removed, id) >= 0) {
+                if (!isNew) {
+                    unlink(lease.address, id);
+                    count(id, oldBitmap, -1);
+                }
+                continue;
+            }
+            if (isNew) {
+                link(lease.address, id);
+                count(id, bitmap, 1);
+            } else if (bitmap != oldBitmap) {
+                count(id, oldBitmap, -1);
+                count(id, bitmap, 1);
+            }
+            ids[count] = id;
+            parts[count] = bitmap;
+            count++;
+        }
+        lease.ids = Arrays.copyOf(ids, count);
+        lease.parts = Arrays.copyOf(parts, count);
+    }
+
+    private void count(Lease lease, int delta) {
+        for (int i = 0; i != lease.ids.length; i++) {
+            count(lease.ids[i], lease.parts[i], delta);
+        }
+    }
+
+    /**
+     * Tells listeners that a seeder has gained (delta 1) or lost (delta -1) the file with given parts.
+     */
+    private void count(int id, byte[] bitmap, int delta) {
+        boolean isComplete = isComplete(id, bitmap);
+        for (LeaseListener listener : listeners) {
+            listener.onSeederChanged(id, isComplete, delta);
+        }
+    }
+
+    private void countCompleted(Lease lease, Collection<Integer> completed) {
+        for (int id : completed) {
+            int position = Arrays.binarySearch(lease.ids, id);
+            if (position >= 0 && isComplete(id, lease.parts[position])) {
+                for (LeaseListener listener : listeners) {
+                    listener.onDownloaded(id);
+                }
+            }
+        }
+    }
+
+    private boolean isComplete(int id, byte[] bitmap) {
+        return bitmap == null || PartsSet.getBitmapCount(bitmap) == partsCounts[id];
+    }
+
+    private void link(Lease lease) {
+        for (int id : lease.ids) {
+            link(lease.address, id);
+        }
+    }
+
+    private void unlink(Lease lease) {
+        for (int id : lease.ids) {
+            unlink(lease.address, id);
+        }
+    }
+
+    private void link(long address, int id) {
+        if (id >= seeders.length) {
+            int capacity = seeders.length;
+            while (capacity <= id) {
+                capacity *= 2;
+            }
+            seeders = Arrays.copyOf(seeders, capacity);
+            AtomicReferenceArray<byte[]> newEncodedSources = new AtomicReferenceArray<>(capacity);
+            for (int i = 0; i != encodedSources.length(); i++) {
+                newEncodedSources.set(i, encodedSources.get(i));
+            }
+            encodedSources = newEncodedSources;
+        }
+        if (seeders[id] == null) {
+            seeders[id] = new LongHashSet();
+        }
+        seeders[id].add(address);
+        encodedSources.set(id, null);
+    }
+
+    private void unlink(long address, int id) {
+        seeders[id].remove(address);
+        if (seeders[id].isEmpty()) {
+            seeders[id] = null;
+        }
+        encodedSources.set(id, null);
+    }
+
+    private static byte[] encode(long[] addresses) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(
+                Integer.BYTES + addresses.length * IOUtils.ADDRESS_LENGTH
+        );
+        DataOutputStream dos = new DataOutputStream(stream);
+        dos.writeInt(addresses.length);
+        for (long address : addresses) {
+            IOUtils.writePackedAddress(dos, address);
+        }
+        return stream.toByteArray();
+    }
+}
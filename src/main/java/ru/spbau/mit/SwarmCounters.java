@@ -0,0 +1,97 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Created by ldvsoft on 21.06.16.
+ *
+ * SCRAPE counters of every file: seeders with all parts (or unknown ones), seeders with some parts and
+ * completed downloads. They are adjusted on every change of the leases, so reading them costs nothing.
+ *
+ * Not thread-safe, SeederRegistry changes and reads them under its lock.
+ */
+final class SwarmCounters implements LeaseListener {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] complete = new int[INITIAL_CAPACITY];
+    private int[] incomplete = new int[INITIAL_CAPACITY];
+    private int[] downloaded = new int[INITIAL_CAPACITY];
+    private int filesCount = 0;
+
+    /*package*/ void addFile() {
+        if (filesCount == complete.length) {
+            int capacity = 2 * filesCount;
+            complete = Arrays.copyOf(complete, capacity);
+            incomplete = Arrays.copyOf(incomplete, capacity);
+            downloaded = Arrays.copyOf(downloaded, capacity);
+        }
+        filesCount++;
+    }
+
+    /**
+     * @return counters of the file, which should be added
+     */
+    /*package*/ SwarmStats getStats(int index) {
+        return new SwarmStats(complete[index], incomplete[index], downloaded[index]);
+    }
+
+    @Override
+    public void onAnnounced(SeederRegistry.Lease lease) {
+        // Files of the lease are counted one by one
+    }
+
+    @Override
+    public void onRenewed(long address, long deadline) {
+        // Renewal changes no counters
+    }
+
+    @Override
+    public void onExpired(long address) {
+        // Files of the lease are counted one by one
+    }
+
+    @Override
+    public void onSeederChanged(int index, boolean isComplete, int delta) {
+        if (isComplete) {
+            complete[index] += delta;
+        } else {
+            incomplete[index] += delta;
+        }
+    }
+
+    @Override
+    public void onDownloaded(int index) {
+        downloaded[index]++;
+    }
+
+    /**
+     * Format: {@code <files count: Int> (<downloaded: Int>)*}. Only completed downloads are written, as the
+     * other counters are restored from the leases.
+     */
+    /*package*/ void writeDownloaded(DataOutputStream dos) throws IOException {
+        dos.writeInt(filesCount);
+        for (int i = 0; i != filesCount; i++) {
+            dos.writeInt(downloaded[i]);
+        }
+    }
+
+    /**
+     * Reads what writeDownloaded() has written, for files added already.
+     */
+    /*package*/ void readDownloaded(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > filesCount) {
+            throw new IOException(String.format("Count %d is out of bounds.", count));
+        }
+        for (int i = 0; i != count; i++) {
+            downloaded[i] = dis.readInt();
+        }
+    }
+
+    /*package*/ void clearDownloaded() {
+        Arrays.fill(downloaded, 0);
+    }
+}
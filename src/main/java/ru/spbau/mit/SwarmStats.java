@@ -0,0 +1,77 @@
+package ru.spbau.mit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Created by ldvsoft on 10.06.16.
+ *
+ * Answer to SCRAPE for one file: seeders having all of it, leechers having only some parts, and how many
+ * downloads of it have been reported complete. Seeders that do not report parts are counted as seeders.
+ */
+public class SwarmStats {
+    public static final SwarmStats EMPTY = new SwarmStats(0, 0, 0);
+    private static final int HASH_BASE = 31;
+
+    private final int seeders;
+    private final int leechers;
+    private final int downloaded;
+
+    public SwarmStats(int seeders, int leechers, int downloaded) {
+        this.seeders = seeders;
+        this.leechers = leechers;
+        this.downloaded = downloaded;
+    }
+
+    public int getSeeders() {
+        return seeders;
+    }
+
+    public int getLeechers() {
+        return leechers;
+    }
+
+    public int getDownloaded() {
+        return downloaded;
+    }
+
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(seeders);
+        dos.writeInt(leechers);
+        dos.writeInt(downloaded);
+    }
+
+    public static SwarmStats readFrom(DataInputStream dis) throws IOException {
+        return new SwarmStats(
+                dis.readInt(),
+                dis.readInt(),
+                dis.readInt()
+        );
+    }
+
+    @Override
+    public int hashCode() {
+        return seeders + HASH_BASE * (leechers + HASH_BASE * downloaded);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SwarmStats)) {
+            return false;
+        }
+        SwarmStats that = (SwarmStats) obj;
+        return this.seeders == that.seeders
+                && this.leechers == that.leechers
+                && this.downloaded == that.downloaded;
+    }
+
+    @Override
+    public String toString() {
+        return "SwarmStats{"
+                + "seeders=" + seeders
+                + ", leechers=" + leechers
+                + ", downloaded=" + downloaded
+                + '}';
+    }
+}
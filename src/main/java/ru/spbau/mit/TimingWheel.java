@@ -0,0 +1,114 @@
+package ru.spbau.mit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by ldvsoft on 14.05.16.
+ *
+ * Hashed timing wheel: scheduling, rescheduling and cancelling are O(1), expired values are collected
+ * in bulk by advance(). Not thread-safe, owner is responsible for locking.
+ */
+final class TimingWheel<T> {
+    private final long tickDuration;
+    private final Node<T>[] slots;
+    private final int mask;
+    private long currentTick;
+    private int size = 0;
+
+    /*package*/ static final class Node<T> {
+        private final T value;
+        private long deadlineTick;
+        private Node<T> prev;
+        private Node<T> next;
+
+        private Node(T value) {
+            this.value = value;
+        }
+
+        /*package*/ T getValue() {
+            return value;
+        }
+
+        private boolean isScheduled() {
+            return prev != null;
+        }
+    }
+
+    /**
+     * @param tickDuration wheel resolution, in milliseconds
+     * @param slotsCount number of slots, rounded up to the power of two
+     * @param now current time, in milliseconds
+     */
+    /*package*/ TimingWheel(long tickDuration, int slotsCount, long now) {
+        this.tickDuration = tickDuration;
+        int capacity = Integer.highestOneBit(Math.max(1, slotsCount - 1)) << 1;
+        @SuppressWarnings("unchecked")
+        Node<T>[] heads = (Node<T>[]) new Node<?>[capacity];
+        slots = heads;
+        for (int i = 0; i != capacity; i++) {
+            Node<T> head = new Node<>(null);
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+        mask = capacity - 1;
+        currentTick = now / tickDuration;
+    }
+
+    /*package*/ int size() {
+        return size;
+    }
+
+    /*package*/ Node<T> schedule(T value, long deadline) {
+        Node<T> node = new Node<>(value);
+        reschedule(node, deadline);
+        return node;
+    }
+
+    /*package*/ void reschedule(Node<T> node, long deadline) {
+        cancel(node);
+        node.deadlineTick = Math.max(currentTick + 1, (deadline + tickDuration - 1) / tickDuration);
+        Node<T> head = slots[(int) (node.deadlineTick & mask)];
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        size++;
+    }
+
+    /*package*/ void cancel(Node<T> node) {
+        if (!node.isScheduled()) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        size--;
+    }
+
+    /**
+     * Moves the wheel to the given time.
+     * @return values whose deadline has passed, they are no longer scheduled
+     */
+    /*package*/ List<T> advance(long now) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = now / tickDuration;
+        long fromTick = Math.max(currentTick + 1, targetTick - mask);
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            Node<T> head = slots[(int) (tick & mask)];
+            Node<T> node = head.next;
+            while (node != head) {
+                Node<T> next = node.next;
+                if (node.deadlineTick <= targetTick) {
+                    cancel(node);
+                    expired.add(node.value);
+                }
+                node = next;
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        return expired;
+    }
+}
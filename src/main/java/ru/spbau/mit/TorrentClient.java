@@ -1,9 +1,20 @@
 package ru.spbau.mit;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static ru.spbau.mit.TorrentClientState.FileState;
 
@@ -11,31 +22,168 @@ import static ru.spbau.mit.TorrentClientState.FileState;
  * Created by ldvsoft on 22.03.16.
  */
 public class TorrentClient extends TorrentClientBase {
+    private static final int SCRAPE_BATCH = 500;
+    private static final int UPLOAD_BATCH = TorrentTrackerConnection.MAX_BULK_UPLOAD;
+    private static final int UPLOAD_THREADS = 4;
+
     public TorrentClient(TorrentClientState state) {
         super(state);
     }
 
     public List<FileEntry> requestList() throws IOException {
-        try (TorrentTrackerConnection connection = connectToTracker()) {
-            connection.writeListRequest();
-            return connection.readListResponse();
+        List<FileEntry> result = new ArrayList<>();
+        for (int shard = 0; shard != getShardsCount(); shard++) {
+            result.addAll(readShard(shard, connection -> {
+                connection.writeListRequest();
+                return connection.readListResponse();
+            }));
+        }
+        result.sort(Comparator.comparingInt(FileEntry::getId));
+        return result;
+    }
+
+    /**
+     * Asks every shard for a page of files with names containing the query, see SearchRequest.
+     * @return matches by ascending id, at most limit of them (and no more than MAX_SEARCH_LIMIT)
+     */
+    public SearchResult search(String query, int after, int limit) throws IOException {
+        // Merging pages is only right when every shard cuts them the same
+        int pageLimit = Math.min(limit, TorrentTrackerConnection.MAX_SEARCH_LIMIT);
+        SearchRequest request = new SearchRequest(query, after, pageLimit);
+        List<FileEntry> found = new ArrayList<>();
+        boolean hasMore = false;
+        for (int shard = 0; shard != getShardsCount(); shard++) {
+            SearchResult page = readShard(shard, connection -> {
+                connection.writeSearchRequest(request);
+                return connection.readSearchResponse();
+            });
+            found.addAll(page.getEntries());
+            hasMore |= page.hasMore();
+        }
+        found.sort(Comparator.comparingInt(FileEntry::getId));
+        if (found.size() > pageLimit) {
+            // Shards are asked for a whole page each, the rest is left for the next one
+            found = new ArrayList<>(found.subList(0, pageLimit));
+            hasMore = true;
+        }
+        return new SearchResult(found, hasMore);
+    }
+
+    /**
+     * Asks the shards owning the files for their swarm counters, in batches small enough for a datagram.
+     * @return counters by file id, in the order of ids
+     */
+    public Map<Integer, SwarmStats> scrape(List<Integer> ids) throws IOException {
+        int shardsCount = getShardsCount();
+        List<List<Integer>> byShard = new ArrayList<>();
+        for (int shard = 0; shard != shardsCount; shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (int id : ids) {
+            byShard.get(IdSpace.getShard(id, shardsCount)).add(id);
+        }
+        Map<Integer, SwarmStats> result = new LinkedHashMap<>();
+        for (int id : ids) {
+            result.put(id, SwarmStats.EMPTY);
+        }
+        for (int shard = 0; shard != shardsCount; shard++) {
+            List<Integer> shardIds = byShard.get(shard);
+            for (int from = 0; from < shardIds.size(); from += SCRAPE_BATCH) {
+                List<Integer> batch = shardIds.subList(from, Math.min(from + SCRAPE_BATCH, shardIds.size()));
+                List<SwarmStats> stats = readShardUdp(shard, connection -> {
+                    connection.writeScrapeRequest(batch);
+                    return connection.readScrapeResponse();
+                });
+                for (int i = 0; i != batch.size(); i++) {
+                    result.put(batch.get(i), stats.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Brings the cached catalog up to date, fetching only entries uploaded or revived since the last sync.
+     * @return whole catalog
+     */
+    public List<FileEntry> syncCatalog() throws IOException {
+        int shardsCount = getShardsCount();
+        for (int shard = 0; shard != shardsCount; shard++) {
+            syncShard(shard, shardsCount);
+        }
+        try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
+            return new ArrayList<>(state.catalog.values());
+        }
+    }
+
+    private void syncShard(int shard, int shardsCount) throws IOException {
+        while (true) {
+            int since;
+            try (LockHandler handler = LockHandler.lock(state.lock.writeLock())) {
+                if (state.catalogVersions.length != shardsCount) {
+                    state.catalog.clear();
+                    state.catalogVersions = new int[shardsCount];
+                }
+                since = state.catalogVersions[shard];
+            }
+            TrackerConnectionPool.Call<CatalogDelta> listSince = connection -> {
+                connection.writeListSinceRequest(since);
+                return connection.readListSinceResponse();
+            };
+            CatalogDelta delta = readShard(shard, listSince);
+            if (delta.getVersion() < since && hasReplicas(shard)) {
+                // Replica may just lag behind, only the primary can tell that files are lost
+                delta = callShard(shard, listSince);
+            }
+            try (LockHandler handler = LockHandler.lock(state.lock.writeLock())) {
+                if (delta.getVersion() < since) {
+                    // Tracker has lost some files we know about, cache of this shard is useless
+                    state.catalog.keySet().removeIf(id -> IdSpace.getShard(id, shardsCount) == shard);
+                    state.catalogVersions[shard] = 0;
+                    continue;
+                }
+                for (FileEntry entry : delta.getEntries()) {
+                    state.catalog.put(entry.getId(), entry);
+                }
+                state.catalogVersions[shard] = Math.max(state.catalogVersions[shard], delta.getVersion());
+                return;
+            }
         }
     }
 
     public boolean get(int id) throws IOException {
+        return get(id, PiecePicker.Strategy.RAREST_FIRST);
+    }
+
+    /**
+     * Marks the file for download, its parts are to be picked with the given strategy.
+     * @return false if the file is already marked or the tracker does not have it
+     */
+    public boolean get(int id, PiecePicker.Strategy strategy) throws IOException {
+        FileEntry serverEntry;
         try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
             if (state.files.containsKey(id)) {
                 return false;
             }
+            serverEntry = state.catalog.get(id);
+        }
+        TrackerConnectionPool.Call<FileEntry> entry = connection -> {
+            connection.writeEntryRequest(id);
+            return connection.readEntryResponse();
+        };
+        if (serverEntry == null) {
+            serverEntry = readTracker(id, entry);
+        }
+        if (serverEntry == null && hasReplicas(IdSpace.getShard(id, getShardsCount()))) {
+            // Replica may not have the file yet
+            serverEntry = callTracker(id, entry);
         }
-        FileEntry serverEntry = requestList().stream()
-                .filter(entry -> entry.getId() == id)
-                .findAny().orElse(null);
         if (serverEntry == null) {
             return false;
         }
         try (LockHandler handler = LockHandler.lock(state.lock.writeLock())) {
-            state.files.put(id, new FileState(serverEntry, null, state.workingDir));
+            state.catalog.put(id, serverEntry);
+            state.files.put(id, new FileState(serverEntry, null, state.workingDir, strategy));
         }
         return true;
     }
@@ -45,16 +193,107 @@ public class TorrentClient extends TorrentClientBase {
             throw new IllegalArgumentException("File not exists or is not a regular file.");
         }
 
-        FileEntry newEntry = new FileEntry(path.getFileName().toString(), Files.size(path));
-        try (TorrentTrackerConnection connection = connectToTracker()) {
-            connection.writeUploadRequest(newEntry);
-            int newId = connection.readUploadResponse();
-            newEntry = newEntry.setId(newId);
-        }
+        FileEntry fileEntry = new FileEntry(path.getFileName().toString(), Files.size(path));
+        int newId = updateTracker(connection -> {
+            connection.writeUploadRequest(fileEntry);
+            return connection.readUploadResponse();
+        });
+        FileEntry newEntry = fileEntry.setId(newId);
         FileState newState = new FileState(newEntry, path, null);
         try (LockHandler handler = LockHandler.lock(state.lock.writeLock())) {
             state.files.put(newEntry.getId(), newState);
         }
+        state.changedFiles.add(newEntry.getId());
         return newEntry;
     }
+
+    /**
+     * Uploads the files with BULK_UPLOAD, UPLOAD_BATCH files per request.
+     * @return new entries, in the order of paths
+     */
+    public List<FileEntry> newFiles(List<Path> paths) throws IOException {
+        List<FileEntry> result = new ArrayList<>();
+        for (int from = 0; from < paths.size(); from += UPLOAD_BATCH) {
+            result.addAll(uploadBatch(paths.subList(from, Math.min(from + UPLOAD_BATCH, paths.size()))));
+        }
+        return result;
+    }
+
+    /**
+     * Uploads every regular file in the directory tree. Batches are uploaded in parallel, each to a random shard.
+     * @return new entries, in the order of paths
+     */
+    public List<FileEntry> newDirectory(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException("Directory not exists.");
+        }
+
+        List<Path> paths;
+        try (Stream<Path> tree = Files.walk(root)) {
+            paths = tree.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        ExecutorService uploaders = Executors.newFixedThreadPool(UPLOAD_THREADS);
+        try {
+            List<Future<List<FileEntry>>> batches = new ArrayList<>();
+            for (int from = 0; from < paths.size(); from += UPLOAD_BATCH) {
+                List<Path> batch = paths.subList(from, Math.min(from + UPLOAD_BATCH, paths.size()));
+                batches.add(uploaders.submit(() -> uploadBatch(batch)));
+            }
+            List<FileEntry> result = new ArrayList<>();
+            for (Future<List<FileEntry>> batch : batches) {
+                result.addAll(getBatch(batch));
+            }
+            return result;
+        } finally {
+            uploaders.shutdownNow();
+        }
+    }
+
+    private static List<FileEntry> getBatch(Future<List<FileEntry>> batch) throws IOException {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private List<FileEntry> uploadBatch(List<Path> paths) throws IOException {
+        List<FileEntry> fileEntries = new ArrayList<>();
+        for (Path path : paths) {
+            if (!Files.isRegularFile(path)) {
+                throw new IllegalArgumentException(
+                        String.format("File %s not exists or is not a regular file.", path)
+                );
+            }
+            fileEntries.add(new FileEntry(path.getFileName().toString(), Files.size(path)));
+        }
+        List<Integer> newIds = updateTracker(connection -> {
+            connection.writeBulkUploadRequest(fileEntries);
+            return connection.readBulkUploadResponse();
+        });
+        if (newIds.size() != paths.size()) {
+            throw new IOException(String.format(
+                    "Tracker has given %d ids for %d uploaded files.", newIds.size(), paths.size()
+            ));
+        }
+        List<FileEntry> newEntries = new ArrayList<>();
+        try (LockHandler handler = LockHandler.lock(state.lock.writeLock())) {
+            for (int i = 0; i != paths.size(); i++) {
+                FileEntry newEntry = fileEntries.get(i).setId(newIds.get(i));
+                state.files.put(newEntry.getId(), new FileState(newEntry, paths.get(i), null));
+                newEntries.add(newEntry);
+            }
+        }
+        state.changedFiles.addAll(newIds);
+        return newEntries;
+    }
 }
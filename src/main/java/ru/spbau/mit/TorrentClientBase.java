@@ -1,12 +1,20 @@
 package ru.spbau.mit;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static ru.spbau.mit.TorrentTrackerConnection.TRACKER_PORT;
 
 /**
  * Created by ldvsoft on 26.04.16.
+ *
+ * Tracker host may list several comma-separated addresses, which are the shards of a tracker cluster
+ * in order; requests about a file go to the shard owning its id (see IdSpace). Each shard may be followed
+ * by its read-only replicas joined with '+': reads go to a random replica, falling back to the primary,
+ * and changes always go to the primary.
+ * Connections to the tracker are pooled in the client state and reused between requests.
  */
 public abstract class TorrentClientBase {
     protected TorrentClientState state;
@@ -15,7 +23,137 @@ public abstract class TorrentClientBase {
         this.state = state;
     }
 
-    protected TorrentTrackerConnection connectToTracker() throws IOException {
-        return new TorrentTrackerConnection(new Socket(state.host, TRACKER_PORT));
+    /**
+     * Sends announces and source lookups over UDP, see TrackerUdpServer; trackers not answering there
+     * are asked over TCP as usual.
+     */
+    public void setUdpEnabled(boolean udpEnabled) {
+        state.udp = udpEnabled ? new TrackerUdpClient() : null;
+    }
+
+    protected int getShardsCount() {
+        return getTrackers().size();
+    }
+
+    /**
+     * Runs the exchange with any tracker shard.
+     */
+    protected <T> T callTracker(TrackerConnectionPool.Call<T> call) throws IOException {
+        return callShard(ThreadLocalRandom.current().nextInt(getShardsCount()), call);
+    }
+
+    /**
+     * Runs the exchange with the tracker shard owning given file.
+     */
+    protected <T> T callTracker(int fileId, TrackerConnectionPool.Call<T> call) throws IOException {
+        return callShard(IdSpace.getShard(fileId, getShardsCount()), call);
+    }
+
+    protected <T> T callShard(int shard, TrackerConnectionPool.Call<T> call) throws IOException {
+        return state.trackers.execute(getPrimary(shard), call);
+    }
+
+    /**
+     * Same as callTracker, but the exchange is not repeated if the connection fails, as uploads are not safe to
+     * repeat.
+     */
+    protected <T> T updateTracker(TrackerConnectionPool.Call<T> call) throws IOException {
+        return state.trackers.executeUpdate(
+                getPrimary(ThreadLocalRandom.current().nextInt(getShardsCount())), call
+        );
+    }
+
+    /**
+     * Same as callTracker, but may be served by a replica.
+     */
+    protected <T> T readTracker(int fileId, TrackerConnectionPool.Call<T> call) throws IOException {
+        return readShard(IdSpace.getShard(fileId, getShardsCount()), call);
+    }
+
+    /**
+     * Same as callShard, but may be served by a replica. Replica may lag behind the primary.
+     */
+    protected <T> T readShard(int shard, TrackerConnectionPool.Call<T> call) throws IOException {
+        InetSocketAddress replica = getReplica(shard);
+        if (replica != null) {
+            try {
+                return state.trackers.execute(replica, call);
+            } catch (TrackerBusyException e) {
+                throw e;
+            } catch (IOException e) {
+                // Falling back to the primary
+            }
+        }
+        return callShard(shard, call);
+    }
+
+    protected boolean hasReplicas(int shard) {
+        return getTrackers().get(shard).size() > 1;
+    }
+
+    /**
+     * Same as callTracker, but tries UDP first if enabled. Only requests TrackerUdpServer supports may be made.
+     */
+    protected <T> T callTrackerUdp(int fileId, TrackerConnectionPool.Call<T> call) throws IOException {
+        return callShardUdp(IdSpace.getShard(fileId, getShardsCount()), call);
+    }
+
+    protected <T> T callShardUdp(int shard, TrackerConnectionPool.Call<T> call) throws IOException {
+        return executeUdp(getPrimary(shard), call);
+    }
+
+    /**
+     * Same as callTrackerUdp, but may be served by a replica.
+     */
+    protected <T> T readTrackerUdp(int fileId, TrackerConnectionPool.Call<T> call) throws IOException {
+        return readShardUdp(IdSpace.getShard(fileId, getShardsCount()), call);
+    }
+
+    /**
+     * Same as callShardUdp, but may be served by a replica.
+     */
+    protected <T> T readShardUdp(int shard, TrackerConnectionPool.Call<T> call) throws IOException {
+        InetSocketAddress replica = getReplica(shard);
+        if (replica != null) {
+            try {
+                return executeUdp(replica, call);
+            } catch (TrackerBusyException e) {
+                throw e;
+            } catch (IOException e) {
+                // Falling back to the primary
+            }
+        }
+        return callShardUdp(shard, call);
+    }
+
+    private <T> T executeUdp(InetSocketAddress tracker, TrackerConnectionPool.Call<T> call) throws IOException {
+        TrackerUdpClient udp = state.udp;
+        if (udp != null && udp.isAvailable(tracker)) {
+            try {
+                return udp.execute(tracker, call);
+            } catch (TrackerUdpClient.UnavailableException e) {
+                // Falling back to TCP
+            }
+        }
+        return state.trackers.execute(tracker, call);
+    }
+
+    private InetSocketAddress getPrimary(int shard) {
+        return getTrackers().get(shard).get(0);
+    }
+
+    /**
+     * @return random replica of the shard, or null if it has none
+     */
+    private InetSocketAddress getReplica(int shard) {
+        List<InetSocketAddress> group = getTrackers().get(shard);
+        if (group.size() == 1) {
+            return null;
+        }
+        return group.get(1 + ThreadLocalRandom.current().nextInt(group.size() - 1));
+    }
+
+    private List<List<InetSocketAddress>> getTrackers() {
+        return IOUtils.parseAddressGroups(state.host, TRACKER_PORT);
     }
 }
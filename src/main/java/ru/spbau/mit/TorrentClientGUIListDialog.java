@@ -8,14 +8,23 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Created by ldvsoft on 04.05.16.
+ *
+ * Lets the user find a file by name on the tracker; only the first page of matches is shown.
  */
 public class TorrentClientGUIListDialog extends JDialog {
+    public interface Searcher {
+        SearchResult search(String query) throws IOException;
+    }
+
+
     // CHECKSTYLE.OFF: MagicNumber
     private enum Columns {
         ID,
@@ -79,8 +88,23 @@ public class TorrentClientGUIListDialog extends JDialog {
         }
     }
 
+    private final Searcher searcher;
+    private final TableModel model = new TableModel(Collections.emptyList());
     private JTable table;
-    private Integer result = null;
+    private JTextField queryField = new JTextField();
+    private JLabel statusLabel = new JLabel(" ");
+    private FileEntry result = null;
+
+    private Action searchAction = new AbstractAction() {
+        {
+            putValue(NAME, "Search");
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent event) {
+            search();
+        }
+    };
 
     private Action selectAction = new AbstractAction() {
         {
@@ -90,7 +114,7 @@ public class TorrentClientGUIListDialog extends JDialog {
 
         @Override
         public void actionPerformed(ActionEvent event) {
-            result = table.getSelectedRow();
+            result = model.data.get(table.getSelectedRow());
             dispose();
         }
     };
@@ -107,11 +131,12 @@ public class TorrentClientGUIListDialog extends JDialog {
         }
     };
 
-    public TorrentClientGUIListDialog(Frame owner, List<FileEntry> data) {
+    public TorrentClientGUIListDialog(Frame owner, Searcher searcher) {
         super(owner, "Select file", DEFAULT_MODALITY_TYPE);
         super.setLocationRelativeTo(owner);
+        this.searcher = searcher;
 
-        table = new JTable(new TableModel(data));
+        table = new JTable(model);
         table.setAlignmentX(Component.LEFT_ALIGNMENT);
         table.setColumnSelectionAllowed(false);
         table.setRowSelectionAllowed(true);
@@ -132,9 +157,24 @@ public class TorrentClientGUIListDialog extends JDialog {
         JPanel topPanel = new JPanel();
         topPanel.setLayout(new BoxLayout(topPanel, BoxLayout.PAGE_AXIS));
         topPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-        topPanel.add(new JLabel("Select file to download:"));
+        JPanel searchPanel = new JPanel();
+        searchPanel.setLayout(new BoxLayout(searchPanel, BoxLayout.LINE_AXIS));
+        searchPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        queryField.setAction(searchAction);
+        searchPanel.add(queryField);
+        searchPanel.add(Box.createRigidArea(new Dimension(10, 0)));
+        searchPanel.add(new JButton(searchAction));
+
+        JScrollPane tablePane = new JScrollPane(table);
+        tablePane.setAlignmentX(Component.LEFT_ALIGNMENT);
+
+        topPanel.add(new JLabel("Find file to download by name:"));
+        topPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+        topPanel.add(searchPanel);
         topPanel.add(Box.createRigidArea(new Dimension(0, 5)));
-        topPanel.add(new JScrollPane(table));
+        topPanel.add(tablePane);
+        topPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+        topPanel.add(statusLabel);
 
         JPanel bottomPanel = new JPanel();
         bottomPanel.setLayout(new BoxLayout(bottomPanel, BoxLayout.LINE_AXIS));
@@ -148,10 +188,27 @@ public class TorrentClientGUIListDialog extends JDialog {
         add(topPanel, BorderLayout.CENTER);
         add(bottomPanel, BorderLayout.PAGE_END);
         pack();
+        search();
     }
 
-    public Integer showDialog() {
+    /**
+     * @return file selected, or null if cancelled
+     */
+    public FileEntry showDialog() {
         setVisible(true);
         return result;
     }
+
+    private void search() {
+        table.clearSelection();
+        try {
+            SearchResult found = searcher.search(queryField.getText());
+            model.data = found.getEntries();
+            statusLabel.setText(found.hasMore() ? "Only first matches are shown, refine the query." : " ");
+        } catch (IOException e) {
+            model.data = Collections.emptyList();
+            statusLabel.setText(String.format("Search failed: %s", e.getMessage()));
+        }
+        model.fireTableDataChanged();
+    }
 }
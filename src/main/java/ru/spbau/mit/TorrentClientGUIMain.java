@@ -10,6 +10,7 @@ import java.awt.event.*;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
@@ -26,10 +27,12 @@ public final class TorrentClientGUIMain {
         NAME,
         LOCAL_PATH,
         SIZE,
-        PROGRESS
+        PROGRESS,
+        SWARM
     }
 
     private static final Map<Columns, String> COLUMNS_NAMES = new EnumMap<>(Columns.class);
+    private static final int SEARCH_LIMIT = 200;
 
     static {
         COLUMNS_NAMES.put(Columns.ID, "File ID");
@@ -37,6 +40,7 @@ public final class TorrentClientGUIMain {
         COLUMNS_NAMES.put(Columns.LOCAL_PATH, "Local path");
         COLUMNS_NAMES.put(Columns.SIZE, "File size");
         COLUMNS_NAMES.put(Columns.PROGRESS, "Progress");
+        COLUMNS_NAMES.put(Columns.SWARM, "Seeders / leechers");
     }
 
     private static final class TableRow {
@@ -45,8 +49,12 @@ public final class TorrentClientGUIMain {
         private String localPath;
         private String size;
         private double progress;
+        private String swarm;
 
-        private TableRow(TorrentClientState.FileState state) {
+        /**
+         * @param stats swarm counters from the last scrape, null if not known
+         */
+        private TableRow(TorrentClientState.FileState state, SwarmStats stats) {
             try (LockHandler handler = LockHandler.lock(state.fileLock.readLock())) {
                 id = state.entry.getId();
                 name = state.entry.getName();
@@ -54,6 +62,7 @@ public final class TorrentClientGUIMain {
                 size = FileUtils.byteCountToDisplaySize(state.entry.getSize());
                 progress = (state.parts.getCount() + 0.0) / state.entry.getPartsCount();
             }
+            swarm = stats == null ? "?" : String.format("%d / %d", stats.getSeeders(), stats.getLeechers());
         }
     }
 
@@ -88,6 +97,8 @@ public final class TorrentClientGUIMain {
                     return data.get(rowIndex).size;
                 case PROGRESS:
                     return data.get(rowIndex).progress;
+                case SWARM:
+                    return data.get(rowIndex).swarm;
             }
             return null;
         }
@@ -100,6 +111,7 @@ public final class TorrentClientGUIMain {
                 case NAME:
                 case LOCAL_PATH:
                 case SIZE:
+                case SWARM:
                     return String.class;
                 case PROGRESS:
                     return Double.TYPE;
@@ -141,6 +153,7 @@ public final class TorrentClientGUIMain {
     private TorrentClientState state;
     private TorrentRunningClient runningClient;
     private JFrame frame;
+    private volatile Map<Integer, SwarmStats> swarmStats = Collections.emptyMap();
 
     private final TorrentRunningClient.RunCallbacks callbacks = new TorrentRunningClient.RunCallbacks() {
         @Override
@@ -218,22 +231,17 @@ public final class TorrentClientGUIMain {
         @Override
         public void actionPerformed(ActionEvent event) {
             SwingUtilities.invokeLater(() -> {
-                List<FileEntry> files;
-                try {
-                    files = new TorrentClient(state).requestList();
-                } catch (IOException e) {
-                    showErrorDialog(String.format("Failed to get file list from tracker: %s\n", e.getMessage()));
-                    return;
-                }
-                try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
-                    for (TorrentClientState.FileState fileState : state.files.values()) {
-                        files.remove(fileState.entry);
+                TorrentClient client = new TorrentClient(state);
+                FileEntry result = new TorrentClientGUIListDialog(frame, query -> {
+                    SearchResult found = client.search(query, SearchRequest.FIRST_PAGE, SEARCH_LIMIT);
+                    try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
+                        found.getEntries().removeIf(entry -> state.files.containsKey(entry.getId()));
                     }
-                }
-                Integer result = new TorrentClientGUIListDialog(frame, files).showDialog();
+                    return found;
+                }).showDialog();
                 try {
                     if (result != null) {
-                        new TorrentClient(state).get(files.get(result).getId());
+                        client.get(result.getId());
                         fetchModel();
                     }
                 } catch (IOException e) {
@@ -292,6 +300,32 @@ public final class TorrentClientGUIMain {
         }
     };
 
+    private final Action refreshSwarmAction = new AbstractAction() {
+        {
+            putValue(NAME, "Refresh swarms");
+            putValue(SHORT_DESCRIPTION, "Get numbers of seeders and leechers of the files from tracker");
+            putValue(ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_F5, 0));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent event) {
+            List<Integer> ids;
+            try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
+                ids = new ArrayList<>(state.files.keySet());
+            }
+            TorrentClient client = new TorrentClient(state);
+            // Tracker may take a while to answer, not in the event thread
+            new Thread(() -> {
+                try {
+                    swarmStats = client.scrape(ids);
+                    fetchModel();
+                } catch (IOException e) {
+                    writeMessage("Failed to get swarms: %s", e.getMessage());
+                }
+            }).start();
+        }
+    };
+
     private final Action changeTrackerAction = new AbstractAction() {
         {
             putValue(NAME, "Change tracker");
@@ -302,7 +336,8 @@ public final class TorrentClientGUIMain {
         public void actionPerformed(ActionEvent event) {
             String newHost = JOptionPane.showInputDialog(
                     frame,
-                    "Enter new tracker address.\n\nWarning: it will reset client state and all files!",
+                    "Enter new tracker address: host[:port], shards separated by ',', replicas joined by '+'."
+                            + "\n\nWarning: it will reset client state and all files!",
                     state.host,
                     JOptionPane.QUESTION_MESSAGE
             );
@@ -361,7 +396,7 @@ public final class TorrentClientGUIMain {
             try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
                 data = state.files.values()
                         .stream()
-                        .map(TableRow::new)
+                        .map(fileState -> new TableRow(fileState, swarmStats.get(fileState.entry.getId())))
                         .collect(Collectors.toList());
             }
             model.setData(data);
@@ -408,6 +443,8 @@ public final class TorrentClientGUIMain {
         table.getColumn(COLUMNS_NAMES.get(Columns.PROGRESS)).setMinWidth(50);
         table.getColumn(COLUMNS_NAMES.get(Columns.PROGRESS)).setMaxWidth(150);
         table.getColumn(COLUMNS_NAMES.get(Columns.PROGRESS)).setCellRenderer(new ProgressRenderer());
+        table.getColumn(COLUMNS_NAMES.get(Columns.SWARM)).setMinWidth(50);
+        table.getColumn(COLUMNS_NAMES.get(Columns.SWARM)).setMaxWidth(150);
 
         logArea = new JTextArea();
         logArea.setEditable(false);
@@ -418,6 +455,7 @@ public final class TorrentClientGUIMain {
             JMenu fileMenu = new JMenu("File");
             fileMenu.add(newFileAction);
             fileMenu.add(getFileAction);
+            fileMenu.add(refreshSwarmAction);
             fileMenu.addSeparator();
             fileMenu.add(changeTrackerAction);
             fileMenu.add(startRunAction);
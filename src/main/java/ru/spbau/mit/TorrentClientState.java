@@ -1,5 +1,7 @@
 package ru.spbau.mit;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -7,9 +9,15 @@ import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
@@ -22,14 +30,45 @@ class TorrentClientState implements AutoCloseable {
     private static final String DOWNLOADS_DIR = "downloads";
 
     private static final String STATE_FILE = "client-state.dat";
+    private static final String CATALOG_FILE = "client-catalog.dat";
+    private static final int STATE_MAGIC = 0x43535454;
+    private static final int CATALOG_MAGIC = 0x43434154;
+    /**
+     * Format of both files, to be increased on every change of either.
+     */
+    private static final int FORMAT = 1;
 
     /*package*/ Path workingDir;
     /*package*/ ReadWriteLock lock = new ReentrantReadWriteLock();
     /*package*/ Map<Integer, FileState> files;
     /*package*/ String host;
+    /**
+     * Cached tracker catalog, for every tracker shard it has every entry uploaded or revived before catalog
+     * version catalogVersions[shard] of that shard.
+     */
+    /*package*/ NavigableMap<Integer, FileEntry> catalog;
+    /*package*/ int[] catalogVersions;
+    /*package*/ TrackerConnectionPool trackers = new TrackerConnectionPool();
+    /**
+     * Set if announces and lookups should go over UDP when possible.
+     */
+    /*package*/ TrackerUdpClient udp = null;
+    /**
+     * Ids of files whose parts have changed since the last announce to the tracker.
+     */
+    /*package*/ Set<Integer> changedFiles = ConcurrentHashMap.newKeySet();
+    /**
+     * Ids of files downloaded completely since the last announce to the tracker.
+     */
+    /*package*/ Set<Integer> completedFiles = ConcurrentHashMap.newKeySet();
 
     /*package*/ TorrentClientState(String host, Path workingDir) throws IOException {
         this(workingDir);
+        if (!host.equals(this.host)) {
+            // Cached catalog belongs to another tracker
+            catalog.clear();
+            catalogVersions = new int[0];
+        }
         this.host = host;
     }
 
@@ -39,17 +78,20 @@ class TorrentClientState implements AutoCloseable {
     }
 
     public static void wipe(Path workingDir) {
-        Path state = workingDir.resolve(STATE_FILE);
-        if (Files.exists(state)) {
-            try {
-                Files.delete(state);
-            } catch (IOException e) {
-                e.printStackTrace();
+        for (String file : new String[] {STATE_FILE, CATALOG_FILE}) {
+            Path state = workingDir.resolve(file);
+            if (Files.exists(state)) {
+                try {
+                    Files.delete(state);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
     @Override
     public void close() throws IOException {
+        trackers.close();
         store();
     }
 
@@ -58,19 +100,34 @@ class TorrentClientState implements AutoCloseable {
         /*package*/ FileEntry entry;
         /*package*/ PartsSet parts;
         /*package*/ Path localPath;
+        /**
+         * How the parts are picked while downloading.
+         */
+        /*package*/ PiecePicker.Strategy strategy;
 
         /*package*/ FileState(FileEntry entry, Path localPath, Path workingDir) throws IOException {
-            this(entry, new PartsSet(entry.getPartsCount(), localPath != null), localPath, workingDir);
+            this(entry, localPath, workingDir, PiecePicker.Strategy.RAREST_FIRST);
+        }
+
+        /*package*/ FileState(
+                FileEntry entry,
+                Path localPath,
+                Path workingDir,
+                PiecePicker.Strategy strategy
+        ) throws IOException {
+            this(entry, new PartsSet(entry.getPartsCount(), localPath != null), localPath, workingDir, strategy);
         }
 
         /*package*/ FileState(
                 FileEntry entry,
                 PartsSet parts,
                 Path localPath,
-                Path workingDir
+                Path workingDir,
+                PiecePicker.Strategy strategy
         ) throws IOException {
             this.entry = entry;
             this.parts = parts;
+            this.strategy = strategy;
             if (localPath == null) {
                 this.localPath = workingDir.resolve(Paths.get(
                         DOWNLOADS_DIR,
@@ -90,13 +147,27 @@ class TorrentClientState implements AutoCloseable {
             entry.writeTo(dos);
             parts.writeTo(dos);
             dos.writeUTF(localPath.toString());
+            dos.writeByte(strategy.getCode());
         }
 
-        private static FileState readFrom(DataInputStream dis) throws IOException {
+        /**
+         * @param hasStrategy whether the strategy is written, it is not in the state saved before the header
+         */
+        private static FileState readFrom(DataInputStream dis, boolean hasStrategy) throws IOException {
             FileEntry fileEntry = FileEntry.readFrom(dis, true);
             PartsSet parts = PartsSet.readFrom(dis, fileEntry.getPartsCount());
             String localPath = dis.readUTF();
-            return new FileState(fileEntry, parts, Paths.get(localPath), null);
+            PiecePicker.Strategy strategy = PiecePicker.Strategy.RAREST_FIRST;
+            if (hasStrategy) {
+                int code = dis.readUnsignedByte();
+                strategy = PiecePicker.Strategy.fromCode(code);
+                if (strategy == null) {
+                    throw new IOException(String.format(
+                            "Unknown download strategy %d of file %d.", code, fileEntry.getId()
+                    ));
+                }
+            }
+            return new FileState(fileEntry, parts, Paths.get(localPath), null, strategy);
         }
     }
 
@@ -107,27 +178,85 @@ class TorrentClientState implements AutoCloseable {
             Files.createFile(state);
         }
         try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(state))) {
+            dos.writeInt(STATE_MAGIC);
+            dos.writeInt(FORMAT);
             dos.writeUTF(host);
             IOUtils.writeCollection(files.values(), (dos1, o) -> o.writeTo(dos1), dos);
         }
+        storeCatalog();
+    }
+
+    private void storeCatalog() throws IOException {
+        Path path = workingDir.resolve(CATALOG_FILE);
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            dos.writeInt(CATALOG_MAGIC);
+            dos.writeInt(FORMAT);
+            dos.writeInt(catalogVersions.length);
+            for (int version : catalogVersions) {
+                dos.writeInt(version);
+            }
+            IOUtils.writeCollection(catalog.values(), (dos1, o) -> o.writeTo(dos1), dos);
+        }
+    }
+
+    private void loadCatalog() throws IOException {
+        catalog = new TreeMap<>();
+        catalogVersions = new int[0];
+        Path path = workingDir.resolve(CATALOG_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            checkHeader(path, CATALOG_MAGIC, dis.readInt(), dis.readInt());
+            List<Integer> versions = IOUtils.readCollection(new ArrayList<>(), DataInputStream::readInt, dis);
+            IOUtils.readCollection(new ArrayList<>(), dis1 -> FileEntry.readFrom(dis1, true), dis)
+                    .forEach(entry -> catalog.put(entry.getId(), entry));
+            catalogVersions = versions.stream().mapToInt(Integer::intValue).toArray();
+        } catch (IOException e) {
+            // Catalog is just a cache, it is fetched anew
+            catalog.clear();
+        }
+    }
+
+    private static void checkHeader(Path path, int expectedMagic, int magic, int format) throws IOException {
+        if (magic != expectedMagic) {
+            throw new IOException(String.format("%s is not a client state file.", path));
+        }
+        if (format != FORMAT) {
+            throw new IOException(String.format(
+                    "%s has state format %d, while this client reads format %d only.", path, format, FORMAT
+            ));
+        }
     }
 
     private void load() throws IOException {
         Path state = workingDir.resolve(STATE_FILE);
         if (Files.exists(state)) {
-            try (DataInputStream dis = new DataInputStream(Files.newInputStream(state))) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(state)))) {
+                // State saved before the header starts with the host right away, it is rewritten on close
+                dis.mark(Integer.BYTES);
+                final boolean hasHeader = dis.readInt() == STATE_MAGIC;
+                if (hasHeader) {
+                    checkHeader(state, STATE_MAGIC, STATE_MAGIC, dis.readInt());
+                } else {
+                    dis.reset();
+                }
                 host = dis.readUTF();
-                files = IOUtils.readCollection(new HashSet<>(), FileState::readFrom, dis)
+                files = IOUtils.readCollection(new HashSet<>(), input -> FileState.readFrom(input, hasHeader), dis)
                         .stream()
                         .collect(Collectors.toMap(
                                 fileState -> fileState.entry.getId(),
                                 Function.identity()
                         ));
+                if (!hasHeader && dis.read() != -1) {
+                    throw new IOException(String.format("%s is not a client state file.", state));
+                }
             }
         } else {
             // Empty state
             host = "";
             files = new HashMap<>();
         }
+        loadCatalog();
     }
 }
@@ -5,6 +5,9 @@ import ru.spbau.mit.TorrentRunningClient.RunCallbacks;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Created by ldvsoft on 02.04.16.
@@ -14,6 +17,8 @@ public abstract class TorrentClientTUIMain {
     private static final int ARG_ACTION = 0;
     private static final int ARG_ADDRESS = 1;
     private static final int ARG_1 = 2;
+    private static final int ARG_2 = 3;
+    private static final int SEARCH_LIMIT = 50;
 
     private static final RunCallbacks RUN_CALLBACKS = new RunCallbacks() {
         @Override
@@ -70,12 +75,21 @@ public abstract class TorrentClientTUIMain {
                 case "list":
                     doList(args);
                     break;
+                case "search":
+                    doSearch(args);
+                    break;
+                case "scrape":
+                    doScrape(args);
+                    break;
                 case "get":
                     doGet(args);
                     break;
                 case "newfile":
                     doNewFile(args);
                     break;
+                case "newdir":
+                    doNewDirectory(args);
+                    break;
                 case "run":
                     doRun(args);
                     break;
@@ -96,7 +110,7 @@ public abstract class TorrentClientTUIMain {
         String trackerAddress = args[ARG_ADDRESS];
         try (TorrentClientState state = new TorrentClientState(trackerAddress, Paths.get(""))) {
             TorrentClient client = new TorrentClient(state);
-            client.requestList().forEach(entry -> System.out.printf(
+            client.syncCatalog().forEach(entry -> System.out.printf(
                     "%d: %s (%d bytes).\n",
                     entry.getId(),
                     entry.getName(),
@@ -105,6 +119,51 @@ public abstract class TorrentClientTUIMain {
         }
     }
 
+    private static void doScrape(String[] args) throws IOException {
+        if (args.length < ARG_1 + 1) {
+            System.err.printf("Missing file ids.\n");
+            helpAndHalt();
+        }
+        String trackerAddress = args[ARG_ADDRESS];
+        List<Integer> ids = new ArrayList<>();
+        for (int i = ARG_1; i != args.length; i++) {
+            ids.add(Integer.decode(args[i]));
+        }
+        try (TorrentClientState state = new TorrentClientState(trackerAddress, Paths.get(""))) {
+            TorrentClient client = new TorrentClient(state);
+            client.scrape(ids).forEach((id, stats) -> System.out.printf(
+                    "%d: %d seeders, %d leechers, downloaded %d times.\n",
+                    id,
+                    stats.getSeeders(),
+                    stats.getLeechers(),
+                    stats.getDownloaded()
+            ));
+        }
+    }
+
+    private static void doSearch(String[] args) throws IOException {
+        if (args.length < ARG_1 + 1) {
+            System.err.printf("Missing query.\n");
+            helpAndHalt();
+        }
+        String trackerAddress = args[ARG_ADDRESS];
+        String query = args[ARG_1];
+        int limit = args.length > ARG_2 ? Integer.decode(args[ARG_2]) : SEARCH_LIMIT;
+        try (TorrentClientState state = new TorrentClientState(trackerAddress, Paths.get(""))) {
+            TorrentClient client = new TorrentClient(state);
+            SearchResult result = client.search(query, SearchRequest.FIRST_PAGE, limit);
+            result.getEntries().forEach(entry -> System.out.printf(
+                    "%d: %s (%d bytes).\n",
+                    entry.getId(),
+                    entry.getName(),
+                    entry.getSize()
+            ));
+            if (result.hasMore()) {
+                System.out.printf("There are more files, refine the query to see them.\n");
+            }
+        }
+    }
+
     private static void doGet(String[] args) throws IOException {
         if (args.length < ARG_1 + 1) {
             System.err.printf("Missing file id.\n");
@@ -112,9 +171,18 @@ public abstract class TorrentClientTUIMain {
         }
         String trackerAddress = args[ARG_ADDRESS];
         int id = Integer.decode(args[ARG_1]);
+        PiecePicker.Strategy strategy = PiecePicker.Strategy.RAREST_FIRST;
+        if (args.length > ARG_2) {
+            try {
+                strategy = PiecePicker.Strategy.valueOf(args[ARG_2].toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                System.err.printf("Unknown strategy \"%s\".\n", args[ARG_2]);
+                helpAndHalt();
+            }
+        }
         try (TorrentClientState state = new TorrentClientState(trackerAddress, Paths.get(""))) {
             TorrentClient client = new TorrentClient(state);
-            if (client.get(id)) {
+            if (client.get(id, strategy)) {
                 System.out.printf("New file added to download.\n");
             } else {
                 System.out.printf("Failed: maybe file is already marked, or tracker hasn't it.");
@@ -136,6 +204,21 @@ public abstract class TorrentClientTUIMain {
         }
     }
 
+    private static void doNewDirectory(String[] args) throws IOException {
+        if (args.length < ARG_1 + 1) {
+            System.err.printf("Missing directory path.\n");
+            helpAndHalt();
+        }
+        String trackerAddress = args[ARG_ADDRESS];
+        Path path = Paths.get(args[ARG_1]);
+        try (TorrentClientState state = new TorrentClientState(trackerAddress, Paths.get(""))) {
+            TorrentClient client = new TorrentClient(state);
+            List<FileEntry> newEntries = client.newDirectory(path);
+            newEntries.forEach(entry -> System.out.printf("%d: %s.\n", entry.getId(), entry.getName()));
+            System.out.printf("%d new files uploaded.\n", newEntries.size());
+        }
+    }
+
     private static void doRun(String[] args) throws IOException {
         if (args.length < ARG_ADDRESS + 1) {
             System.err.printf("Missing file path.\n");
@@ -145,6 +228,24 @@ public abstract class TorrentClientTUIMain {
         try {
             TorrentClientState state = new TorrentClientState(trackerAddress, Paths.get(""));
             TorrentRunningClient client = new TorrentRunningClient(state);
+            for (int i = ARG_1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--udp":
+                        client.setUdpEnabled(true);
+                        break;
+                    case "--parallel":
+                        if (i + 2 >= args.length) {
+                            System.err.printf("Missing download limits.\n");
+                            helpAndHalt();
+                        }
+                        client.setDownloadLimits(Integer.decode(args[i + 1]), Integer.decode(args[i + 2]));
+                        i += 2;
+                        break;
+                    default:
+                        System.err.printf("Unknown option \"%s\".\n", args[i]);
+                        helpAndHalt();
+                }
+            }
             client.startRun(RUN_CALLBACKS);
 
         } catch (IOException e) {
@@ -155,9 +256,17 @@ public abstract class TorrentClientTUIMain {
     private static void helpAndHalt() {
         System.err.printf("Available actions:\n");
         System.err.printf("\tlist <tracker-address>: get available files list from the tracker.\n");
-        System.err.printf("\tget <tracker-address> <id>: mark file with given id for download.\n");
+        System.err.printf("\tsearch <tracker-address> <query> [limit]: find files with names containing query.\n");
+        System.err.printf("\tscrape <tracker-address> <id>...: get seeders, leechers and downloads of files.\n");
+        System.err.printf("\tget <tracker-address> <id> [strategy]: mark file with given id for download.\n");
+        System.err.printf("\t\tstrategy: order of parts, rarest-first (default), random-first or sequential.\n");
         System.err.printf("\tnewfile <tracker-address> <path>: upload new file to tracker.\n");
-        System.err.printf("\trun <tracker-address>: start working until interrupted.\n");
+        System.err.printf("\tnewdir <tracker-address> <path>: upload files of the directory tree to tracker.\n");
+        System.err.printf("\trun <tracker-address> [--udp] [--parallel <file> <seeder>]: keep running.\n");
+        System.err.printf("\t\t--udp: announce via UDP.\n");
+        System.err.printf("\t\t--parallel: download that many parts of a file at once, and from one seeder.\n");
+        System.err.printf("Tracker address is host[:port], or a comma-separated list of cluster shards.\n");
+        System.err.printf("Shard may be followed by its replicas to read from, as primary+replica+...\n");
 
         System.exit(1);
     }
@@ -11,6 +11,10 @@ import static ru.spbau.mit.FileEntry.PART_SIZE;
 public class TorrentP2PConnection extends Connection {
     public static final int REQUEST_STAT = 1;
     public static final int REQUEST_GET = 2;
+    /**
+     * Time a connection may stay idle between requests before the seeder closes it.
+     */
+    public static final int SESSION_TIMEOUT = 60 * 1000;
 
     private static final int BUFFER_SIZE = 4096;
 
@@ -1,18 +1,32 @@
 package ru.spbau.mit;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collection;
-import java.util.Collections;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 import static ru.spbau.mit.TorrentP2PConnection.REQUEST_GET;
 import static ru.spbau.mit.TorrentP2PConnection.REQUEST_STAT;
@@ -23,6 +37,20 @@ import static ru.spbau.mit.TorrentTrackerConnection.UPDATE_DELAY;
  */
 public class TorrentRunningClient extends TorrentClientBase {
     private static final long REST_DELAY = 1000;
+    /**
+     * First announce is delayed by up to that, so that clients started together do not announce together.
+     */
+    private static final long START_JITTER = 5 * 1000;
+    /**
+     * Announces come earlier than the tracker asks by up to that part of the interval, spreading them out.
+     */
+    private static final double INTERVAL_JITTER = 0.25;
+    private static final int MAX_PARTS_PER_FILE = 8;
+    private static final int MAX_PARTS_PER_PEER = 2;
+    /**
+     * Download asks the tracker for new seeders that often even while it has some.
+     */
+    private static final long SOURCES_REFRESH_PERIOD = 30 * 1000;
 
     public interface RunCallbacks {
         void onTrackerUpdated(boolean result, Throwable e);
@@ -34,15 +62,48 @@ public class TorrentRunningClient extends TorrentClientBase {
     }
 
     private volatile RunCallbacks callbacks = null;
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    private int maxPartsPerFile = MAX_PARTS_PER_FILE;
+    private int maxPartsPerPeer = MAX_PARTS_PER_PEER;
     private volatile ServerSocket serverSocket;
     private volatile ExecutorService threadPool;
     private volatile ScheduledExecutorService scheduler;
+    private final PeerConnectionPool peers = new PeerConnectionPool();
+    /**
+     * Connections of leechers to the seeding server, closed on shutdown.
+     */
+    private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+    /**
+     * What every tracker shard has acknowledged, guarded by update().
+     */
+    private Announced[] announced = null;
+
+    private static final class Announced {
+        private int version = AnnounceDelta.FULL;
+        private Set<Integer> ids = new HashSet<>();
+        /**
+         * Announce interval asked by the shard.
+         */
+        private int interval = UPDATE_DELAY;
+    }
 
     public TorrentRunningClient(TorrentClientState state) {
         super(state);
     }
 
+    /**
+     * Should be called before startRun.
+     * @param partsPerFile how many parts of a file may be downloaded at once
+     * @param partsPerPeer how many parts of a file may be downloaded from one seeder at once
+     */
+    public void setDownloadLimits(int partsPerFile, int partsPerPeer) {
+        if (partsPerFile <= 0 || partsPerPeer <= 0) {
+            throw new IllegalArgumentException("Download limits should be positive.");
+        }
+        maxPartsPerFile = partsPerFile;
+        maxPartsPerPeer = partsPerPeer;
+    }
+
     public void startRun(RunCallbacks callbacks) throws IOException {
         try {
             isRunning = true;
@@ -66,7 +127,11 @@ public class TorrentRunningClient extends TorrentClientBase {
             threadPool.submit(this::server);
 
             // Starting tracking update loop
-            scheduler.scheduleAtFixedRate(this::updateTracker, 0, UPDATE_DELAY, TimeUnit.MILLISECONDS);
+            scheduler.schedule(
+                    this::scheduledUpdate,
+                    ThreadLocalRandom.current().nextLong(START_JITTER),
+                    TimeUnit.MILLISECONDS
+            );
 
             Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
         } catch (IOException e) {
@@ -82,8 +147,13 @@ public class TorrentRunningClient extends TorrentClientBase {
             if (!isRunning) {
                 return;
             }
+            isRunning = false;
             serverSocket.close();
             threadPool.shutdown();
+            peers.close();
+            for (Socket session : sessions) {
+                session.close();
+            }
             scheduler.shutdown();
             state.close();
         } catch (IOException e) {
@@ -91,49 +161,209 @@ public class TorrentRunningClient extends TorrentClientBase {
         }
     }
 
-    private List<InetSocketAddress> fetchSources(Collection<Integer> files) throws IOException {
-        try (TorrentTrackerConnection connection = connectToTracker()) {
-            connection.writeSourcesRequest(files);
-            return connection.readSourcesResponse();
-        }
+    /**
+     * @return seeders in the order of preference, mapped to their parts if the tracker knows them
+     */
+    private Map<InetSocketAddress, PartsSet> fetchSources(TorrentClientState.FileState state) throws IOException {
+        return readTrackerUdp(state.entry.getId(), connection -> {
+            connection.writeSourcesPartsRequest(state.entry.getId());
+            return connection.readSourcesPartsResponse(state.entry.getPartsCount());
+        });
     }
 
     private PartsSet stat(InetSocketAddress seeder, TorrentClientState.FileState state) throws IOException {
-        try (TorrentP2PConnection connection = connectToSeeder(seeder)) {
-            connection.writeStatRequest(state.entry.getId());
-            return connection.readStatResponse(state.entry.getPartsCount());
-        }
+        return peers.execute(
+                seeder,
+                connection -> connection.writeStatRequest(state.entry.getId()),
+                connection -> connection.readStatResponse(state.entry.getPartsCount())
+        );
     }
 
     private void get(InetSocketAddress seeder, TorrentClientState.FileState state, int partId) throws IOException {
-        try (TorrentP2PConnection connection = connectToSeeder(seeder)) {
-            connection.writeGetRequest(new GetRequest(state.entry.getId(), partId));
-            try (RandomAccessFile file = new RandomAccessFile(state.localPath.toString(), "rw")) {
-                connection.readGetResponse(file, partId, state.entry);
+        peers.execute(
+                seeder,
+                connection -> connection.writeGetRequest(new GetRequest(state.entry.getId(), partId)),
+                connection -> {
+                    try (RandomAccessFile file = new RandomAccessFile(state.localPath.toString(), "rw")) {
+                        connection.readGetResponse(file, partId, state.entry);
+                    }
+                    return null;
+                }
+        );
+    }
+
+    // Seeding part: handling requests
+
+    /**
+     * Announces to every shard only its own files. Only files changed since the last acknowledged announce
+     * are sent, or just a keep-alive if there are none; full list is sent only when the tracker has lost track.
+     * Shards are announced to in parallel, so that one that is down neither delays nor fails the others;
+     * its changes are kept for the next announce and its failure is reported on its own.
+     * @return whether every shard has accepted the announce
+     */
+    private synchronized boolean update(int port) throws IOException {
+        int shardsCount = getShardsCount();
+        if (announced == null || announced.length != shardsCount) {
+            announced = new Announced[shardsCount];
+            for (int shard = 0; shard != shardsCount; shard++) {
+                announced[shard] = new Announced();
+            }
+        }
+        List<Set<Integer>> changed = takeByShard(state.changedFiles, shardsCount);
+        List<Set<Integer>> completed = takeByShard(state.completedFiles, shardsCount);
+
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int shard = 0; shard != shardsCount; shard++) {
+            int shardId = shard;
+            results.add(threadPool.submit(() -> announceShard(shardId, port, changed.get(shardId),
+                    completed.get(shardId))));
+        }
+        boolean result = true;
+        try {
+            for (Future<Boolean> shardResult : results) {
+                result &= shardResult.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while announcing.");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
         }
+        return result;
     }
 
-    // Seeding part: handling requests
+    /**
+     * Each shard is announced to by its own task, which is the only one to touch announced[shard].
+     * @return whether the shard has accepted the announce, false if it is unavailable
+     */
+    private boolean announceShard(int shard, int port, Set<Integer> changedIds, Set<Integer> completedIds) {
+        try {
+            return announce(shard, port, changedIds, new ArrayList<>(completedIds));
+        } catch (IOException e) {
+            // Will be sent next time
+            state.changedFiles.addAll(changedIds);
+            state.completedFiles.addAll(completedIds);
+            notifyTrackerUpdated(false, new IOException(String.format("Shard %d is unavailable.", shard), e));
+            return false;
+        }
+    }
+
+    /**
+     * Empties the set of ids, splitting them by shard.
+     */
+    private static List<Set<Integer>> takeByShard(Set<Integer> ids, int shardsCount) {
+        List<Set<Integer>> result = new ArrayList<>();
+        for (int shard = 0; shard != shardsCount; shard++) {
+            result.add(new HashSet<>());
+        }
+        for (Iterator<Integer> iterator = ids.iterator(); iterator.hasNext();) {
+            int id = iterator.next();
+            iterator.remove();
+            result.get(IdSpace.getShard(id, shardsCount)).add(id);
+        }
+        return result;
+    }
 
-    private boolean update(int port) throws IOException {
-        List<Integer> availableFiles;
+    /**
+     * @param completedIds files downloaded since the last announce, sent with whatever announce goes
+     */
+    private boolean announce(int shard, int port, Set<Integer> changedIds, List<Integer> completedIds)
+            throws IOException {
+        Announced shardAnnounced = announced[shard];
+        if (shardAnnounced.version == AnnounceDelta.FULL) {
+            return announceFull(shard, port, completedIds);
+        }
+        if (changedIds.isEmpty() && completedIds.isEmpty()) {
+            KeepAliveRequest request = new KeepAliveRequest(port, shardAnnounced.version);
+            AnnounceResponse response = callShardUdp(shard, trackerConnection -> {
+                trackerConnection.writeKeepAliveRequest(request);
+                return trackerConnection.readKeepAliveResponse();
+            });
+            shardAnnounced.interval = response.getInterval();
+            return !response.isRejected() || announceFull(shard, port, completedIds);
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        List<byte[]> parts = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        for (int id : changedIds) {
+            byte[] bitmap = getBitmap(id);
+            if (bitmap != null) {
+                ids.add(id);
+                parts.add(bitmap);
+            } else if (shardAnnounced.ids.contains(id)) {
+                removed.add(id);
+            }
+        }
+        AnnounceDelta delta = new AnnounceDelta(
+                shardAnnounced.version,
+                new ClientInfo(new InetSocketAddress("", port), ids, parts),
+                removed,
+                completedIds
+        );
+        AnnounceResponse response = callShardUdp(shard, trackerConnection -> {
+            trackerConnection.writeAnnounceDeltaRequest(delta);
+            return trackerConnection.readAnnounceDeltaResponse();
+        });
+        shardAnnounced.interval = response.getInterval();
+        if (response.isRejected()) {
+            // Rejected announce is not counted, so completions go with the full one
+            return announceFull(shard, port, completedIds);
+        }
+        shardAnnounced.version = response.getVersion();
+        shardAnnounced.ids.addAll(ids);
+        shardAnnounced.ids.removeAll(removed);
+        return true;
+    }
+
+    private boolean announceFull(int shard, int port, List<Integer> completedIds) throws IOException {
+        int shardsCount = announced.length;
+        List<Integer> ids = new ArrayList<>();
+        List<byte[]> parts = new ArrayList<>();
         try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
-            availableFiles = state.files
-                    .values()
-                    .stream()
-                    .filter(fileState -> {
-                        try (LockHandler handler1 = LockHandler.lock(fileState.fileLock.readLock())) {
-                            return fileState.parts.getCount() > 0;
-                        }
-                    })
-                    .map(fileState -> fileState.entry.getId())
-                    .collect(Collectors.toList());
+            for (TorrentClientState.FileState fileState : state.files.values()) {
+                if (IdSpace.getShard(fileState.entry.getId(), shardsCount) != shard) {
+                    continue;
+                }
+                try (LockHandler handler1 = LockHandler.lock(fileState.fileLock.readLock())) {
+                    if (fileState.parts.getCount() > 0) {
+                        ids.add(fileState.entry.getId());
+                        parts.add(fileState.parts.toBitmap());
+                    }
+                }
+            }
+        }
+        AnnounceDelta delta = AnnounceDelta.full(
+                new ClientInfo(new InetSocketAddress("", port), ids, parts),
+                completedIds
+        );
+        AnnounceResponse response = callShardUdp(shard, trackerConnection -> {
+            trackerConnection.writeAnnounceDeltaRequest(delta);
+            return trackerConnection.readAnnounceDeltaResponse();
+        });
+        announced[shard].interval = response.getInterval();
+        if (response.isRejected()) {
+            announced[shard].version = AnnounceDelta.FULL;
+            return false;
+        }
+        announced[shard].version = response.getVersion();
+        announced[shard].ids = new HashSet<>(ids);
+        return true;
+    }
+
+    /**
+     * @return bitmap of the parts available, or null if the file is not seeded
+     */
+    private byte[] getBitmap(int id) {
+        TorrentClientState.FileState fileState;
+        try (LockHandler handler = LockHandler.lock(state.lock.readLock())) {
+            fileState = state.files.get(id);
+        }
+        if (fileState == null) {
+            return null;
         }
-        ClientInfo info = new ClientInfo(new InetSocketAddress("", port), availableFiles);
-        try (TorrentTrackerConnection trackerConnection = connectToTracker()) {
-            trackerConnection.writeUpdateRequest(info);
-            return trackerConnection.readUpdateResponse();
+        try (LockHandler handler = LockHandler.lock(fileState.fileLock.readLock())) {
+            return fileState.parts.getCount() > 0 ? fileState.parts.toBitmap() : null;
         }
     }
 
@@ -141,6 +371,7 @@ public class TorrentRunningClient extends TorrentClientBase {
         while (true) {
             try {
                 Socket socket = serverSocket.accept();
+                sessions.add(socket);
                 threadPool.submit(() -> handle(socket));
             } catch (IOException e) {
                 notifyP2PServerIssue(e);
@@ -149,23 +380,34 @@ public class TorrentRunningClient extends TorrentClientBase {
         }
     }
 
+    /**
+     * Serves requests of the connection in order until the leecher closes it or it stays idle for too long.
+     * Leecher may send the next requests before reading responses, they wait in the socket meanwhile.
+     */
     private void handle(Socket socket) {
         try (TorrentP2PConnection connection = new TorrentP2PConnection(socket)) {
-            int request = connection.readRequest();
-            switch (request) {
-                case REQUEST_STAT:
-                    doStat(connection);
-                    break;
-                case REQUEST_GET:
-                    doGet(connection);
-                    break;
-                default:
-                    throw new IllegalArgumentException(
-                            String.format("Wrong request %d from connection.", request)
-                    );
+            socket.setSoTimeout(TorrentP2PConnection.SESSION_TIMEOUT);
+            while (true) {
+                int request = connection.readRequest();
+                switch (request) {
+                    case REQUEST_STAT:
+                        doStat(connection);
+                        break;
+                    case REQUEST_GET:
+                        doGet(connection);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                String.format("Wrong request %d from connection.", request)
+                        );
+                }
             }
+        } catch (EOFException | SocketException | SocketTimeoutException e) {
+            // Session is over: closed by leecher, by shutdown or after being idle
         } catch (Exception e) {
             notifyP2PServerIssue(e);
+        } finally {
+            sessions.remove(socket);
         }
     }
 
@@ -210,105 +452,170 @@ public class TorrentRunningClient extends TorrentClientBase {
             notifyTrackerUpdated(result, null);
         } catch (IOException e) {
             notifyTrackerUpdated(false, e);
+        } catch (RejectedExecutionException e) {
+            // Client is shut down
         }
     }
 
+    /**
+     * Announces and schedules the next announce by the shortest interval the shards ask for, minus jitter.
+     */
+    private void scheduledUpdate() {
+        updateTracker();
+        int interval = Integer.MAX_VALUE;
+        synchronized (this) {
+            if (announced != null) {
+                for (Announced shardAnnounced : announced) {
+                    interval = Math.min(interval, shardAnnounced.interval);
+                }
+            }
+        }
+        if (interval == Integer.MAX_VALUE) {
+            interval = UPDATE_DELAY;
+        }
+        long delay = (long) (interval * (1 - ThreadLocalRandom.current().nextDouble(INTERVAL_JITTER)));
+        try {
+            scheduler.schedule(this::scheduledUpdate, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Client is shut down
+        }
+    }
+
+    /**
+     * Fetches parts of the file from several seeders at once, see DownloadPlan. This thread assigns parts
+     * and records them, transfers run in the thread pool. Seeders are asked from the tracker when there is
+     * nothing to fetch, and every SOURCES_REFRESH_PERIOD to find new ones.
+     */
     private void download(TorrentClientState.FileState state) {
-        List<InetSocketAddress> seeders = null;
-        int currentSeeder = 0;
-        PartsSet partsToDownload = null;
-        int canOffer = 0;
+        PartsSet missing = new PartsSet(state.entry.getPartsCount(), true);
+        try (LockHandler handler = LockHandler.lock(state.fileLock.readLock())) {
+            missing.subtract(state.parts);
+        }
+        DownloadPlan plan = new DownloadPlan(
+                missing,
+                maxPartsPerFile,
+                maxPartsPerPeer,
+                state.strategy.getPicker()
+        );
+        CompletionService<DownloadPlan.Assignment> transfers = new ExecutorCompletionService<>(threadPool);
+        Map<Future<DownloadPlan.Assignment>, DownloadPlan.Assignment> running = new HashMap<>();
+        long sourcesFetched = 0;
         notifyDownloadStart(state.entry);
-        while (true) {
-            try (LockHandler handler = LockHandler.lock(state.fileLock.readLock())) {
-                if (!isRunning) {
-                    return;
-                }
-                if (state.parts.getCount() == state.entry.getPartsCount()) {
+        try {
+            while (isRunning) {
+                if (plan.isComplete()) {
                     notifyDownloadComplete(state.entry);
                     return;
                 }
-            }
-
-            if (seeders == null || seeders.size() == 0) {
-                try {
-                    seeders = fetchSources(Collections.singletonList(state.entry.getId()));
-                    currentSeeder = -1;
-                    canOffer = 0;
-                } catch (IOException e) {
-                    notifyDownloadIssue(state.entry, "Failed to fetch seeders.", e);
+                long now = System.currentTimeMillis();
+                if (plan.getInFlight() == 0 || now - sourcesFetched >= SOURCES_REFRESH_PERIOD) {
+                    sourcesFetched = now;
+                    addSources(state, plan);
+                }
+                DownloadPlan.Assignment assignment = plan.next();
+                while (assignment != null) {
+                    running.put(startTransfer(state, transfers, assignment), assignment);
+                    assignment = plan.next();
+                }
+                if (plan.getInFlight() == 0) {
+                    notifyDownloadIssue(state.entry, "Noone seeds remaining parts.", null);
                     delay(REST_DELAY);
                     continue;
                 }
+                Future<DownloadPlan.Assignment> done = transfers.poll(REST_DELAY, TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    finishTransfer(state, plan, running.remove(done), done);
+                }
             }
-            if (seeders == null || seeders.size() == 0) {
-                notifyDownloadIssue(state.entry, "No seeders.", null);
-                delay(REST_DELAY);
-                continue;
-            }
+        } catch (RejectedExecutionException | InterruptedException e) {
+            // Client is shut down
+        }
+    }
 
-            if (canOffer == 0 && currentSeeder + 1 < seeders.size()) {
-                currentSeeder++;
+    /**
+     * Asks the tracker for seeders, and seeders the tracker does not know parts of for their parts.
+     */
+    private void addSources(TorrentClientState.FileState state, DownloadPlan plan) {
+        Map<InetSocketAddress, PartsSet> sources;
+        try {
+            sources = fetchSources(state);
+        } catch (IOException e) {
+            notifyDownloadIssue(state.entry, "Failed to fetch seeders.", e);
+            return;
+        }
+        if (sources.isEmpty()) {
+            notifyDownloadIssue(state.entry, "No seeders.", null);
+        }
+        for (Map.Entry<InetSocketAddress, PartsSet> source : sources.entrySet()) {
+            PartsSet parts = source.getValue();
+            if (parts == null) {
+                if (plan.hasPeer(source.getKey())) {
+                    continue;
+                }
                 try {
-                    partsToDownload = stat(seeders.get(currentSeeder), state);
+                    parts = stat(source.getKey(), state);
                 } catch (IOException e) {
                     notifyDownloadIssue(state.entry, String.format(
                             "Failed to stat seeder %s, skipping...",
-                            seeders.get(currentSeeder).toString()
+                            source.getKey().toString()
                     ), e);
                     continue;
                 }
-                try (LockHandler handler = LockHandler.lock(state.fileLock.readLock())) {
-                    partsToDownload.subtract(state.parts);
-                }
-                canOffer = partsToDownload.getCount();
             }
+            plan.addPeer(source.getKey(), parts);
+        }
+    }
 
-            if (canOffer == 0) {
-                if (currentSeeder == seeders.size() - 1) {
-                    seeders = null;
-                }
-                notifyDownloadIssue(state.entry, "Noone seeds remaining parts.", null);
-                delay(REST_DELAY);
-                continue;
-            }
+    private Future<DownloadPlan.Assignment> startTransfer(
+            TorrentClientState.FileState state,
+            CompletionService<DownloadPlan.Assignment> transfers,
+            DownloadPlan.Assignment assignment
+    ) {
+        return transfers.submit(() -> {
+            get(assignment.getPeer(), state, assignment.getPartId());
+            return assignment;
+        });
+    }
 
-            int partId = 0;
-            if (canOffer > 0) {
-                partId = partsToDownload.getFirstBitAtLeast(partId);
-                try {
-                    get(seeders.get(currentSeeder), state, partId);
-                } catch (IOException e) {
-                    notifyDownloadIssue(state.entry, String.format(
-                            "Download error: part %d from %s.",
-                            partId,
-                            seeders.get(currentSeeder).toString()
-                    ), e);
-                    delay(REST_DELAY);
-                }
-                boolean needUpdateTracker = false;
-                try (LockHandler handler = LockHandler.lock(state.fileLock.writeLock())) {
-                    state.parts.set(partId, true);
-                    if (state.parts.getCount() == 1) {
-                        needUpdateTracker = true;
-                    }
-                }
-                partsToDownload.set(partId, false);
-                canOffer--;
-                if (needUpdateTracker) {
-                    updateTracker();
-                }
-                notifyDownloadPart(state.entry, partId);
+    private void finishTransfer(
+            TorrentClientState.FileState state,
+            DownloadPlan plan,
+            DownloadPlan.Assignment assignment,
+            Future<DownloadPlan.Assignment> transfer
+    ) throws InterruptedException {
+        try {
+            transfer.get();
+        } catch (ExecutionException e) {
+            notifyDownloadIssue(state.entry, String.format(
+                    "Download error: part %d from %s.",
+                    assignment.getPartId(),
+                    assignment.getPeer().toString()
+            ), e.getCause());
+            // Part is still missing, it goes to another seeder
+            plan.fail(assignment);
+            return;
+        }
+        plan.complete(assignment);
+        boolean needUpdateTracker = false;
+        try (LockHandler handler = LockHandler.lock(state.fileLock.writeLock())) {
+            state.parts.set(assignment.getPartId(), true);
+            this.state.changedFiles.add(state.entry.getId());
+            if (state.parts.getCount() == state.entry.getPartsCount()) {
+                this.state.completedFiles.add(state.entry.getId());
+                needUpdateTracker = true;
+            }
+            if (state.parts.getCount() == 1) {
+                needUpdateTracker = true;
             }
         }
+        if (needUpdateTracker) {
+            updateTracker();
+        }
+        notifyDownloadPart(state.entry, assignment.getPartId());
     }
 
     // Utils
 
-    private TorrentP2PConnection connectToSeeder(InetSocketAddress seeder) throws IOException {
-        return new TorrentP2PConnection(new Socket(seeder.getAddress(), seeder.getPort()));
-    }
-
     private void delay(long time) {
         try {
             Thread.sleep(time);
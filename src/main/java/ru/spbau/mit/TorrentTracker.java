@@ -1,14 +1,27 @@
 package ru.spbau.mit;
 
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.file.Path;
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -19,37 +32,235 @@ import java.util.stream.Collectors;
 
 /**
  * Created by ldvsoft on 02.04.16.
+ *
+ * When running as a shard of a cluster, catalog and seeders only hold ids owned by this shard and are addressed
+ * by local indexes (see IdSpace). Requests for single foreign ids are forwarded to their owners, announces of
+ * foreign ids are ignored and listings cover only this shard: clients are expected to route by id themselves.
  */
 public class TorrentTracker implements AutoCloseable {
-    private static final String STATE_FILE = "tracker-state.dat";
+    private static final long SNAPSHOT_CHECK_PERIOD = 60 * 1000;
+    private static final int SNAPSHOT_JOURNAL_THRESHOLD = 4096;
+    private static final long SHUTDOWN_TIMEOUT = 10 * 1000;
+    private static final long SECOND = 1000;
+    private static final long LEASES_SAVE_PERIOD = 30 * 1000;
+    private static final long ARCHIVE_CHECK_PERIOD = 60 * 1000;
+    private static final AnnounceResponse REPLICA_REJECTED = new AnnounceResponse(
+            TorrentTrackerConnection.ANNOUNCE_REJECTED,
+            TorrentTrackerConnection.UPDATE_DELAY
+    );
 
     private Path workingDir;
+    private TorrentTrackerConfig config;
+    private IdSpace idSpace;
     private ExecutorService threadPool;
     private ScheduledExecutorService scheduler;
     private ServerSocket serverSocket;
+    private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+    private TorrentTrackerNioServer nioServer;
+    private TrackerUdpServer udpServer;
+    private CatalogStore catalogStore;
+    /**
+     * Catalog by local index, archived entries are null here and kept in the archive.
+     */
     private List<FileEntry> files;
-    private Map<Integer, Set<ClientInfo>> seeders;
+    private CatalogArchive archive;
+    private CatalogImage catalogImage;
+    private NameIndex nameIndex;
+    private SeederRegistry seeders;
+    private LeaseStore leaseStore;
+    private final TrackerConnectionPool peers = new TrackerConnectionPool();
+    private AdmissionControl admission;
+    private final TrackerMetrics metrics = new TrackerMetrics();
+    private TrackerMetricsServer metricsServer;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Uploads journaled but not on disk yet, by id.
+     */
+    private final Queue<PendingUpload> pending = new ArrayDeque<>();
+    /**
+     * Replica only: how far the seeder changes of the primary are applied.
+     */
+    private ReplicationLog.Position replicaPosition = ReplicationLog.Position.NONE;
+
+    private static final class PendingUpload {
+        private final long ticket;
+        private final int version;
+        private final FileEntry entry;
+
+        private PendingUpload(long ticket, int version, FileEntry entry) {
+            this.ticket = ticket;
+            this.version = version;
+            this.entry = entry;
+        }
+    }
 
     public TorrentTracker(Path workingDir) throws IOException {
+        this(workingDir, new TorrentTrackerConfig());
+    }
+
+    public TorrentTracker(Path workingDir, TorrentTrackerConfig config) throws IOException {
         try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
             this.workingDir = workingDir;
-            serverSocket = new ServerSocket(TorrentTrackerConnection.TRACKER_PORT);
-            threadPool = Executors.newCachedThreadPool();
-            scheduler = Executors.newScheduledThreadPool(1);
+            this.config = config;
+            this.idSpace = config.getIdSpace();
+            this.admission = new AdmissionControl(config);
+            // Replication waits for the primary, it should not hold lease expiry
+            scheduler = Executors.newScheduledThreadPool(config.isReplica() ? 2 : 1);
             load();
+            scheduler.scheduleAtFixedRate(
+                    () -> seeders.expire(System.currentTimeMillis()),
+                    SeederRegistry.TICK_DURATION,
+                    SeederRegistry.TICK_DURATION,
+                    TimeUnit.MILLISECONDS
+            );
+            scheduler.scheduleWithFixedDelay(
+                    this::snapshotIfNeeded,
+                    SNAPSHOT_CHECK_PERIOD,
+                    SNAPSHOT_CHECK_PERIOD,
+                    TimeUnit.MILLISECONDS
+            );
+            scheduler.scheduleWithFixedDelay(
+                    this::saveLeases,
+                    LEASES_SAVE_PERIOD,
+                    LEASES_SAVE_PERIOD,
+                    TimeUnit.MILLISECONDS
+            );
+            if (config.getArchiveAfter() != 0 && !config.isReplica()) {
+                long period = Math.min(ARCHIVE_CHECK_PERIOD, config.getArchiveAfter());
+                scheduler.scheduleWithFixedDelay(this::archiveIdle, period, period, TimeUnit.MILLISECONDS);
+            }
+            if (config.isReplica()) {
+                scheduler.scheduleWithFixedDelay(
+                        this::replicate,
+                        0,
+                        config.getReplicationPeriod(),
+                        TimeUnit.MILLISECONDS
+                );
+            }
+            // Worker and datagram threads are shared by all request classes, so they must not wait for admission
+            TorrentTrackerNioServer.Handler nonBlocking = connection -> handleRequest(connection, false);
+            switch (config.getMode()) {
+                case BLOCKING:
+                    serverSocket = new ServerSocket(config.getPort());
+                    threadPool = Executors.newCachedThreadPool();
+                    break;
+                case NIO:
+                    nioServer = new TorrentTrackerNioServer(config, nonBlocking);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown server mode: " + config.getMode());
+            }
+            if (config.isUdpEnabled()) {
+                udpServer = new TrackerUdpServer(config.getPort(), nonBlocking);
+            }
+            if (config.getMetricsPort() != 0) {
+                addGauges();
+                metricsServer = new TrackerMetricsServer(config.getMetricsPort(), metrics);
+            }
+        } catch (IOException e) {
+            scheduler.shutdown();
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            if (udpServer != null) {
+                udpServer.close();
+            }
+            if (catalogStore != null) {
+                catalogStore.close();
+            }
+            throw e;
+        }
+        if (threadPool != null) {
+            threadPool.submit(this::work);
         }
-        threadPool.submit(this::work);
     }
 
     @Override
     public void close() throws IOException {
         try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
-            serverSocket.close();
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
         }
-        threadPool.shutdown();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        if (nioServer != null) {
+            nioServer.close();
+        }
+        if (udpServer != null) {
+            udpServer.close();
+        }
+        if (threadPool != null) {
+            threadPool.shutdown();
+            // Idle sessions would otherwise wait for their timeout
+            for (Socket session : sessions) {
+                session.close();
+            }
+        }
+        peers.close();
         scheduler.shutdown();
-        store();
+        try {
+            scheduler.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotIfNeeded();
+        saveLeases();
+        catalogStore.close();
+    }
+
+    /**
+     * Gauges are read by the metrics server thread, so they only use values safe to read without the lock.
+     */
+    private void addGauges() {
+        metrics.addGauge(
+                "tracker_sessions",
+                "Client sessions open.",
+                () -> sessions.size() + (nioServer != null ? nioServer.getSessionsCount() : 0)
+        );
+        metrics.addGauge("tracker_leases", "Seeder leases held.", seeders::getLeasesCount);
+        metrics.addGauge(
+                "tracker_catalog_files",
+                "Files listed in the catalog.",
+                () -> catalogImage.getVersion().getCount()
+        );
+        metrics.addGauge(
+                "tracker_catalog_archived",
+                "Files moved to the archive.",
+                () -> {
+                    CatalogImage.Version image = catalogImage.getVersion();
+                    return image.getEnd() - image.getCount();
+                }
+        );
+        metrics.addGauge(
+                "tracker_journal_records",
+                "Journal records since the last snapshot.",
+                catalogStore::getJournalLength
+        );
+        for (TorrentTrackerConfig.RequestClass requestClass : TorrentTrackerConfig.RequestClass.values()) {
+            metrics.addGauge(
+                    "tracker_admission_active",
+                    getClassLabel(requestClass),
+                    "Requests being handled, by admission class.",
+                    () -> admission.getActive(requestClass)
+            );
+        }
+        for (TorrentTrackerConfig.RequestClass requestClass : TorrentTrackerConfig.RequestClass.values()) {
+            metrics.addGauge(
+                    "tracker_admission_waiting",
+                    getClassLabel(requestClass),
+                    "Requests queued for admission, by admission class.",
+                    () -> admission.getWaiting(requestClass)
+            );
+        }
+    }
+
+    private static String getClassLabel(TorrentTrackerConfig.RequestClass requestClass) {
+        return "class=\"" + requestClass.name().toLowerCase(Locale.ROOT) + "\"";
     }
 
     private Socket accept() throws IOException {
@@ -68,6 +279,11 @@ public class TorrentTracker implements AutoCloseable {
                 if (socket == null) {
                     return;
                 }
+                if (sessions.size() >= config.getMaxSessions()) {
+                    rejectSession(socket);
+                    continue;
+                }
+                sessions.add(socket);
                 threadPool.submit(() -> handleConnection(socket));
             } catch (IOException e) {
                 e.printStackTrace();
@@ -76,107 +292,929 @@ public class TorrentTracker implements AutoCloseable {
         }
     }
 
+    private void rejectSession(Socket socket) {
+        TorrentTrackerConnection connection;
+        try {
+            connection = new TorrentTrackerConnection(socket);
+            connection.writeBusyResponse(config.getBusyRetryDelay());
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        // Not on the accepting thread, the client may take a while to close
+        threadPool.submit(() -> connection.drainAndClose(TorrentTrackerConnection.BUSY_LINGER));
+    }
+
     private void handleConnection(Socket socket) {
         try (TorrentTrackerConnection connection = new TorrentTrackerConnection(socket)) {
-            int request = connection.readRequest();
-            switch (request) {
-                case TorrentTrackerConnection.REQUEST_LIST:
-                    doList(connection);
-                    break;
-                case TorrentTrackerConnection.REQUEST_SOURCES:
-                    doSources(connection);
-                    break;
-                case TorrentTrackerConnection.REQUEST_UPLOAD:
-                    doUpload(connection);
-                    break;
-                case TorrentTrackerConnection.REQUEST_UPDATE:
-                    doUpdate(connection);
-                    break;
-                default:
-                    System.err.printf("Wrong request from client: %d.\n", request);
-                    break;
+            socket.setSoTimeout(config.getSessionTimeout());
+            try {
+                while (true) {
+                    handleRequest(connection, true);
+                }
+            } catch (TrackerBusyException e) {
+                connection.drainAndClose(TorrentTrackerConnection.BUSY_LINGER);
             }
+        } catch (EOFException | SocketException | SocketTimeoutException e) {
+            // Session is over: closed by client, by tracker shutdown or after being idle
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            sessions.remove(socket);
+        }
+    }
+
+    /**
+     * @param mayWait whether the calling thread may wait for admission; shared threads must not
+     */
+    private void handleRequest(TorrentTrackerConnection connection, boolean mayWait) throws IOException {
+        int request = connection.readRequest();
+        boolean isForwarded = request == TorrentTrackerConnection.REQUEST_FORWARDED;
+        if (isForwarded) {
+            request = connection.readRequest();
+        }
+        long start = System.nanoTime();
+        TorrentTrackerConfig.RequestClass requestClass = AdmissionControl.getRequestClass(request);
+        if (!admission.enter(requestClass, mayWait)) {
+            metrics.recordBusy(request);
+            // Request itself is left unread, so the session cannot go on, the caller should drop the rest
+            connection.writeBusyResponse(config.getBusyRetryDelay());
+            throw new TrackerBusyException(config.getBusyRetryDelay());
+        }
+        try {
+            dispatch(connection, request, isForwarded);
+        } finally {
+            admission.leave(requestClass);
+            metrics.recordRequest(request, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param isForwarded whether the request has come from another shard, so it must not be forwarded again
+     */
+    private void dispatch(TorrentTrackerConnection connection, int request, boolean isForwarded)
+            throws IOException {
+        if (config.isReplica() && dispatchReplicaWrite(connection, request)) {
+            return;
+        }
+        switch (request) {
+            case TorrentTrackerConnection.REQUEST_LIST:
+                doList(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_SOURCES:
+                doSources(connection, isForwarded);
+                break;
+            case TorrentTrackerConnection.REQUEST_UPLOAD:
+                doUpload(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_UPDATE:
+                doUpdate(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_LIST_SINCE:
+                doListSince(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_ENTRY:
+                doEntry(connection, isForwarded);
+                break;
+            case TorrentTrackerConnection.REQUEST_UPDATE_PARTS:
+                doUpdateParts(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_SOURCES_PARTS:
+                doSourcesParts(connection, isForwarded);
+                break;
+            case TorrentTrackerConnection.REQUEST_ANNOUNCE_DELTA:
+                doAnnounceDelta(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_KEEPALIVE:
+                doKeepAlive(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_SEARCH:
+                doSearch(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_SCRAPE:
+                doScrape(connection, isForwarded);
+                break;
+            case TorrentTrackerConnection.REQUEST_REPLICATE:
+                doReplicate(connection);
+                break;
+            case TorrentTrackerConnection.REQUEST_BULK_UPLOAD:
+                doBulkUpload(connection);
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        String.format("Wrong request from client: %d.", request)
+                );
+        }
+    }
+
+    /**
+     * Replica does not change the catalog and the seeders itself: uploads are passed to the primary, and
+     * announces are rejected, as the primary should see the address of the seeder.
+     * @return whether the request has been handled
+     */
+    private boolean dispatchReplicaWrite(TorrentTrackerConnection connection, int request) throws IOException {
+        switch (request) {
+            case TorrentTrackerConnection.REQUEST_UPLOAD:
+                FileEntry entry = connection.readUploadRequest();
+                connection.writeUploadResponse(peers.executeUpdate(config.getPrimary(), primary -> {
+                    primary.writeUploadRequest(entry);
+                    return primary.readUploadResponse();
+                }));
+                return true;
+            case TorrentTrackerConnection.REQUEST_BULK_UPLOAD:
+                List<FileEntry> entries = connection.readBulkUploadRequest();
+                connection.writeBulkUploadResponse(peers.executeUpdate(config.getPrimary(), primary -> {
+                    primary.writeBulkUploadRequest(entries);
+                    return primary.readBulkUploadResponse();
+                }));
+                return true;
+            case TorrentTrackerConnection.REQUEST_UPDATE:
+                connection.readUpdateRequest();
+                connection.writeUpdateResponse(false);
+                return true;
+            case TorrentTrackerConnection.REQUEST_UPDATE_PARTS:
+                connection.readUpdatePartsRequest();
+                connection.writeUpdateResponse(false);
+                return true;
+            case TorrentTrackerConnection.REQUEST_ANNOUNCE_DELTA:
+                connection.readAnnounceDeltaRequest();
+                connection.writeAnnounceDeltaResponse(REPLICA_REJECTED);
+                return true;
+            case TorrentTrackerConnection.REQUEST_KEEPALIVE:
+                connection.readKeepAliveRequest();
+                connection.writeKeepAliveResponse(REPLICA_REJECTED);
+                return true;
+            default:
+                return false;
         }
     }
 
     private void doList(TorrentTrackerConnection connection) throws IOException {
+        CatalogImage.Version image = catalogImage.getVersion();
+        connection.writeListResponse(image.getCount(), image.getData(), image.getLength());
+    }
+
+    private void doListSince(TorrentTrackerConnection connection) throws IOException {
+        int since = connection.readListSinceRequest();
+        CatalogImage.Version image = catalogImage.getVersion();
+        int from = image.getPosition(since);
+        int offset = image.getOffset(from);
+        connection.writeListSinceResponse(
+                image.getNextVersion(),
+                image.getCount() - from,
+                image.getData(),
+                offset,
+                image.getLength() - offset
+        );
+    }
+
+    private void doEntry(TorrentTrackerConnection connection, boolean isForwarded) throws IOException {
+        int id = connection.readEntryRequest();
+        if (isForeign(id, isForwarded)) {
+            connection.writeEntryResponse(callOwner(id, owner -> {
+                owner.writeEntryRequest(id);
+                return owner.readEntryResponse();
+            }));
+            return;
+        }
+        FileEntry entry = null;
         try (LockHandler handler = LockHandler.lock(lock.readLock())) {
-            connection.writeListResponse(files);
+            int index = getIndex(id);
+            if (index != -1) {
+                entry = files.get(index);
+            } else if (id >= 0) {
+                entry = archive.get(id);
+            }
         }
+        connection.writeEntryResponse(entry);
     }
 
-    private void doSources(TorrentTrackerConnection connection) throws IOException {
+    private void doSearch(TorrentTrackerConnection connection) throws IOException {
+        SearchRequest request = connection.readSearchRequest();
+        int limit = Math.min(request.getLimit(), TorrentTrackerConnection.MAX_SEARCH_LIMIT);
+        List<FileEntry> found = new ArrayList<>();
+        boolean hasMore = false;
+        if (limit > 0 && request.getAfter() != Integer.MAX_VALUE) {
+            try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+                int from = idSpace.toIndexAtLeast(request.getAfter() + 1);
+                for (int index : nameIndex.search(request.getQuery(), from, limit)) {
+                    found.add(files.get(index));
+                }
+            }
+            hasMore = found.size() > limit;
+            if (hasMore) {
+                found.remove(limit);
+            }
+        }
+        connection.writeSearchResponse(new SearchResult(found, hasMore));
+    }
+
+    private void doSources(TorrentTrackerConnection connection, boolean isForwarded) throws IOException {
         List<Integer> request = connection.readSourcesRequest();
-        List<InetSocketAddress> result;
-        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
-            result = request.stream()
-                    .flatMap(i -> seeders
-                            .getOrDefault(i, Collections.emptySet())
-                            .stream()
-                    )
-                    .distinct()
-                    .map(ClientInfo::getSocketAddress)
-                    .collect(Collectors.toList());
+        List<Integer> indexes = new ArrayList<>();
+        Map<Integer, List<Integer>> foreign = new HashMap<>();
+        for (int id : request) {
+            if (isForeign(id, isForwarded)) {
+                foreign.computeIfAbsent(IdSpace.getShard(id, idSpace.getShardsCount()), shard -> new ArrayList<>())
+                        .add(id);
+            } else {
+                indexes.add(idSpace.toIndex(id));
+            }
+        }
+        PeerSelector selector = config.getPeerSelector();
+        if (foreign.isEmpty() && indexes.size() == 1 && selector == PeerSelector.ALL) {
+            connection.writeSourcesResponse(seeders.getEncodedSources(indexes.get(0)));
+            return;
+        }
+        long[] candidates = seeders.getSources(indexes);
+        if (!foreign.isEmpty()) {
+            LongHashSet result = new LongHashSet();
+            for (long address : candidates) {
+                result.add(address);
+            }
+            for (List<Integer> ids : foreign.values()) {
+                List<InetSocketAddress> sources = callOwner(ids.get(0), owner -> {
+                    owner.writeSourcesRequest(ids);
+                    return owner.readSourcesResponse();
+                });
+                for (InetSocketAddress address : sources) {
+                    result.add(IOUtils.packAddress(address));
+                }
+            }
+            candidates = result.toArray();
         }
-        connection.writeSourcesResponse(result);
+        connection.writeSourcesResponse(candidates, selector.select(candidates, getRequester(connection)));
     }
 
     private void doUpload(TorrentTrackerConnection connection) throws IOException {
         FileEntry newEntry = connection.readUploadRequest();
+        long ticket;
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            newEntry = newEntry.setId(idSpace.toId(files.size() + pending.size()));
+            ticket = upload(newEntry);
+        }
+        syncJournal(ticket);
         try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
-            int newId = files.size();
-            newEntry = newEntry.setId(newId);
-            files.add(newEntry);
+            publishSynced();
         }
         connection.writeUploadResponse(newEntry.getId());
     }
 
+    /**
+     * Whole batch is journaled under one lock hold and made durable with one journal sync.
+     */
+    private void doBulkUpload(TorrentTrackerConnection connection) throws IOException {
+        List<FileEntry> newEntries = connection.readBulkUploadRequest();
+        List<Integer> newIds = new ArrayList<>(newEntries.size());
+        long ticket = 0;
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            for (FileEntry newEntry : newEntries) {
+                int newId = idSpace.toId(files.size() + pending.size());
+                ticket = upload(newEntry.setId(newId));
+                newIds.add(newId);
+            }
+        }
+        syncJournal(ticket);
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            publishSynced();
+        }
+        connection.writeBulkUploadResponse(newIds);
+    }
+
+    /**
+     * Journals the upload. Entry takes its place in the catalog image at once, so that versions stay in order,
+     * but is seen by requests only after publishSynced() finds its record on disk. Needs the write lock.
+     * @return ticket of the journal record, see CatalogStore.sync
+     */
+    private long upload(FileEntry entry) throws IOException {
+        int version = catalogImage.getNextVersion();
+        final long ticket = catalogStore.append(entry, version);
+        catalogImage.append(files.size() + pending.size(), entry, version);
+        pending.add(new PendingUpload(ticket, version, entry));
+        return ticket;
+    }
+
+    /**
+     * Adds uploads having their journal records on disk to the catalog, in id order. An upload which sync has
+     * failed is published along with the next one synced. Needs the write lock.
+     */
+    private void publishSynced() {
+        long synced = catalogStore.getSynced();
+        while (!pending.isEmpty() && pending.peek().ticket <= synced) {
+            FileEntry entry = pending.remove().entry;
+            files.add(entry);
+            nameIndex.add(entry);
+            seeders.addFile(entry.getPartsCount());
+        }
+        publishCatalog();
+    }
+
+    /**
+     * Publishes catalog image changes, up to the first upload not on disk yet. Needs the write lock.
+     */
+    private void publishCatalog() {
+        catalogImage.publish(pending.isEmpty() ? catalogImage.getNextVersion() : pending.peek().version);
+    }
+
+    /**
+     * Seeder changes are taken before the catalog, so that every file they mention is in the catalog part.
+     */
+    private void doReplicate(TorrentTrackerConnection connection) throws IOException {
+        ReplicateRequest request = connection.readReplicateRequest();
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        seeders.writeChanges(new DataOutputStream(changes), request.getEpoch(), request.getPosition());
+        connection.writeReplicateResponse(
+                catalogImage.getVersion(),
+                request.getSince(),
+                idSpace,
+                changes.toByteArray()
+        );
+    }
+
+    /**
+     * Replica only: fetches catalog changes and seeder changes from the primary. Replica keeps the catalog
+     * versions of the primary, so that clients may switch between them.
+     */
+    private void replicate() {
+        try {
+            int since;
+            try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+                since = catalogImage.getNextVersion();
+            }
+            ReplicateRequest request = new ReplicateRequest(
+                    since,
+                    replicaPosition.getEpoch(),
+                    replicaPosition.getPosition()
+            );
+            ReplicateResponse response = peers.execute(config.getPrimary(), primary -> {
+                primary.writeReplicateRequest(request);
+                return primary.readReplicateResponse();
+            });
+            applyReplicated(response.getCatalog());
+            replicaPosition = seeders.readChanges(response.getSeederChanges(), System.currentTimeMillis());
+        } catch (IOException e) {
+            // Whatever has been applied, seeders are taken anew next time
+            replicaPosition = ReplicationLog.Position.NONE;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies uploads, revivals and archive moves of the primary in the order of their versions.
+     */
+    private void applyReplicated(CatalogChanges changes) throws IOException {
+        if (changes.isFull()) {
+            resync(changes);
+            return;
+        }
+        List<FileEntry> entries = changes.getEntries();
+        List<Integer> archivedIds = changes.getArchivedIds();
+        if (entries.isEmpty() && archivedIds.isEmpty()) {
+            return;
+        }
+        long ticket;
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            Set<Integer> removed = new HashSet<>();
+            int next = 0;
+            int nextArchived = 0;
+            do {
+                if (nextArchived == archivedIds.size() || next != entries.size()
+                        && changes.getVersions().get(next) < changes.getArchivedVersions().get(nextArchived)) {
+                    ticket = appendReplicated(entries.get(next), changes.getVersions().get(next), removed);
+                    next++;
+                } else {
+                    int id = archivedIds.get(nextArchived);
+                    ticket = archiveReplicated(id, changes.getArchivedVersions().get(nextArchived), removed);
+                    nextArchived++;
+                }
+            } while (next != entries.size() || nextArchived != archivedIds.size());
+            catalogImage.remove(removed);
+            publishCatalog();
+        }
+        catalogStore.sync(ticket);
+    }
+
+    /**
+     * Puts an entry uploaded or revived by the primary. Replica may have never seen a revived entry: those
+     * archived by the primary before being replicated are not sent, replica leaves their places empty.
+     * Needs the write lock.
+     * @param removed indexes to be cut out of the catalog image
+     */
+    private long appendReplicated(FileEntry entry, int version, Set<Integer> removed) throws IOException {
+        int index = idSpace.toIndex(entry.getId());
+        padFiles(index);
+        if (index == files.size()) {
+            return append(entry, version);
+        }
+        final long ticket = catalogStore.append(entry, version);
+        if (files.get(index) != null) {
+            // Should have been archived first, so the primary has lost some changes
+            removed.add(index);
+            nameIndex.remove(index);
+        } else {
+            archive.remove(entry.getId());
+            seeders.revive(index, entry.getPartsCount(), System.currentTimeMillis());
+        }
+        if (removed.contains(index)) {
+            // Entry archived and revived since the last time, old place should be cut out first
+            catalogImage.remove(removed);
+            removed.clear();
+        }
+        files.set(index, entry);
+        catalogImage.append(index, entry, version);
+        nameIndex.put(index, entry);
+        return ticket;
+    }
+
+    /**
+     * Needs the write lock.
+     * @param removed indexes to be cut out of the catalog image
+     */
+    private long archiveReplicated(int id, int version, Set<Integer> removed) throws IOException {
+        int index = idSpace.toIndex(id);
+        padFiles(index + 1);
+        final long ticket = catalogStore.appendArchive(id, version);
+        FileEntry entry = files.get(index);
+        if (entry != null) {
+            archive.add(entry);
+            files.set(index, null);
+            nameIndex.remove(index);
+            seeders.archive(index);
+            removed.add(index);
+        }
+        catalogImage.archive(index, version);
+        return ticket;
+    }
+
+    /**
+     * Takes every hot entry of the primary, archiving the rest. These changes are not journaled, so the
+     * catalog is saved to a snapshot at once; if that fails, the old catalog is loaded on restart and
+     * replicated anew.
+     */
+    private void resync(CatalogChanges changes) throws IOException {
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            padFiles(changes.getFilesCount());
+            List<FileEntry> newFiles = new ArrayList<>(Collections.nCopies(files.size(), null));
+            List<Integer> versions = new ArrayList<>(Collections.nCopies(files.size(), 0));
+            for (int i = 0; i != changes.getEntries().size(); i++) {
+                FileEntry entry = changes.getEntries().get(i);
+                int index = idSpace.toIndex(entry.getId());
+                newFiles.set(index, entry);
+                versions.set(index, changes.getVersions().get(i));
+            }
+            long now = System.currentTimeMillis();
+            for (int index = 0; index != files.size(); index++) {
+                FileEntry entry = files.get(index);
+                FileEntry newEntry = newFiles.get(index);
+                if (entry != null && newEntry == null) {
+                    archive.add(entry);
+                    seeders.archive(index);
+                } else if (entry == null && newEntry != null) {
+                    archive.remove(newEntry.getId());
+                    seeders.revive(index, newEntry.getPartsCount(), now);
+                }
+                files.set(index, newEntry);
+            }
+            catalogImage.reset(files, versions, changes.getVersion());
+            nameIndex = new NameIndex(files);
+        }
+        snapshot();
+    }
+
+    /**
+     * Fills the catalog with empty places up to given size. Needs the write lock.
+     */
+    private void padFiles(int size) {
+        while (files.size() < size) {
+            files.add(null);
+            nameIndex.add(null);
+            seeders.addFile(0);
+        }
+    }
+
+    /**
+     * Replica only: adds the entry to the catalog, which should be locked for writing. Unlike uploads, replicated
+     * entries are published before their records are on disk: if they are lost, they are replicated again.
+     * @return ticket of the journal record, see CatalogStore.sync
+     */
+    private long append(FileEntry entry, int version) throws IOException {
+        final long ticket = catalogStore.append(entry, version);
+        files.add(entry);
+        catalogImage.append(files.size() - 1, entry, version);
+        nameIndex.add(entry);
+        seeders.addFile(entry.getPartsCount());
+        return ticket;
+    }
+
     private void doUpdate(TorrentTrackerConnection connection) throws IOException {
         ClientInfo receivedClientInfo = connection.readUpdateRequest();
-        ClientInfo clientInfo = new ClientInfo(
-                new InetSocketAddress(connection.getHost(), receivedClientInfo.getSocketAddress().getPort()),
-                receivedClientInfo.getIds()
+        Long address = getSeederAddress(connection, receivedClientInfo);
+        if (address == null) {
+            connection.writeUpdateResponse(false);
+            return;
+        }
+        reviveArchived(receivedClientInfo.getIds());
+        List<Integer> indexes;
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            indexes = receivedClientInfo.getIds().stream()
+                    .map(this::getIndex)
+                    .filter(index -> index != -1)
+                    .collect(Collectors.toList());
+        }
+        seeders.announce(address, indexes, getLeaseDeadline(TorrentTrackerConnection.UPDATE_DELAY));
+        connection.writeUpdateResponse(true);
+    }
+
+    private void doUpdateParts(TorrentTrackerConnection connection) throws IOException {
+        ClientInfo receivedClientInfo = connection.readUpdatePartsRequest();
+        Long address = getSeederAddress(connection, receivedClientInfo);
+        if (address == null) {
+            connection.writeUpdateResponse(false);
+            return;
+        }
+        reviveArchived(receivedClientInfo.getIds());
+        seeders.announce(
+                address,
+                getLocalParts(receivedClientInfo),
+                Collections.emptyList(),
+                getLeaseDeadline(TorrentTrackerConnection.UPDATE_DELAY)
         );
+        connection.writeUpdateResponse(true);
+    }
+
+    private void doAnnounceDelta(TorrentTrackerConnection connection) throws IOException {
+        AnnounceDelta delta = connection.readAnnounceDeltaRequest();
+        int interval = getAnnounceInterval();
+        Long address = getSeederAddress(connection, delta.getChanged().getSocketAddress().getPort());
+        if (address == null) {
+            connection.writeAnnounceDeltaResponse(
+                    new AnnounceResponse(TorrentTrackerConnection.ANNOUNCE_REJECTED, interval)
+            );
+            return;
+        }
+        reviveArchived(delta.getChanged().getIds());
+        Map<Integer, byte[]> changed = getLocalParts(delta.getChanged());
+        List<Integer> completed = getLocalIndexes(delta.getCompleted());
+        long deadline = getLeaseDeadline(interval);
+        if (delta.isFull()) {
+            int version = seeders.announce(address, changed, completed, deadline);
+            connection.writeAnnounceDeltaResponse(new AnnounceResponse(version, interval));
+            return;
+        }
+        List<Integer> removed = getLocalIndexes(delta.getRemoved());
+        int version = seeders.announceDelta(address, delta.getBase(), changed, removed, completed, deadline);
+        connection.writeAnnounceDeltaResponse(new AnnounceResponse(version, interval));
+    }
+
+    private void doKeepAlive(TorrentTrackerConnection connection) throws IOException {
+        KeepAliveRequest request = connection.readKeepAliveRequest();
+        int interval = getAnnounceInterval();
+        Long address = getSeederAddress(connection, request.getPort());
+        boolean isRenewed = address != null
+                && seeders.keepAlive(address, request.getVersion(), getLeaseDeadline(interval));
+        connection.writeKeepAliveResponse(new AnnounceResponse(
+                isRenewed ? request.getVersion() : TorrentTrackerConnection.ANNOUNCE_REJECTED,
+                interval
+        ));
+    }
+
+    private void doSourcesParts(TorrentTrackerConnection connection, boolean isForwarded) throws IOException {
+        int id = connection.readSourcesPartsRequest();
+        if (isForeign(id, isForwarded)) {
+            byte[] encoded = callOwner(id, owner -> {
+                owner.writeSourcesPartsRequest(id);
+                return owner.readEncodedSourcesPartsResponse();
+            });
+            connection.writeSourcesResponse(encoded);
+            return;
+        }
+        int index;
+        int partsCount = 0;
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            index = getIndex(id);
+            if (index != -1) {
+                partsCount = files.get(index).getPartsCount();
+            }
+        }
+        connection.writeSourcesResponse(seeders.getEncodedPartSources(
+                index,
+                partsCount,
+                config.getPeerSelector(),
+                getRequester(connection)
+        ));
+    }
+
+    private void doScrape(TorrentTrackerConnection connection, boolean isForwarded) throws IOException {
+        List<Integer> ids = connection.readScrapeRequest();
+        List<Integer> indexes = new ArrayList<>();
+        Map<Integer, List<Integer>> foreign = new HashMap<>();
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            for (int i = 0; i != ids.size(); i++) {
+                int id = ids.get(i);
+                if (isForeign(id, isForwarded)) {
+                    int shard = IdSpace.getShard(id, idSpace.getShardsCount());
+                    foreign.computeIfAbsent(shard, key -> new ArrayList<>()).add(i);
+                    indexes.add(-1);
+                } else {
+                    // Archived files keep their download counters
+                    indexes.add(idSpace.toIndex(id));
+                }
+            }
+        }
+        List<SwarmStats> stats = seeders.getStats(indexes);
+        for (List<Integer> positions : foreign.values()) {
+            List<Integer> foreignIds = positions.stream().map(ids::get).collect(Collectors.toList());
+            List<SwarmStats> foreignStats = callOwner(foreignIds.get(0), owner -> {
+                owner.writeScrapeRequest(foreignIds);
+                return owner.readScrapeResponse();
+            });
+            for (int i = 0; i != positions.size(); i++) {
+                stats.set(positions.get(i), foreignStats.get(i));
+            }
+        }
+        connection.writeScrapeResponse(stats);
+    }
+
+    /**
+     * @return distinct local indexes of the files with given ids that are known here
+     */
+    private List<Integer> getLocalIndexes(List<Integer> ids) {
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            return ids.stream()
+                    .map(this::getIndex)
+                    .filter(index -> index != -1)
+                    .distinct()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return bitmaps of the files reported that are known here, by local index; null for wrong bitmaps
+     */
+    private Map<Integer, byte[]> getLocalParts(ClientInfo info) {
+        Map<Integer, byte[]> parts = new HashMap<>();
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            for (int i = 0; i != info.getIds().size(); i++) {
+                int index = getIndex(info.getIds().get(i));
+                if (index == -1) {
+                    continue;
+                }
+                byte[] bitmap = info.getParts().get(i);
+                boolean isValid = bitmap.length == PartsSet.getBitmapLength(files.get(index).getPartsCount());
+                parts.put(index, isValid ? bitmap : null);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * @return local index of the file with given id, or -1 if there is no such file here or it is archived;
+     * needs the lock
+     */
+    private int getIndex(int id) {
+        int index = idSpace.toIndex(id);
+        return index >= 0 && index < files.size() && files.get(index) != null ? index : -1;
+    }
+
+    /**
+     * @return whether the file with given id is archived; needs the lock
+     */
+    private boolean isArchived(int id) {
+        int index = idSpace.toIndex(id);
+        return index != -1 && index < files.size() && files.get(index) == null && archive.contains(id);
+    }
+
+    /**
+     * Brings back archived files that are announced again.
+     */
+    private void reviveArchived(List<Integer> ids) throws IOException {
+        boolean hasArchived = false;
+        try (LockHandler handler = LockHandler.lock(lock.readLock())) {
+            for (int id : ids) {
+                if (isArchived(id)) {
+                    hasArchived = true;
+                    break;
+                }
+            }
+        }
+        if (!hasArchived) {
+            return;
+        }
         try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
-            for (int id : clientInfo.getIds()) {
-                seeders.putIfAbsent(id, new HashSet<>());
-                seeders.get(id).add(clientInfo);
+            try {
+                for (int id : ids) {
+                    if (isArchived(id)) {
+                        revive(id);
+                    }
+                }
+            } finally {
+                publishCatalog();
             }
         }
+    }
 
-        scheduler.schedule(() -> {
-            try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
-                for (int id : clientInfo.getIds()) {
-                    seeders.get(id).remove(clientInfo);
+    /**
+     * Moves files without seeders for the configured period to the archive, and back the archived ones
+     * seeded anyway.
+     */
+    private void archiveIdle() {
+        long now = System.currentTimeMillis();
+        List<Integer> changed = seeders.checkIdle(now, config.getArchiveAfter());
+        if (changed.isEmpty()) {
+            return;
+        }
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            Set<Integer> removed = new HashSet<>();
+            try {
+                for (int index : changed) {
+                    FileEntry entry = files.get(index);
+                    if (entry == null) {
+                        revive(idSpace.toId(index));
+                        continue;
+                    }
+                    if (!seeders.archiveIfIdle(index, now, config.getArchiveAfter())) {
+                        // Announced or revived since the check
+                        continue;
+                    }
+                    int version = catalogImage.getNextVersion();
+                    try {
+                        // Not synced: if lost, the file is archived on the next check again
+                        catalogStore.appendArchive(entry.getId(), version);
+                    } catch (IOException e) {
+                        seeders.revive(index, entry.getPartsCount(), now);
+                        throw e;
+                    }
+                    archive.add(entry);
+                    files.set(index, null);
+                    nameIndex.remove(index);
+                    catalogImage.archive(index, version);
+                    removed.add(index);
                 }
+            } finally {
+                catalogImage.remove(removed);
+                publishCatalog();
             }
-        }, TorrentTrackerConnection.UPDATE_DELAY, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        connection.writeUpdateResponse(true);
+    /**
+     * Puts the entry to the tail of the catalog image with a new version, so that LIST_SINCE and replicas see
+     * it again. Needs the write lock, changes should be published afterwards.
+     */
+    private void revive(int id) throws IOException {
+        if (!archive.contains(id)) {
+            return;
+        }
+        int version = catalogImage.getNextVersion();
+        // Not synced: if lost, the file is revived by the next announce again
+        catalogStore.appendRevive(id, version);
+        FileEntry entry = archive.remove(id);
+        int index = idSpace.toIndex(id);
+        files.set(index, entry);
+        catalogImage.append(index, entry, version);
+        nameIndex.put(index, entry);
+        seeders.revive(index, entry.getPartsCount(), System.currentTimeMillis());
     }
 
-    private void store() throws IOException {
-        Path path = workingDir.resolve(STATE_FILE);
-        if (!Files.exists(path)) {
-            Files.createDirectories(workingDir);
-            Files.createFile(path);
+    /**
+     * @return whether the id belongs to another shard of the cluster
+     * @throws IOException if the request has been forwarded here already, as shards disagree on the cluster
+     */
+    private boolean isForeign(int id, boolean isForwarded) throws IOException {
+        boolean isForeign = id >= 0 && !idSpace.owns(id);
+        if (isForeign && isForwarded) {
+            throw new IOException(
+                    String.format("Forwarded request for file %d, which is owned by another shard.", id)
+            );
         }
-        try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(path))) {
-            IOUtils.writeCollection(files, (dos1, o) -> o.writeTo(dos1), dos);
+        return isForeign;
+    }
+
+    /**
+     * Passes the request to the owning shard, marked as forwarded.
+     * Blocks the worker thread that serves it, but only misrouted requests get here.
+     */
+    private <T> T callOwner(int id, TrackerConnectionPool.Call<T> call) throws IOException {
+        return peers.execute(config.getCluster().get(IdSpace.getShard(id, idSpace.getShardsCount())), owner -> {
+            owner.writeForwardedPrefix();
+            return call.call(owner);
+        });
+    }
+
+    /**
+     * @return packed address of the seeder server, or null if it cannot be represented in the protocol
+     */
+    private Long getSeederAddress(TorrentTrackerConnection connection, ClientInfo info) {
+        return getSeederAddress(connection, info.getSocketAddress().getPort());
+    }
+
+    private Long getSeederAddress(TorrentTrackerConnection connection, int port) {
+        InetSocketAddress address = new InetSocketAddress(connection.getHost(), port);
+        if (!(address.getAddress() instanceof Inet4Address)) {
+            return null;
+        }
+        return IOUtils.packAddress(address);
+    }
+
+    /**
+     * Interval grows with the number of seeders, so that their announces come at the configured rate.
+     * @return announce interval to give to seeders, in milliseconds
+     */
+    private int getAnnounceInterval() {
+        long interval = (long) seeders.getLeasesCount() * SECOND / config.getAnnounceRate();
+        interval = Math.min(config.getMaxAnnounceInterval(), interval);
+        return (int) Math.max(config.getMinAnnounceInterval(), interval);
+    }
+
+    /**
+     * Lease outlives the interval by half, so that late announces do not drop it.
+     */
+    private static long getLeaseDeadline(int interval) {
+        return System.currentTimeMillis() + getLeaseDuration(interval);
+    }
+
+    private static long getLeaseDuration(int interval) {
+        return interval + interval / 2;
+    }
+
+    /**
+     * @return packed address of the requester for PeerSelector
+     */
+    private long getRequester(TorrentTrackerConnection connection) {
+        Long address = getSeederAddress(connection, 0);
+        return address == null ? PeerSelector.UNKNOWN_REQUESTER : address;
+    }
+
+    private void syncJournal(long ticket) throws IOException {
+        long start = System.nanoTime();
+        catalogStore.sync(ticket);
+        metrics.recordJournalSync(System.nanoTime() - start);
+    }
+
+    private void saveLeases() {
+        try {
+            long start = System.nanoTime();
+            leaseStore.save(seeders);
+            metrics.recordLeaseSave(System.nanoTime() - start);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void snapshotIfNeeded() {
+        if (catalogStore.getJournalLength() < SNAPSHOT_JOURNAL_THRESHOLD) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void snapshot() throws IOException {
+        CatalogImage.Version snapshot;
+        CatalogArchive archiveSnapshot;
+        long generation;
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            generation = catalogStore.rotate();
+            // Journal is on disk now, and pending uploads are to be in the snapshot, as their records go away
+            publishSynced();
+            snapshot = catalogImage.getLatest();
+            archiveSnapshot = archive.copy();
+        }
+        long start = System.nanoTime();
+        CatalogArchive.Segment segment = catalogStore.writeSnapshot(snapshot, archiveSnapshot, generation);
+        metrics.recordSnapshot(System.nanoTime() - start);
+        try (LockHandler handler = LockHandler.lock(lock.writeLock())) {
+            archive.setSegment(segment);
         }
     }
 
     private void load() throws IOException {
-        Path path = workingDir.resolve(STATE_FILE);
-        if (Files.exists(path)) {
-            try (DataInputStream dis = new DataInputStream(Files.newInputStream(path))) {
-                files = IOUtils.readCollection(new ArrayList<>(), dis1 -> FileEntry.readFrom(dis1, true), dis);
+        catalogStore = new CatalogStore(workingDir, idSpace);
+        archive = new CatalogArchive();
+        CatalogStore.Catalog catalog = catalogStore.load(archive);
+        files = catalog.getFiles();
+        catalogImage = new CatalogImage(files, catalog.getVersions(), catalog.getNextVersion());
+        nameIndex = new NameIndex(files);
+        long maxLeaseDuration = getLeaseDuration(config.getMaxAnnounceInterval());
+        // Replicas get no deltas, those of the primary are not theirs to give
+        int logCapacity = config.isReplica() ? 0 : config.getReplicationLog();
+        seeders = new SeederRegistry(maxLeaseDuration, logCapacity, System.currentTimeMillis());
+        for (int index = 0; index != files.size(); index++) {
+            FileEntry entry = files.get(index);
+            seeders.addFile(entry != null ? entry.getPartsCount() : 0);
+            if (entry == null) {
+                seeders.archive(index);
             }
-        } else {
-            files = new ArrayList<>();
         }
-        seeders = new HashMap<>();
+        leaseStore = new LeaseStore(workingDir, idSpace);
+        leaseStore.load(seeders, System.currentTimeMillis());
     }
 }
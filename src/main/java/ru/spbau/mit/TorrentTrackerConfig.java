@@ -0,0 +1,399 @@
+package ru.spbau.mit;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by ldvsoft on 12.05.16.
+ *
+ * Tunables of the tracker. Defaults reproduce the original thread-per-connection tracker.
+ */
+public class TorrentTrackerConfig {
+    public enum ServerMode {
+        /**
+         * Blocking accept loop, every connection is handled by its own pooled thread.
+         */
+        BLOCKING,
+        /**
+         * Selector-based reactors, thread count does not depend on the number of connections.
+         */
+        NIO
+    }
+
+    /**
+     * Requests are admitted separately by class, so cheap ones never wait behind bulk ones.
+     */
+    public enum RequestClass {
+        /**
+         * UPDATE and its variants, KEEPALIVE: small and frequent, lease expiry depends on them.
+         */
+        ANNOUNCE,
+        /**
+         * SOURCES and its variants, ENTRY, SCRAPE: small and latency-sensitive.
+         */
+        LOOKUP,
+        /**
+         * UPLOAD: waits for the journal to reach the disk.
+         */
+        UPLOAD,
+        /**
+         * LIST, LIST_SINCE and SEARCH: may go through the whole catalog.
+         */
+        BULK
+    }
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    private static final int ANNOUNCE_QUEUE = 1024;
+    private static final int LOOKUP_QUEUE = 1024;
+    private static final int UPLOAD_QUEUE = 256;
+    private static final int BULK_QUEUE = 16;
+    private static final int MAX_SESSIONS = 4096;
+    private static final int BUSY_RETRY_DELAY = 1000;
+    private static final int ADMISSION_TIMEOUT = 500;
+    private static final int PEERS_LIMIT = 50;
+    private static final int MAX_ANNOUNCE_INTERVAL = 30 * 60 * 1000;
+    private static final int ANNOUNCE_RATE = 1000;
+    private static final int REPLICATION_PERIOD = 1000;
+    private static final int REPLICATION_LOG = 64 * 1024;
+
+    private int port = TorrentTrackerConnection.TRACKER_PORT;
+    private boolean udpEnabled = false;
+    private List<InetSocketAddress> cluster = Collections.emptyList();
+    private int shard = 0;
+    private ServerMode mode = ServerMode.BLOCKING;
+    private int reactorThreads = PROCESSORS;
+    private int workerThreads = 2 * PROCESSORS;
+    private boolean reusePort = false;
+    private int sessionTimeout = TorrentTrackerConnection.SESSION_TIMEOUT;
+    private int maxSessions = MAX_SESSIONS;
+    private final Map<RequestClass, Integer> concurrencyLimits = new EnumMap<>(RequestClass.class);
+    private final Map<RequestClass, Integer> queueLimits = new EnumMap<>(RequestClass.class);
+    private int admissionTimeout = ADMISSION_TIMEOUT;
+    private int busyRetryDelay = BUSY_RETRY_DELAY;
+    private PeerSelector peerSelector = new RandomPeerSelector(PEERS_LIMIT, false);
+    private int minAnnounceInterval = TorrentTrackerConnection.UPDATE_DELAY;
+    private int maxAnnounceInterval = MAX_ANNOUNCE_INTERVAL;
+    private int announceRate = ANNOUNCE_RATE;
+    private InetSocketAddress primary = null;
+    private int replicationPeriod = REPLICATION_PERIOD;
+    private int replicationLog = REPLICATION_LOG;
+    private long archiveAfter = 0;
+    private int metricsPort = 0;
+
+    public TorrentTrackerConfig() {
+        setAdmissionLimits(RequestClass.ANNOUNCE, 2 * PROCESSORS, ANNOUNCE_QUEUE);
+        setAdmissionLimits(RequestClass.LOOKUP, 2 * PROCESSORS, LOOKUP_QUEUE);
+        setAdmissionLimits(RequestClass.UPLOAD, PROCESSORS, UPLOAD_QUEUE);
+        setAdmissionLimits(RequestClass.BULK, Math.max(1, PROCESSORS / 2), BULK_QUEUE);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public TorrentTrackerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public boolean isUdpEnabled() {
+        return udpEnabled;
+    }
+
+    /**
+     * Serves announces and lookups over UDP too, on the same port number, see TrackerUdpServer.
+     */
+    public TorrentTrackerConfig setUdpEnabled(boolean udpEnabled) {
+        this.udpEnabled = udpEnabled;
+        return this;
+    }
+
+    /**
+     * @return addresses of every shard of the cluster in shard order, empty if the tracker is standalone
+     */
+    public List<InetSocketAddress> getCluster() {
+        return cluster;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Makes this tracker a shard of a cluster: it owns only file ids congruent to shard modulo cluster size,
+     * and forwards requests for other ids to their owners.
+     * @param cluster addresses of all shards, including this one
+     * @param shard index of this tracker in cluster
+     */
+    public TorrentTrackerConfig setCluster(List<InetSocketAddress> cluster, int shard) {
+        if (shard < 0 || shard >= Math.max(1, cluster.size())) {
+            throw new IllegalArgumentException(String.format("Wrong shard %d of %d.", shard, cluster.size()));
+        }
+        this.cluster = new ArrayList<>(cluster);
+        this.shard = shard;
+        return this;
+    }
+
+    public IdSpace getIdSpace() {
+        if (cluster.isEmpty()) {
+            return IdSpace.SINGLE;
+        }
+        return new IdSpace(shard, cluster.size());
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public TorrentTrackerConfig setMode(ServerMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    public TorrentTrackerConfig setReactorThreads(int reactorThreads) {
+        if (reactorThreads <= 0) {
+            throw new IllegalArgumentException("There should be at least one reactor thread.");
+        }
+        this.reactorThreads = reactorThreads;
+        return this;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Threads handling requests in nio mode, reactor threads only read and write.
+     */
+    public TorrentTrackerConfig setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("There should be at least one worker thread.");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Bind a separate acceptor per reactor with SO_REUSEPORT, if the platform supports it.
+     */
+    public TorrentTrackerConfig setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Connections idle for longer than that between requests are closed by the tracker.
+     */
+    public TorrentTrackerConfig setSessionTimeout(int sessionTimeout) {
+        if (sessionTimeout <= 0) {
+            throw new IllegalArgumentException("Session timeout should be positive.");
+        }
+        this.sessionTimeout = sessionTimeout;
+        return this;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Connections above that are answered BUSY and closed right after being accepted.
+     */
+    public TorrentTrackerConfig setMaxSessions(int maxSessions) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("There should be at least one session allowed.");
+        }
+        this.maxSessions = maxSessions;
+        return this;
+    }
+
+    public int getConcurrencyLimit(RequestClass requestClass) {
+        return concurrencyLimits.get(requestClass);
+    }
+
+    public int getQueueLimit(RequestClass requestClass) {
+        return queueLimits.get(requestClass);
+    }
+
+    /**
+     * @param concurrency how many requests of the class may be handled at once
+     * @param queue how many more may wait for their turn, others are answered BUSY
+     */
+    public TorrentTrackerConfig setAdmissionLimits(RequestClass requestClass, int concurrency, int queue) {
+        if (concurrency <= 0 || queue < 0) {
+            throw new IllegalArgumentException("Concurrency should be positive and queue non-negative.");
+        }
+        concurrencyLimits.put(requestClass, concurrency);
+        queueLimits.put(requestClass, queue);
+        return this;
+    }
+
+    public int getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    /**
+     * Request waiting in a queue for longer than that is answered BUSY.
+     */
+    public TorrentTrackerConfig setAdmissionTimeout(int admissionTimeout) {
+        this.admissionTimeout = admissionTimeout;
+        return this;
+    }
+
+    public int getBusyRetryDelay() {
+        return busyRetryDelay;
+    }
+
+    /**
+     * Delay suggested to clients in BUSY responses.
+     */
+    public TorrentTrackerConfig setBusyRetryDelay(int busyRetryDelay) {
+        this.busyRetryDelay = busyRetryDelay;
+        return this;
+    }
+
+    /**
+     * @return policy choosing seeders for SOURCES and SOURCES_PARTS, by default 50 random ones
+     */
+    public PeerSelector getPeerSelector() {
+        return peerSelector;
+    }
+
+    public TorrentTrackerConfig setPeerSelector(PeerSelector peerSelector) {
+        this.peerSelector = peerSelector;
+        return this;
+    }
+
+    public int getMinAnnounceInterval() {
+        return minAnnounceInterval;
+    }
+
+    public int getMaxAnnounceInterval() {
+        return maxAnnounceInterval;
+    }
+
+    /**
+     * Bounds of the interval the tracker asks seeders to announce with, in milliseconds;
+     * by default from UPDATE_DELAY to 30 minutes.
+     */
+    public TorrentTrackerConfig setAnnounceInterval(int minAnnounceInterval, int maxAnnounceInterval) {
+        if (minAnnounceInterval <= 0 || maxAnnounceInterval < minAnnounceInterval) {
+            throw new IllegalArgumentException("Wrong announce interval bounds.");
+        }
+        this.minAnnounceInterval = minAnnounceInterval;
+        this.maxAnnounceInterval = maxAnnounceInterval;
+        return this;
+    }
+
+    public int getAnnounceRate() {
+        return announceRate;
+    }
+
+    /**
+     * Announces per second the tracker aims at: interval grows with the number of seeders to keep to it.
+     */
+    public TorrentTrackerConfig setAnnounceRate(int announceRate) {
+        if (announceRate <= 0) {
+            throw new IllegalArgumentException("Announce rate should be positive.");
+        }
+        this.announceRate = announceRate;
+        return this;
+    }
+
+    /**
+     * @return address of the primary this tracker replicates, null if it is a primary itself
+     */
+    public InetSocketAddress getPrimary() {
+        return primary;
+    }
+
+    public boolean isReplica() {
+        return primary != null;
+    }
+
+    /**
+     * Makes this tracker a read-only replica: it follows the catalog and the seeders of the primary and serves
+     * reads itself. Uploads are passed to the primary, announces are rejected and should go to the primary.
+     * Cluster settings should be the same as those of the primary.
+     */
+    public TorrentTrackerConfig setPrimary(InetSocketAddress primary) {
+        this.primary = primary;
+        return this;
+    }
+
+    public int getReplicationPeriod() {
+        return replicationPeriod;
+    }
+
+    /**
+     * How often a replica asks the primary for changes, in milliseconds.
+     */
+    public TorrentTrackerConfig setReplicationPeriod(int replicationPeriod) {
+        if (replicationPeriod <= 0) {
+            throw new IllegalArgumentException("Replication period should be positive.");
+        }
+        this.replicationPeriod = replicationPeriod;
+        return this;
+    }
+
+    public int getReplicationLog() {
+        return replicationLog;
+    }
+
+    /**
+     * Number of recent seeder changes a primary keeps for its replicas. Replicas that are behind by more,
+     * or all of them if none are kept, get every seeder instead.
+     */
+    public TorrentTrackerConfig setReplicationLog(int replicationLog) {
+        if (replicationLog < 0) {
+            throw new IllegalArgumentException("Replication log size should not be negative.");
+        }
+        this.replicationLog = replicationLog;
+        return this;
+    }
+
+    public long getArchiveAfter() {
+        return archiveAfter;
+    }
+
+    /**
+     * Files having no seeders for that long, in milliseconds, are moved to the archive: they are left out of
+     * LIST and SEARCH but may still be asked for by id, and come back once announced. 0 never archives.
+     */
+    public TorrentTrackerConfig setArchiveAfter(long archiveAfter) {
+        if (archiveAfter < 0) {
+            throw new IllegalArgumentException("Archive period should not be negative.");
+        }
+        this.archiveAfter = archiveAfter;
+        return this;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Port of the HTTP endpoint serving metrics in Prometheus text format at /metrics, on the loopback
+     * interface only. 0 serves no metrics.
+     */
+    public TorrentTrackerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+}
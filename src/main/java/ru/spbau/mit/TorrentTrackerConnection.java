@@ -1,12 +1,16 @@
 package ru.spbau.mit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
@@ -14,17 +18,105 @@ import java.util.List;
  */
 public class TorrentTrackerConnection extends Connection {
     public static final int TRACKER_PORT = 8081;
+    /**
+     * Announce interval of UPDATE and UPDATE_PARTS, and the shortest one the tracker gives by default.
+     */
     public static final int UPDATE_DELAY = 60 * 1000;
+    /**
+     * Default time a session may stay idle between requests before the tracker closes it.
+     */
+    public static final int SESSION_TIMEOUT = 30 * 1000;
 
     public static final int REQUEST_LIST = 1;
     public static final int REQUEST_UPLOAD = 2;
     public static final int REQUEST_SOURCES = 3;
     public static final int REQUEST_UPDATE = 4;
+    public static final int REQUEST_LIST_SINCE = 5;
+    public static final int REQUEST_ENTRY = 6;
+    public static final int REQUEST_UPDATE_PARTS = 7;
+    public static final int REQUEST_SOURCES_PARTS = 8;
+    public static final int REQUEST_ANNOUNCE_DELTA = 9;
+    public static final int REQUEST_KEEPALIVE = 10;
+    public static final int REQUEST_SEARCH = 11;
+    public static final int REQUEST_SCRAPE = 12;
+    public static final int REQUEST_REPLICATE = 13;
+    public static final int REQUEST_BULK_UPLOAD = 14;
+    /**
+     * Prefix of a request one shard passes to another, which owns the files asked about.
+     */
+    public static final int REQUEST_FORWARDED = 15;
+    /**
+     * Largest SEARCH page the tracker gives, greater limits are cut to it.
+     */
+    public static final int MAX_SEARCH_LIMIT = 1000;
+    /**
+     * Largest BULK_UPLOAD batch the tracker takes, as the whole batch is added under its lock; the session is
+     * closed on larger ones.
+     */
+    public static final int MAX_BULK_UPLOAD = 1000;
+    /**
+     * ANNOUNCE_DELTA response when the base does not match, client should send a full announce then.
+     */
+    public static final int ANNOUNCE_REJECTED = 0;
+    /**
+     * First byte of the BUSY response, which may come instead of any other one. No regular response starts
+     * with it: they all start with a boolean, a count or an id.
+     */
+    public static final int RESPONSE_BUSY = 0xFF;
+    /**
+     * Longest time the tracker reads and drops a refused request after BUSY before closing the connection.
+     */
+    public static final int BUSY_LINGER = 1000;
+    /**
+     * Largest request the NIO tracker buffers, the session is closed on larger ones.
+     */
+    public static final int MAX_REQUEST_SIZE = 4 * 1024 * 1024;
 
     public TorrentTrackerConnection(Socket socket) throws IOException {
         super(socket);
     }
 
+    public TorrentTrackerConnection(InputStream input, OutputStream output, InetSocketAddress remoteAddress) {
+        super(input, output, remoteAddress);
+    }
+
+    // FORWARDED: <15: Byte> <request>; the receiver answers the request only if it owns
+    //      the files, and never forwards it again
+
+    /**
+     * Marks the request written next as forwarded, without flushing, so that both go in one packet.
+     */
+    /*package*/ void writeForwardedPrefix() throws IOException {
+        getOutput().writeByte(REQUEST_FORWARDED);
+    }
+
+    // BUSY: <0xFF: Byte> <retry-after-ms: Int>, then the tracker shuts down its output, drops whatever comes
+    //      until the client closes the connection or for BUSY_LINGER, and closes it too
+
+    public void writeBusyResponse(int retryAfter) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(RESPONSE_BUSY);
+        dos.writeInt(retryAfter);
+        dos.flush();
+    }
+
+    /**
+     * Throws TrackerBusyException if BUSY comes instead of the response expected.
+     */
+    private void checkBusy() throws IOException {
+        DataInputStream dis = getInput();
+        if (!dis.markSupported()) {
+            return;
+        }
+        dis.mark(1);
+        int first = dis.read();
+        dis.reset();
+        if (first == RESPONSE_BUSY) {
+            dis.readUnsignedByte();
+            throw new TrackerBusyException(dis.readInt());
+        }
+    }
+
     // LIST
 
     public void writeListRequest() throws IOException {
@@ -43,10 +135,91 @@ public class TorrentTrackerConnection extends Connection {
         getOutput().flush();
     }
 
+    /**
+     * @param encodedEntries entries encoded with FileEntry.writeTo, with ids
+     */
+    public void writeListResponse(int count, byte[] encodedEntries, int length) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeInt(count);
+        dos.write(encodedEntries, 0, length);
+        dos.flush();
+    }
+
     public List<FileEntry> readListResponse() throws IOException {
+        checkBusy();
         return readCollection(new ArrayList<>(), (dis) -> FileEntry.readFrom(dis, true));
     }
 
+    // LIST_SINCE: <5: Byte> <since: Int> -> <version: Int> <count: Int> (<id: Int> <name: String> <size: Long>)*
+    // Versions are catalog versions (see CatalogImage): entries uploaded or revived since are sent, by version
+
+    public void writeListSinceRequest(int since) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_LIST_SINCE);
+        dos.writeInt(since);
+        dos.flush();
+    }
+
+    public int readListSinceRequest() throws IOException {
+        return getInput().readInt();
+    }
+
+    /**
+     * @param encodedEntries entries encoded with FileEntry.writeTo, with ids
+     */
+    public void writeListSinceResponse(
+            int version,
+            int count,
+            byte[] encodedEntries,
+            int offset,
+            int length
+    ) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeInt(version);
+        dos.writeInt(count);
+        dos.write(encodedEntries, offset, length);
+        dos.flush();
+    }
+
+    public CatalogDelta readListSinceResponse() throws IOException {
+        checkBusy();
+        int version = getInput().readInt();
+        return new CatalogDelta(version, readListResponse());
+    }
+
+    // ENTRY: <6: Byte> <id: Int> -> <found: Boolean> [<id: Int> <name: String> <size: Long>]
+
+    public void writeEntryRequest(int fileId) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_ENTRY);
+        dos.writeInt(fileId);
+        dos.flush();
+    }
+
+    public int readEntryRequest() throws IOException {
+        return getInput().readInt();
+    }
+
+    public void writeEntryResponse(FileEntry entry) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeBoolean(entry != null);
+        if (entry != null) {
+            entry.writeTo(dos);
+        }
+        dos.flush();
+    }
+
+    /**
+     * @return entry, or null if tracker has no such file
+     */
+    public FileEntry readEntryResponse() throws IOException {
+        checkBusy();
+        if (!getInput().readBoolean()) {
+            return null;
+        }
+        return FileEntry.readFrom(getInput(), true);
+    }
+
     // UPLOAD
 
     public void writeUploadRequest(FileEntry file) throws IOException {
@@ -71,9 +244,54 @@ public class TorrentTrackerConnection extends Connection {
     }
 
     public int readUploadResponse() throws IOException {
+        checkBusy();
         return getInput().readInt();
     }
 
+    // BULK_UPLOAD: <14: Byte> <count: Int> (<name: String> <size: Long>)* -> <ids: Collection<Int>>, in order;
+    //      count is MAX_BULK_UPLOAD at most
+
+    public void writeBulkUploadRequest(Collection<FileEntry> files) throws IOException {
+        if (files.size() > MAX_BULK_UPLOAD) {
+            throw new IllegalArgumentException(
+                    String.format("Cannot upload more than %d files at once.", MAX_BULK_UPLOAD)
+            );
+        }
+        for (FileEntry file : files) {
+            if (file.hasId()) {
+                throw new IllegalStateException("Uploading file cannot have id.");
+            }
+        }
+
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_BULK_UPLOAD);
+        writeCollection(files, (output, file) -> file.writeTo(output));
+        dos.flush();
+    }
+
+    public List<FileEntry> readBulkUploadRequest() throws IOException {
+        DataInputStream dis = getInput();
+        int count = dis.readInt();
+        if (count < 0 || count > MAX_BULK_UPLOAD) {
+            throw new IOException(String.format("Wrong BULK_UPLOAD batch of %d files.", count));
+        }
+        List<FileEntry> files = new ArrayList<>(count);
+        for (int i = 0; i != count; i++) {
+            files.add(FileEntry.readFrom(dis, false));
+        }
+        return files;
+    }
+
+    public void writeBulkUploadResponse(Collection<Integer> fileIds) throws IOException {
+        writeCollection(fileIds, DataOutputStream::writeInt);
+        getOutput().flush();
+    }
+
+    public List<Integer> readBulkUploadResponse() throws IOException {
+        checkBusy();
+        return readCollection(new ArrayList<>(), DataInputStream::readInt);
+    }
+
     // SOURCES
 
     public void writeSourcesRequest(Collection<Integer> ids) throws IOException {
@@ -95,7 +313,33 @@ public class TorrentTrackerConnection extends Connection {
         writeCollection(addresses, IOUtils::writeAddress);
     }
 
+    public void writeSourcesResponse(long[] packedAddresses) throws IOException {
+        writeSourcesResponse(packedAddresses, packedAddresses.length);
+    }
+
+    /**
+     * Sends only the first count addresses.
+     */
+    public void writeSourcesResponse(long[] packedAddresses, int count) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeInt(count);
+        for (int i = 0; i != count; i++) {
+            IOUtils.writePackedAddress(dos, packedAddresses[i]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * @param encoded whole response, already encoded
+     */
+    public void writeSourcesResponse(byte[] encoded) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.write(encoded);
+        dos.flush();
+    }
+
     public List<InetSocketAddress> readSourcesResponse() throws IOException {
+        checkBusy();
         return readCollection(new ArrayList<>(), IOUtils::readAddress);
     }
 
@@ -123,6 +367,278 @@ public class TorrentTrackerConnection extends Connection {
     }
 
     public boolean readUpdateResponse() throws IOException {
+        checkBusy();
         return getInput().readBoolean();
     }
+
+    // UPDATE_PARTS: <7: Byte> <address> <count: Int> (<id: Int> <length: Int> <bitmap: Bytes>)* -> same as UPDATE
+
+    public void writeUpdatePartsRequest(ClientInfo info) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_UPDATE_PARTS);
+        info.writePartsTo(dos);
+        dos.flush();
+    }
+
+    public ClientInfo readUpdatePartsRequest() throws IOException {
+        return ClientInfo.readPartsFrom(getInput());
+    }
+
+    // SOURCES_PARTS: <8: Byte> <id: Int>
+    //     -> <count: Int> (<ip: Int> <port: Short> <available: Int> <length: Int> <bitmap: Bytes>)*
+
+    public void writeSourcesPartsRequest(int fileId) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_SOURCES_PARTS);
+        dos.writeInt(fileId);
+        dos.flush();
+    }
+
+    public int readSourcesPartsRequest() throws IOException {
+        return getInput().readInt();
+    }
+
+    /**
+     * Reads the response as is, to pass it further. Parts count is not known here, so bitmaps are only checked
+     * to be not too long for any file.
+     */
+    public byte[] readEncodedSourcesPartsResponse() throws IOException {
+        checkBusy();
+        DataInputStream dis = getInput();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(stream);
+        int count = readSourcesCount(dis);
+        dos.writeInt(count);
+        for (int i = 0; i != count; i++) {
+            IOUtils.writeAddress(dos, IOUtils.readAddress(dis));
+            dos.writeInt(dis.readInt());
+            int length = dis.readInt();
+            if (length < 0 || length > ClientInfo.MAX_BITMAP_LENGTH) {
+                throw new IOException("Wrong parts bitmap length: " + length);
+            }
+            byte[] bitmap = new byte[length];
+            dis.readFully(bitmap);
+            dos.writeInt(bitmap.length);
+            dos.write(bitmap);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * @return seeders in the order of preference, mapped to their parts or null if unknown
+     */
+    public LinkedHashMap<InetSocketAddress, PartsSet> readSourcesPartsResponse(int partsCount) throws IOException {
+        checkBusy();
+        DataInputStream dis = getInput();
+        LinkedHashMap<InetSocketAddress, PartsSet> result = new LinkedHashMap<>();
+        int count = readSourcesCount(dis);
+        int bitmapLength = PartsSet.getBitmapLength(partsCount);
+        for (int i = 0; i != count; i++) {
+            InetSocketAddress address = IOUtils.readAddress(dis);
+            int available = dis.readInt();
+            int length = dis.readInt();
+            if (length != 0 && length != bitmapLength) {
+                throw new IOException(String.format("Bitmap of %d bytes for %d parts.", length, partsCount));
+            }
+            byte[] bitmap = new byte[length];
+            dis.readFully(bitmap);
+            if (available < 0 || length != bitmapLength) {
+                result.put(address, null);
+            } else {
+                result.put(address, PartsSet.fromBitmap(bitmap, partsCount));
+            }
+        }
+        return result;
+    }
+
+    private static int readSourcesCount(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count < 0) {
+            throw new IOException("Wrong seeders count: " + count);
+        }
+        return count;
+    }
+
+    // ANNOUNCE_DELTA: <9: Byte> <delta, see AnnounceDelta> -> <version: Int> <interval: Int>,
+    //      version is ANNOUNCE_REJECTED if base is wrong
+
+    public void writeAnnounceDeltaRequest(AnnounceDelta delta) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_ANNOUNCE_DELTA);
+        delta.writeTo(dos);
+        dos.flush();
+    }
+
+    public AnnounceDelta readAnnounceDeltaRequest() throws IOException {
+        return AnnounceDelta.readFrom(getInput());
+    }
+
+    public void writeAnnounceDeltaResponse(AnnounceResponse response) throws IOException {
+        DataOutputStream dos = getOutput();
+        response.writeTo(dos);
+        dos.flush();
+    }
+
+    public AnnounceResponse readAnnounceDeltaResponse() throws IOException {
+        checkBusy();
+        return AnnounceResponse.readFrom(getInput());
+    }
+
+    // KEEPALIVE: <10: Byte> <port: Short> <version: Int> -> <version: Int> <interval: Int>,
+    //      version is the same if the lease is renewed, ANNOUNCE_REJECTED otherwise
+
+    public void writeKeepAliveRequest(KeepAliveRequest request) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_KEEPALIVE);
+        request.writeTo(dos);
+        dos.flush();
+    }
+
+    public KeepAliveRequest readKeepAliveRequest() throws IOException {
+        return KeepAliveRequest.readFrom(getInput());
+    }
+
+    public void writeKeepAliveResponse(AnnounceResponse response) throws IOException {
+        DataOutputStream dos = getOutput();
+        response.writeTo(dos);
+        dos.flush();
+    }
+
+    public AnnounceResponse readKeepAliveResponse() throws IOException {
+        checkBusy();
+        return AnnounceResponse.readFrom(getInput());
+    }
+
+    // SEARCH: <11: Byte> <query: String> <after: Int> <limit: Int>
+    //      -> <more: Boolean> <count: Int> (<id: Int> <name: String> <size: Long>)*
+
+    public void writeSearchRequest(SearchRequest request) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_SEARCH);
+        request.writeTo(dos);
+        dos.flush();
+    }
+
+    public SearchRequest readSearchRequest() throws IOException {
+        return SearchRequest.readFrom(getInput());
+    }
+
+    public void writeSearchResponse(SearchResult result) throws IOException {
+        getOutput().writeBoolean(result.hasMore());
+        writeListResponse(result.getEntries());
+    }
+
+    public SearchResult readSearchResponse() throws IOException {
+        checkBusy();
+        boolean hasMore = getInput().readBoolean();
+        return new SearchResult(readListResponse(), hasMore);
+    }
+
+    // SCRAPE: <12: Byte> <ids: Collection<Int>>
+    //      -> <count: Int> (<seeders: Int> <leechers: Int> <downloaded: Int>)*, in the order of ids,
+    //      all zeros for unknown files
+
+    public void writeScrapeRequest(Collection<Integer> ids) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_SCRAPE);
+        writeCollection(ids, DataOutputStream::writeInt);
+        dos.flush();
+    }
+
+    public List<Integer> readScrapeRequest() throws IOException {
+        return readCollection(new ArrayList<>(), DataInputStream::readInt);
+    }
+
+    public void writeScrapeResponse(List<SwarmStats> stats) throws IOException {
+        writeCollection(stats, (dos, item) -> item.writeTo(dos));
+        getOutput().flush();
+    }
+
+    public List<SwarmStats> readScrapeResponse() throws IOException {
+        checkBusy();
+        return readCollection(new ArrayList<>(), SwarmStats::readFrom);
+    }
+
+    // REPLICATE: <13: Byte> <request, see ReplicateRequest>
+    //      -> <version: Int> <files count: Int> <full: Boolean> <count: Int> <entries, as in LIST_SINCE>
+    //         <versions: count of Int> <archived: Collection<(<version: Int> <id: Int>)>>
+    //         <seeder changes length: Int> <seeder changes, see SeederRegistry.writeChanges>
+
+    public void writeReplicateRequest(ReplicateRequest request) throws IOException {
+        DataOutputStream dos = getOutput();
+        dos.writeByte(REQUEST_REPLICATE);
+        request.writeTo(dos);
+        dos.flush();
+    }
+
+    public ReplicateRequest readReplicateRequest() throws IOException {
+        return ReplicateRequest.readFrom(getInput());
+    }
+
+    /**
+     * Sends the changes since given version, or every hot entry if archive moves since then are not known.
+     * @param changes seeder changes, already encoded
+     */
+    /*package*/ void writeReplicateResponse(CatalogImage.Version image, int since, IdSpace idSpace, byte[] changes)
+            throws IOException {
+        boolean isFull = !image.hasMovesSince(since);
+        int from = isFull ? 0 : image.getPosition(since);
+        final int movesFrom = isFull ? image.getMovesCount() : image.getMovePosition(since);
+        DataOutputStream dos = getOutput();
+        dos.writeInt(image.getNextVersion());
+        dos.writeInt(image.getEnd());
+        dos.writeBoolean(isFull);
+        dos.writeInt(image.getCount() - from);
+        dos.write(image.getData(), image.getOffset(from), image.getLength() - image.getOffset(from));
+        for (int position = from; position != image.getCount(); position++) {
+            dos.writeInt(image.getVersion(position));
+        }
+        dos.writeInt(image.getMovesCount() - movesFrom);
+        for (int position = movesFrom; position != image.getMovesCount(); position++) {
+            dos.writeInt(image.getMovedVersion(position));
+            dos.writeInt(idSpace.toId(image.getMovedIndex(position)));
+        }
+        dos.writeInt(changes.length);
+        dos.write(changes);
+        dos.flush();
+    }
+
+    /**
+     * Reads the whole response into memory, so that it is applied without waiting for the network.
+     */
+    public ReplicateResponse readReplicateResponse() throws IOException {
+        checkBusy();
+        DataInputStream dis = getInput();
+        int version = dis.readInt();
+        int filesCount = dis.readInt();
+        boolean isFull = dis.readBoolean();
+        List<FileEntry> entries = readCollection(new ArrayList<>(), (input) -> FileEntry.readFrom(input, true));
+        List<Integer> versions = new ArrayList<>(entries.size());
+        for (int i = 0; i != entries.size(); i++) {
+            versions.add(dis.readInt());
+        }
+        int movesCount = dis.readInt();
+        List<Integer> archivedIds = new ArrayList<>();
+        List<Integer> archivedVersions = new ArrayList<>();
+        for (int i = 0; i != movesCount; i++) {
+            archivedVersions.add(dis.readInt());
+            archivedIds.add(dis.readInt());
+        }
+        CatalogChanges catalog = new CatalogChanges(
+                version,
+                filesCount,
+                isFull,
+                entries,
+                versions,
+                archivedIds,
+                archivedVersions
+        );
+        int changesLength = dis.readInt();
+        if (changesLength < 0) {
+            throw new IOException(String.format("Seeder changes of %d bytes.", changesLength));
+        }
+        byte[] changes = new byte[changesLength];
+        dis.readFully(changes);
+        return new ReplicateResponse(catalog, changes);
+    }
 }
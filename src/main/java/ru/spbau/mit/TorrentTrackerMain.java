@@ -2,14 +2,18 @@ package ru.spbau.mit;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by ldvsoft on 04.04.16.
  */
 public abstract class TorrentTrackerMain {
+    private static final int LIMIT_PARTS = 3;
+
     public static void main(String[] args) {
+        TorrentTrackerConfig config = parseArgs(args);
         try {
-            TorrentTracker tracker = new TorrentTracker(Paths.get(""));
+            TorrentTracker tracker = new TorrentTracker(Paths.get(""), config);
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
@@ -22,4 +26,147 @@ public abstract class TorrentTrackerMain {
             e.printStackTrace();
         }
     }
+
+    private static TorrentTrackerConfig parseArgs(String[] args) {
+        TorrentTrackerConfig config = new TorrentTrackerConfig();
+        String cluster = null;
+        int shard = 0;
+        int peersLimit = 0;
+        boolean isLocalityAware = false;
+        try {
+            for (int i = 0; i != args.length; i++) {
+                switch (args[i]) {
+                    case "--nio":
+                        config.setMode(TorrentTrackerConfig.ServerMode.NIO);
+                        break;
+                    case "--reactors":
+                        config.setReactorThreads(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--workers":
+                        config.setWorkerThreads(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--reuse-port":
+                        config.setReusePort(true);
+                        break;
+                    case "--port":
+                        config.setPort(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--udp":
+                        config.setUdpEnabled(true);
+                        break;
+                    case "--cluster":
+                        cluster = nextArg(args, ++i);
+                        break;
+                    case "--shard":
+                        shard = Integer.decode(nextArg(args, ++i));
+                        break;
+                    case "--max-sessions":
+                        config.setMaxSessions(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--peers":
+                        peersLimit = Integer.decode(nextArg(args, ++i));
+                        break;
+                    case "--local-peers":
+                        isLocalityAware = true;
+                        break;
+                    case "--announce-rate":
+                        config.setAnnounceRate(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--announce-interval":
+                        parseAnnounceInterval(config, nextArg(args, ++i));
+                        break;
+                    case "--limit":
+                        parseLimit(config, nextArg(args, ++i));
+                        break;
+                    case "--replica-of":
+                        config.setPrimary(IOUtils.parseAddress(
+                                nextArg(args, ++i),
+                                TorrentTrackerConnection.TRACKER_PORT
+                        ));
+                        break;
+                    case "--replication-period":
+                        config.setReplicationPeriod(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--replication-log":
+                        config.setReplicationLog(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--archive-after":
+                        config.setArchiveAfter(TimeUnit.HOURS.toMillis(Long.decode(nextArg(args, ++i))));
+                        break;
+                    case "--metrics-port":
+                        config.setMetricsPort(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    default:
+                        System.err.printf("Unknown option \"%s\".\n", args[i]);
+                        helpAndHalt();
+                }
+            }
+            if (peersLimit != 0 || isLocalityAware) {
+                RandomPeerSelector selector = (RandomPeerSelector) config.getPeerSelector();
+                config.setPeerSelector(new RandomPeerSelector(
+                        peersLimit != 0 ? peersLimit : selector.getLimit(),
+                        isLocalityAware
+                ));
+            }
+            if (cluster != null) {
+                config.setCluster(IOUtils.parseAddresses(cluster, TorrentTrackerConnection.TRACKER_PORT), shard);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.printf("%s\n", e.getMessage());
+            helpAndHalt();
+        }
+        return config;
+    }
+
+    private static void parseLimit(TorrentTrackerConfig config, String limit) {
+        String[] parts = limit.split(":");
+        if (parts.length != LIMIT_PARTS) {
+            throw new IllegalArgumentException(String.format("Bad limit \"%s\".", limit));
+        }
+        config.setAdmissionLimits(
+                TorrentTrackerConfig.RequestClass.valueOf(parts[0].toUpperCase()),
+                Integer.decode(parts[1]),
+                Integer.decode(parts[2])
+        );
+    }
+
+    private static void parseAnnounceInterval(TorrentTrackerConfig config, String interval) {
+        String[] parts = interval.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException(String.format("Bad announce interval \"%s\".", interval));
+        }
+        config.setAnnounceInterval(Integer.decode(parts[0]), Integer.decode(parts[1]));
+    }
+
+    private static String nextArg(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(String.format("Missing value for \"%s\".", args[index - 1]));
+        }
+        return args[index];
+    }
+
+    private static void helpAndHalt() {
+        System.err.printf("Available options:\n");
+        System.err.printf("\t--nio: use selector-based server instead of thread per connection.\n");
+        System.err.printf("\t--reactors <count>: number of selector threads in nio mode.\n");
+        System.err.printf("\t--workers <count>: number of threads handling requests in nio mode.\n");
+        System.err.printf("\t--reuse-port: bind an acceptor per reactor with SO_REUSEPORT in nio mode.\n");
+        System.err.printf("\t--port <port>: port to listen on.\n");
+        System.err.printf("\t--udp: also serve announces and lookups over UDP on the same port.\n");
+        System.err.printf("\t--cluster <host[:port],...>: addresses of all shards of the cluster, in order.\n");
+        System.err.printf("\t--shard <index>: index of this tracker in the cluster.\n");
+        System.err.printf("\t--peers <count>: tell about that many random seeders at most, 50 by default.\n");
+        System.err.printf("\t--local-peers: prefer seeders with addresses closest to the requester.\n");
+        System.err.printf("\t--announce-rate <per second>: stretch announce interval to get at most that many.\n");
+        System.err.printf("\t--announce-interval <min ms>:<max ms>: bounds of the announce interval.\n");
+        System.err.printf("\t--max-sessions <count>: refuse new sessions as busy beyond that.\n");
+        System.err.printf("\t--limit <announce|lookup|upload|bulk>:<concurrency>:<queue>: admission limits.\n");
+        System.err.printf("\t--replica-of <host[:port]>: serve reads as a replica of the given tracker.\n");
+        System.err.printf("\t--replication-period <ms>: how often a replica fetches changes, 1000 by default.\n");
+        System.err.printf("\t--replication-log <changes>: seeder changes kept for replicas, 65536 by default.\n");
+        System.err.printf("\t--archive-after <hours>: archive files having no seeders for that long.\n");
+        System.err.printf("\t--metrics-port <port>: serve Prometheus metrics at localhost:<port>/metrics.\n");
+
+        System.exit(1);
+    }
 }
@@ -0,0 +1,495 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by ldvsoft on 12.05.16.
+ *
+ * Selector-based tracker transport: fixed number of reactor threads, each owning its own selector.
+ * Reactors only move bytes: once RequestScanner finds a request complete, it is handled on a worker thread with
+ * the usual TorrentTrackerConnection, so the wire protocol is exactly the same as for the blocking server, and
+ * handlers may block on the disk or on other trackers. Requests of a session are handled one at a time; while
+ * one is handled, the following ones are read up to the buffer size only.
+ *
+ * A connection may carry any number of requests; it is closed once the client shuts it down or stays idle for
+ * longer than the session timeout. After BUSY the output is shut down and the rest is dropped until the client
+ * closes the connection, as closing it with data unread could reset it before BUSY is read; such connections
+ * count as sessions until then.
+ */
+public class TorrentTrackerNioServer implements AutoCloseable {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final String REUSE_PORT_OPTION = "SO_REUSEPORT";
+
+    private final Handler handler;
+    private final long sessionTimeout;
+    private final int maxSessions;
+    private final byte[] busyResponse;
+    private final AtomicInteger sessionsCount = new AtomicInteger();
+    private final ExecutorService workers;
+    private final Reactor[] reactors;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean isRunning = true;
+
+    public interface Handler {
+        void handle(TorrentTrackerConnection connection) throws IOException;
+    }
+
+    public TorrentTrackerNioServer(TorrentTrackerConfig config, Handler handler) throws IOException {
+        this.handler = handler;
+        this.sessionTimeout = config.getSessionTimeout();
+        this.maxSessions = config.getMaxSessions();
+        ByteArrayOutputStream busyStream = new ByteArrayOutputStream();
+        new TorrentTrackerConnection(new ByteArrayInputStream(new byte[0]), busyStream, null)
+                .writeBusyResponse(config.getBusyRetryDelay());
+        busyResponse = busyStream.toByteArray();
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads());
+
+        int port = config.getPort();
+        int reactorsCount = config.getReactorThreads();
+        boolean reusePort = config.isReusePort();
+        reactors = new Reactor[reactorsCount];
+        try {
+            for (int i = 0; i != reactorsCount; i++) {
+                reactors[i] = new Reactor();
+            }
+            SocketOption<Boolean> reusePortOption = reusePort ? findReusePortOption() : null;
+            if (reusePortOption != null) {
+                for (Reactor reactor : reactors) {
+                    reactor.listen(openAcceptor(port, reusePortOption));
+                }
+            } else {
+                reactors[0].listen(openAcceptor(port, null));
+            }
+        } catch (IOException e) {
+            for (Reactor reactor : reactors) {
+                if (reactor != null) {
+                    reactor.closeAll();
+                }
+            }
+            workers.shutdown();
+            throw e;
+        }
+        for (int i = 0; i != reactorsCount; i++) {
+            Thread thread = new Thread(reactors[i], "tracker-reactor-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return number of sessions open now
+     */
+    public int getSessionsCount() {
+        return sessionsCount.get();
+    }
+
+    @Override
+    public void close() {
+        isRunning = false;
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        // Channels are really released only when their selector is closed, so wait for reactors to finish
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.shutdown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            for (SocketOption<?> option : probe.supportedOptions()) {
+                if (option.name().equals(REUSE_PORT_OPTION) && option.type() == Boolean.class) {
+                    return (SocketOption<Boolean>) option;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static ServerSocketChannel openAcceptor(int port, SocketOption<Boolean> reusePortOption)
+            throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePortOption != null) {
+                channel.setOption(reusePortOption, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static final class Session {
+        private final SocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private final RequestScanner scanner = new RequestScanner();
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private boolean isInputShutdown = false;
+        private boolean isDraining = false;
+        private boolean isHandling = false;
+        private long lastActive = System.currentTimeMillis();
+
+        private Session(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int nextReactor = 0;
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        private Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        private void listen(ServerSocketChannel acceptor) throws IOException {
+            acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        private void enqueue(SocketChannel channel) {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning) {
+                    selector.select(getIdleCheckPeriod());
+                    registerIncoming();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        processKey(key);
+                    }
+                    closeIdle();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            SocketChannel channel;
+            while ((channel = incoming.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private long getIdleCheckPeriod() {
+            return Math.max(1, sessionTimeout / 2);
+        }
+
+        /**
+         * Closes sessions idle for too long. Runs at most twice per timeout, so the sweep is cheap.
+         */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < getIdleCheckPeriod()) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Session session = (Session) key.attachment();
+                if (session == null || !session.output.isEmpty() || session.isHandling) {
+                    continue;
+                }
+                long timeout = session.isDraining ? TorrentTrackerConnection.BUSY_LINGER : sessionTimeout;
+                if (now - session.lastActive > timeout) {
+                    closeKey(key);
+                }
+            }
+        }
+
+        private void registerIncoming() {
+            SocketChannel channel;
+            while ((channel = incoming.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void processKey(SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    return;
+                }
+                Session session = (Session) key.attachment();
+                if (key.isReadable()) {
+                    read(key, session);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(key, session);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                closeKey(key);
+            }
+        }
+
+        private void accept(ServerSocketChannel acceptor) throws IOException {
+            SocketChannel channel;
+            while ((channel = acceptor.accept()) != null) {
+                if (sessionsCount.get() >= maxSessions) {
+                    reject(channel);
+                    continue;
+                }
+                sessionsCount.incrementAndGet();
+                Reactor target = reactors[nextReactor];
+                nextReactor = (nextReactor + 1) % reactors.length;
+                if (target == this) {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+                } else {
+                    target.enqueue(channel);
+                }
+            }
+        }
+
+        private void reject(SocketChannel channel) {
+            SelectionKey key;
+            Session session;
+            try {
+                channel.configureBlocking(false);
+                session = new Session(channel);
+                key = channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            sessionsCount.incrementAndGet();
+            session.output.add(ByteBuffer.wrap(busyResponse));
+            refuse(session);
+            try {
+                write(key, session);
+            } catch (IOException e) {
+                closeKey(key);
+            }
+        }
+
+        /**
+         * Starts dropping whatever comes after BUSY.
+         */
+        private void refuse(Session session) {
+            session.input.clear();
+            session.isDraining = true;
+        }
+
+        private void read(SelectionKey key, Session session) throws IOException {
+            if (session.isDraining) {
+                session.input.clear();
+                session.lastActive = System.currentTimeMillis();
+                if (session.channel.read(session.input) == -1) {
+                    closeKey(key);
+                }
+                return;
+            }
+            if (!session.input.hasRemaining()) {
+                // Buffer is full while a request is handled, the rest waits in the socket
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            int read = session.channel.read(session.input);
+            session.lastActive = System.currentTimeMillis();
+            if (read == -1) {
+                session.isInputShutdown = true;
+            }
+            processRequests(key, session);
+            write(key, session);
+        }
+
+        /**
+         * Passes the next request to a worker, if it has come completely and none is handled now.
+         */
+        private void processRequests(SelectionKey key, Session session) throws IOException {
+            if (session.isHandling || session.isDraining) {
+                return;
+            }
+            ByteBuffer input = session.input;
+            int length = session.scanner.scan(input);
+            if (length == -1) {
+                if (!input.hasRemaining()) {
+                    // Scanner has checked that the request fits into MAX_REQUEST_SIZE, so grow up to it
+                    ByteBuffer bigger = ByteBuffer.allocate(
+                            Math.min(input.capacity() * 2, TorrentTrackerConnection.MAX_REQUEST_SIZE)
+                    );
+                    input.flip();
+                    bigger.put(input);
+                    session.input = bigger;
+                }
+                return;
+            }
+            final byte[] request = Arrays.copyOf(input.array(), length);
+            input.flip();
+            input.position(length);
+            input.compact();
+            if (input.position() == 0 && input.capacity() > INITIAL_BUFFER_SIZE) {
+                session.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+            session.isHandling = true;
+            workers.execute(() -> handle(key, session, request));
+        }
+
+        /**
+         * Runs on a worker thread: handles the request, then passes the response to the reactor.
+         */
+        private void handle(SelectionKey key, Session session, byte[] request) {
+            ByteArrayInputStream requestStream = new ByteArrayInputStream(request);
+            ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+            boolean isRefused = false;
+            boolean isFailed = false;
+            try {
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        requestStream,
+                        responseStream,
+                        session.remoteAddress
+                );
+                handler.handle(connection);
+            } catch (TrackerBusyException e) {
+                isRefused = true;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                isFailed = true;
+            }
+            final byte[] response = responseStream.toByteArray();
+            final boolean isClosed = isFailed;
+            final boolean isBusy = isRefused;
+            tasks.add(() -> finish(key, session, response, isBusy, isClosed));
+            selector.wakeup();
+        }
+
+        private void finish(SelectionKey key, Session session, byte[] response, boolean isBusy, boolean isClosed) {
+            if (!key.isValid()) {
+                return;
+            }
+            session.isHandling = false;
+            session.lastActive = System.currentTimeMillis();
+            if (isClosed) {
+                closeKey(key);
+                return;
+            }
+            if (response.length > 0) {
+                session.output.add(ByteBuffer.wrap(response));
+            }
+            try {
+                if (isBusy) {
+                    // Request is refused unread, so the session cannot go on
+                    refuse(session);
+                } else {
+                    processRequests(key, session);
+                }
+                write(key, session);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeKey(key);
+            }
+        }
+
+        private void write(SelectionKey key, Session session) throws IOException {
+            // Once input is shut down, the selector would report EOF again and again
+            int readInterest = session.isInputShutdown ? 0 : SelectionKey.OP_READ;
+            while (!session.output.isEmpty()) {
+                ByteBuffer buffer = session.output.peek();
+                session.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(readInterest | SelectionKey.OP_WRITE);
+                    return;
+                }
+                session.output.poll();
+            }
+            if (session.isDraining && !session.isInputShutdown) {
+                session.channel.shutdownOutput();
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (session.isInputShutdown && !session.isHandling) {
+                closeKey(key);
+                return;
+            }
+            // Session shut down by the client while a request is handled is closed once it is finished
+            key.interestOps(readInterest);
+        }
+
+        private void closeKey(SelectionKey key) {
+            if (key.attachment() != null && key.isValid()) {
+                sessionsCount.decrementAndGet();
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ru.spbau.mit;
+
+import java.io.IOException;
+
+/**
+ * Created by ldvsoft on 03.06.16.
+ *
+ * Tracker has refused the request because of overload and has closed the connection; the request was not handled.
+ */
+public class TrackerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    public TrackerBusyException(int retryAfter) {
+        super(String.format("Tracker is busy, retry after %d ms.", retryAfter));
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return delay in milliseconds suggested by the tracker
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
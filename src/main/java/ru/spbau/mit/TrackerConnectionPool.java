@@ -0,0 +1,151 @@
+package ru.spbau.mit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by ldvsoft on 27.05.16.
+ *
+ * Keeps tracker connections open between requests, so a session serves many of them without new handshakes.
+ * Connections idle for too long are dropped before the tracker closes them itself; if the tracker still has
+ * closed a reused one before answering a byte, a request that is safe to repeat is repeated over a fresh
+ * connection. Uploads are never repeated that way: the tracker might have applied one and failed afterwards, so
+ * it would be applied twice. Requests refused as BUSY are repeated a couple of times after the delay suggested,
+ * if it is short enough, as the tracker refuses them before doing anything.
+ */
+final class TrackerConnectionPool implements AutoCloseable {
+    private static final long IDLE_TIMEOUT = TorrentTrackerConnection.SESSION_TIMEOUT / 2;
+    private static final int MAX_IDLE_PER_ADDRESS = 4;
+    private static final int BUSY_RETRIES = 2;
+    private static final long MAX_BUSY_DELAY = 5 * 1000;
+
+    private final Map<InetSocketAddress, Deque<Idle>> idle = new HashMap<>();
+    private boolean isClosed = false;
+
+    /*package*/ interface Call<T> {
+        T call(TorrentTrackerConnection connection) throws IOException;
+    }
+
+    private static final class Idle {
+        private final TorrentTrackerConnection connection;
+        private final long since;
+
+        private Idle(TorrentTrackerConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Runs a request-response exchange over a pooled connection to given tracker. The request should be safe to
+     * repeat.
+     */
+    /*package*/ <T> T execute(InetSocketAddress address, Call<T> call) throws IOException {
+        return execute(address, call, true);
+    }
+
+    /**
+     * Same as execute, but the request is not repeated if the connection fails, use for requests changing
+     * something on the tracker, like uploads.
+     */
+    /*package*/ <T> T executeUpdate(InetSocketAddress address, Call<T> call) throws IOException {
+        return execute(address, call, false);
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        for (Deque<Idle> connections : idle.values()) {
+            for (Idle entry : connections) {
+                entry.connection.close();
+            }
+        }
+        idle.clear();
+    }
+
+    private <T> T execute(InetSocketAddress address, Call<T> call, boolean isIdempotent) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return executeOnce(address, call, isIdempotent);
+            } catch (TrackerBusyException e) {
+                if (attempt == BUSY_RETRIES || e.getRetryAfter() > MAX_BUSY_DELAY) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(e.getRetryAfter());
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private <T> T executeOnce(InetSocketAddress address, Call<T> call, boolean isIdempotent)
+            throws IOException {
+        TorrentTrackerConnection connection = poll(address);
+        if (connection != null) {
+            long received = connection.getReceived();
+            try {
+                return execute(address, connection, call);
+            } catch (EOFException | SocketException e) {
+                // Without a byte of the response the session was most likely closed as idle, yet the request
+                // might have been applied anyway, so only requests safe to repeat are repeated
+                if (!isIdempotent || connection.getReceived() != received) {
+                    throw e;
+                }
+            }
+        }
+        return execute(address, open(address), call);
+    }
+
+    private <T> T execute(InetSocketAddress address, TorrentTrackerConnection connection, Call<T> call)
+            throws IOException {
+        T result;
+        try {
+            result = call.call(connection);
+        } catch (IOException | RuntimeException e) {
+            // Connection state is unknown now
+            connection.close();
+            throw e;
+        }
+        offer(address, connection);
+        return result;
+    }
+
+    private static TorrentTrackerConnection open(InetSocketAddress address) throws IOException {
+        return new TorrentTrackerConnection(new Socket(address.getHostString(), address.getPort()));
+    }
+
+    private synchronized TorrentTrackerConnection poll(InetSocketAddress address) {
+        Deque<Idle> connections = idle.get(address);
+        if (connections == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Idle entry;
+        while ((entry = connections.pollLast()) != null) {
+            if (now - entry.since < IDLE_TIMEOUT) {
+                return entry.connection;
+            }
+            entry.connection.close();
+        }
+        return null;
+    }
+
+    private synchronized void offer(InetSocketAddress address, TorrentTrackerConnection connection) {
+        Deque<Idle> connections = idle.computeIfAbsent(address, key -> new ArrayDeque<>());
+        if (isClosed || connections.size() >= MAX_IDLE_PER_ADDRESS) {
+            connection.close();
+            return;
+        }
+        connections.addLast(new Idle(connection, System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,482 @@
+package ru.spbau.mit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by ldvsoft on 29.05.16.
+ *
+ * Drives a tracker with LIST/UPLOAD/SOURCES/UPDATE traffic of many virtual clients over a few keep-alive
+ * connections, and reports throughput and latency per request type. Virtual clients differ by the seeding
+ * port they announce, so every one of them gets its own lease on the tracker.
+ *
+ * With a target rate set, requests are sent on schedule and latency is counted from the scheduled moment,
+ * so a stalled tracker shows up in the percentiles instead of just slowing the generator down.
+ *
+ * Requests may be recorded to a trace, {@code (<offset: Long> <length: Int> <request: Bytes>)*} where offset is
+ * in microseconds since start, and replayed later with the same pacing.
+ */
+public class TrackerLoadGenerator {
+    private static final int[] REQUEST_TYPES = {
+            TorrentTrackerConnection.REQUEST_LIST,
+            TorrentTrackerConnection.REQUEST_UPLOAD,
+            TorrentTrackerConnection.REQUEST_SOURCES,
+            TorrentTrackerConnection.REQUEST_UPDATE
+    };
+    private static final int MAX_PORT = 65535;
+    private static final long MAX_FILE_SIZE = 1024 * 1024 * 1024;
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final double MICROS_IN_MILLI = 1000.0;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int DEFAULT_CONNECTIONS = 16;
+    private static final int DEFAULT_VIRTUAL_CLIENTS = 10000;
+    private static final int DEFAULT_INITIAL_FILES = 1000;
+    private static final int DEFAULT_FILES_PER_CLIENT = 8;
+    private static final int[] DEFAULT_WEIGHTS = {1, 1, 40, 58};
+    private static final long DEFAULT_DURATION = 10 * 1000;
+
+    private InetSocketAddress tracker = InetSocketAddress.createUnresolved(
+            "localhost",
+            TorrentTrackerConnection.TRACKER_PORT
+    );
+    private int connections = DEFAULT_CONNECTIONS;
+    private int virtualClients = DEFAULT_VIRTUAL_CLIENTS;
+    private int initialFiles = DEFAULT_INITIAL_FILES;
+    private int filesPerClient = DEFAULT_FILES_PER_CLIENT;
+    private int[] weights = DEFAULT_WEIGHTS;
+    private long duration = DEFAULT_DURATION;
+    private double rate = 0;
+    private Path recordTo = null;
+    private Path replayFrom = null;
+
+    private volatile int[] fileIds = new int[0];
+    private volatile int fileIdsCount = 0;
+    private final Object fileIdsLock = new Object();
+
+    public static final class Report {
+        private final Map<Integer, LatencyHistogram> latencies = new TreeMap<>();
+        private long elapsed;
+        private long errors;
+
+        /**
+         * @return number of requests of given type completed
+         */
+        public long getCount(int type) {
+            LatencyHistogram histogram = latencies.get(type);
+            return histogram == null ? 0 : histogram.getCount();
+        }
+
+        /**
+         * @return latency quantile of given request type, in microseconds
+         */
+        public long getLatency(int type, double quantile) {
+            LatencyHistogram histogram = latencies.get(type);
+            return histogram == null ? 0 : histogram.getQuantile(quantile);
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public void print(PrintStream out) {
+            double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+            out.printf("%-12s %10s %12s %10s %10s %10s %10s\n",
+                    "request", "count", "req/s", "p50, ms", "p99, ms", "p999, ms", "max, ms");
+            for (Map.Entry<Integer, LatencyHistogram> entry : latencies.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                out.printf("%-12s %10d %12.1f", getName(entry.getKey()), histogram.getCount(),
+                        histogram.getCount() / seconds);
+                for (double quantile : QUANTILES) {
+                    out.printf(" %10.3f", histogram.getQuantile(quantile) / MICROS_IN_MILLI);
+                }
+                out.printf(" %10.3f\n", histogram.getMax() / MICROS_IN_MILLI);
+            }
+            out.printf("%.1f s, %d errors.\n", seconds, errors);
+        }
+
+        private void merge(Map<Integer, LatencyHistogram> workerLatencies) {
+            for (Map.Entry<Integer, LatencyHistogram> entry : workerLatencies.entrySet()) {
+                latencies.computeIfAbsent(entry.getKey(), type -> new LatencyHistogram()).merge(entry.getValue());
+            }
+        }
+    }
+
+    private static final class Request {
+        private final int type;
+        private final byte[] bytes;
+        /**
+         * Microseconds since start when the request should be sent, or -1 to send at once.
+         */
+        private final long offset;
+
+        private Request(byte[] bytes, long offset) {
+            this.type = bytes[0] & BYTE_MASK;
+            this.bytes = bytes;
+            this.offset = offset;
+        }
+    }
+
+    private interface RequestSource {
+        /**
+         * @return next request or null if there are no more
+         */
+        Request next(int worker, long sent) throws IOException;
+    }
+
+    public TrackerLoadGenerator setTracker(InetSocketAddress tracker) {
+        this.tracker = tracker;
+        return this;
+    }
+
+    public TrackerLoadGenerator setConnections(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("There should be at least one connection.");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    public TrackerLoadGenerator setVirtualClients(int virtualClients) {
+        if (virtualClients <= 0 || virtualClients > MAX_PORT) {
+            throw new IllegalArgumentException("Virtual clients count should be from 1 to " + MAX_PORT + ".");
+        }
+        this.virtualClients = virtualClients;
+        return this;
+    }
+
+    /**
+     * Files uploaded before the measurement, so SOURCES and UPDATE have something to ask about.
+     */
+    public TrackerLoadGenerator setInitialFiles(int initialFiles) {
+        this.initialFiles = initialFiles;
+        return this;
+    }
+
+    public TrackerLoadGenerator setFilesPerClient(int filesPerClient) {
+        this.filesPerClient = filesPerClient;
+        return this;
+    }
+
+    /**
+     * @param newWeights relative frequencies of LIST, UPLOAD, SOURCES and UPDATE requests
+     */
+    public TrackerLoadGenerator setWeights(int... newWeights) {
+        if (newWeights.length != REQUEST_TYPES.length) {
+            throw new IllegalArgumentException("There should be a weight for every request type.");
+        }
+        if (Arrays.stream(newWeights).anyMatch(weight -> weight < 0) || Arrays.stream(newWeights).sum() == 0) {
+            throw new IllegalArgumentException("Weights should be non-negative and not all zero.");
+        }
+        weights = newWeights.clone();
+        return this;
+    }
+
+    public TrackerLoadGenerator setDuration(long duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * @param rate requests per second for all connections together, 0 to send as fast as possible
+     */
+    public TrackerLoadGenerator setRate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    public TrackerLoadGenerator setRecordTo(Path recordTo) {
+        this.recordTo = recordTo;
+        return this;
+    }
+
+    /**
+     * Replays given trace instead of generating requests; duration and weights are ignored then.
+     */
+    public TrackerLoadGenerator setReplayFrom(Path replayFrom) {
+        this.replayFrom = replayFrom;
+        return this;
+    }
+
+    public Report run() throws IOException, InterruptedException {
+        DataOutputStream trace = null;
+        DataInputStream replay = null;
+        try {
+            RequestSource source;
+            if (replayFrom != null) {
+                replay = new DataInputStream(new BufferedInputStream(Files.newInputStream(replayFrom)));
+                source = getReplaySource(replay);
+            } else {
+                prepare();
+                source = getGeneratedSource();
+            }
+            if (recordTo != null) {
+                trace = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(recordTo)));
+            }
+            return run(source, trace);
+        } finally {
+            if (trace != null) {
+                trace.close();
+            }
+            if (replay != null) {
+                replay.close();
+            }
+        }
+    }
+
+    public static String getName(int type) {
+        switch (type) {
+            case TorrentTrackerConnection.REQUEST_LIST:
+                return "LIST";
+            case TorrentTrackerConnection.REQUEST_UPLOAD:
+                return "UPLOAD";
+            case TorrentTrackerConnection.REQUEST_SOURCES:
+                return "SOURCES";
+            case TorrentTrackerConnection.REQUEST_UPDATE:
+                return "UPDATE";
+            default:
+                return "#" + type;
+        }
+    }
+
+    private Report run(RequestSource source, DataOutputStream trace) throws InterruptedException {
+        Report report = new Report();
+        List<Map<Integer, LatencyHistogram>> latencies = new ArrayList<>();
+        AtomicLong errors = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i != connections; i++) {
+            Map<Integer, LatencyHistogram> workerLatencies = new TreeMap<>();
+            latencies.add(workerLatencies);
+            int worker = i;
+            Thread thread = new Thread(
+                    () -> work(worker, source, trace, start, workerLatencies, errors),
+                    "load-" + i
+            );
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        report.elapsed = System.nanoTime() - start;
+        report.errors = errors.get();
+        latencies.forEach(report::merge);
+        return report;
+    }
+
+    private void work(
+            int worker,
+            RequestSource source,
+            DataOutputStream trace,
+            long start,
+            Map<Integer, LatencyHistogram> latencies,
+            AtomicLong errors
+    ) {
+        TorrentTrackerConnection connection = null;
+        long sent = 0;
+        try {
+            while (true) {
+                Request request = source.next(worker, sent);
+                if (request == null) {
+                    break;
+                }
+                sent++;
+                long scheduled = request.offset < 0
+                        ? System.nanoTime()
+                        : start + TimeUnit.MICROSECONDS.toNanos(request.offset);
+                long delay = scheduled - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                if (trace != null) {
+                    record(trace, TimeUnit.NANOSECONDS.toMicros(scheduled - start), request.bytes);
+                }
+                try {
+                    if (connection == null) {
+                        connection = new TorrentTrackerConnection(
+                                new Socket(tracker.getHostString(), tracker.getPort())
+                        );
+                    }
+                    execute(connection, request);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    if (connection != null) {
+                        connection.close();
+                        connection = null;
+                    }
+                    continue;
+                }
+                latencies.computeIfAbsent(request.type, type -> new LatencyHistogram())
+                        .record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private void execute(TorrentTrackerConnection connection, Request request) throws IOException {
+        connection.getOutput().write(request.bytes);
+        connection.getOutput().flush();
+        switch (request.type) {
+            case TorrentTrackerConnection.REQUEST_LIST:
+                connection.readListResponse();
+                break;
+            case TorrentTrackerConnection.REQUEST_UPLOAD:
+                addFileId(connection.readUploadResponse());
+                break;
+            case TorrentTrackerConnection.REQUEST_SOURCES:
+                connection.readSourcesResponse();
+                break;
+            case TorrentTrackerConnection.REQUEST_UPDATE:
+                connection.readUpdateResponse();
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported request in trace: " + request.type);
+        }
+    }
+
+    private static void record(DataOutputStream trace, long offset, byte[] request) throws IOException {
+        synchronized (trace) {
+            trace.writeLong(offset);
+            trace.writeInt(request.length);
+            trace.write(request);
+        }
+    }
+
+    private void prepare() throws IOException {
+        try (TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                new Socket(tracker.getHostString(), tracker.getPort())
+        )) {
+            connection.writeListRequest();
+            for (FileEntry entry : connection.readListResponse()) {
+                addFileId(entry.getId());
+            }
+            Random random = new Random();
+            for (int i = fileIdsCount; i < initialFiles; i++) {
+                connection.writeUploadRequest(randomEntry(random));
+                addFileId(connection.readUploadResponse());
+            }
+        }
+    }
+
+    private RequestSource getGeneratedSource() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+        double interval = rate > 0 ? TimeUnit.SECONDS.toMicros(1) * connections / rate : 0;
+        int totalWeight = Arrays.stream(weights).sum();
+        return (worker, sent) -> {
+            if (System.nanoTime() >= deadline) {
+                return null;
+            }
+            Random random = ThreadLocalRandom.current();
+            int choice = random.nextInt(totalWeight);
+            int type = 0;
+            while (choice >= weights[type]) {
+                choice -= weights[type];
+                type++;
+            }
+            // Workers are shifted, so that scheduled requests are spread evenly
+            long offset = interval > 0 ? (long) ((sent + worker / (double) connections) * interval) : -1;
+            return new Request(encode(REQUEST_TYPES[type], random), offset);
+        };
+    }
+
+    private static RequestSource getReplaySource(DataInputStream replay) {
+        return (worker, sent) -> {
+            synchronized (replay) {
+                long offset;
+                try {
+                    offset = replay.readLong();
+                } catch (EOFException e) {
+                    return null;
+                }
+                byte[] bytes = new byte[replay.readInt()];
+                replay.readFully(bytes);
+                return new Request(bytes, offset);
+            }
+        };
+    }
+
+    /**
+     * Encodes a request with the usual encoders, by writing it into a buffer instead of a socket.
+     */
+    private byte[] encode(int type, Random random) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        TorrentTrackerConnection encoder = new TorrentTrackerConnection(
+                new ByteArrayInputStream(new byte[0]),
+                buffer,
+                null
+        );
+        int clientPort = 1 + random.nextInt(virtualClients);
+        switch (type) {
+            case TorrentTrackerConnection.REQUEST_LIST:
+                encoder.writeListRequest();
+                break;
+            case TorrentTrackerConnection.REQUEST_UPLOAD:
+                encoder.writeUploadRequest(randomEntry(random));
+                break;
+            case TorrentTrackerConnection.REQUEST_SOURCES:
+                encoder.writeSourcesRequest(Arrays.asList(randomFileId(random)));
+                break;
+            case TorrentTrackerConnection.REQUEST_UPDATE:
+                List<Integer> ids = new ArrayList<>();
+                // Same client always seeds the same files
+                Random clientRandom = new Random(clientPort);
+                for (int i = 0; i != filesPerClient; i++) {
+                    ids.add(randomFileId(clientRandom));
+                }
+                encoder.writeUpdateRequest(new ClientInfo(new InetSocketAddress("", clientPort), ids));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request type " + type);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static FileEntry randomEntry(Random random) {
+        return new FileEntry("load-" + random.nextInt(), 1 + (long) (random.nextDouble() * MAX_FILE_SIZE));
+    }
+
+    private int randomFileId(Random random) {
+        int count = fileIdsCount;
+        int[] ids = fileIds;
+        return count == 0 ? 0 : ids[random.nextInt(count)];
+    }
+
+    private void addFileId(int id) {
+        synchronized (fileIdsLock) {
+            int count = fileIdsCount;
+            if (count == fileIds.length) {
+                fileIds = Arrays.copyOf(fileIds, Math.max(1, count * 2));
+            }
+            fileIds[count] = id;
+            // Published after the element, readers read the count first
+            fileIdsCount = count + 1;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ru.spbau.mit;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Created by ldvsoft on 29.05.16.
+ */
+public abstract class TrackerLoadMain {
+    public static void main(String[] args) {
+        TrackerLoadGenerator generator = parseArgs(args);
+        try {
+            generator.run().print(System.out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static TrackerLoadGenerator parseArgs(String[] args) {
+        TrackerLoadGenerator generator = new TrackerLoadGenerator();
+        try {
+            for (int i = 0; i != args.length; i++) {
+                switch (args[i]) {
+                    case "--tracker":
+                        generator.setTracker(IOUtils.parseAddresses(
+                                nextArg(args, ++i),
+                                TorrentTrackerConnection.TRACKER_PORT
+                        ).get(0));
+                        break;
+                    case "--connections":
+                        generator.setConnections(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--clients":
+                        generator.setVirtualClients(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--files":
+                        generator.setInitialFiles(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--files-per-client":
+                        generator.setFilesPerClient(Integer.decode(nextArg(args, ++i)));
+                        break;
+                    case "--mix":
+                        generator.setWeights(Arrays.stream(nextArg(args, ++i).split(":"))
+                                .mapToInt(Integer::parseInt)
+                                .toArray());
+                        break;
+                    case "--duration":
+                        generator.setDuration(Long.decode(nextArg(args, ++i)));
+                        break;
+                    case "--rate":
+                        generator.setRate(Double.parseDouble(nextArg(args, ++i)));
+                        break;
+                    case "--record":
+                        generator.setRecordTo(Paths.get(nextArg(args, ++i)));
+                        break;
+                    case "--replay":
+                        generator.setReplayFrom(Paths.get(nextArg(args, ++i)));
+                        break;
+                    default:
+                        System.err.printf("Unknown option \"%s\".\n", args[i]);
+                        helpAndHalt();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.printf("%s\n", e.getMessage());
+            helpAndHalt();
+        }
+        return generator;
+    }
+
+    private static String nextArg(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(String.format("Missing value for \"%s\".", args[index - 1]));
+        }
+        return args[index];
+    }
+
+    private static void helpAndHalt() {
+        System.err.printf("Available options:\n");
+        System.err.printf("\t--tracker <host[:port]>: tracker to load, localhost by default.\n");
+        System.err.printf("\t--connections <count>: number of connections, each sending requests in turn.\n");
+        System.err.printf("\t--clients <count>: number of virtual clients announcing.\n");
+        System.err.printf("\t--files <count>: make sure the tracker has at least that many files first.\n");
+        System.err.printf("\t--files-per-client <count>: files announced by every virtual client.\n");
+        System.err.printf("\t--mix <list:upload:sources:update>: relative frequencies of requests.\n");
+        System.err.printf("\t--duration <ms>: how long to run.\n");
+        System.err.printf("\t--rate <requests per second>: send on schedule instead of as fast as possible.\n");
+        System.err.printf("\t--record <path>: write the requests sent to a trace.\n");
+        System.err.printf("\t--replay <path>: send requests from a trace, with the same pacing.\n");
+
+        System.exit(1);
+    }
+}
@@ -0,0 +1,200 @@
+package ru.spbau.mit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Created by ldvsoft on 13.06.16.
+ *
+ * Tracker instrumentation in Prometheus text format. Request counters and histograms are LongAdders, so
+ * handlers record them without locks; gauges are read from the tracker only when metrics are asked for.
+ */
+final class TrackerMetrics {
+    private static final String[] REQUEST_NAMES = {
+        null,
+        "list",
+        "upload",
+        "sources",
+        "update",
+        "list_since",
+        "entry",
+        "update_parts",
+        "sources_parts",
+        "announce_delta",
+        "keepalive",
+        "search",
+        "scrape",
+        "replicate",
+        "bulk_upload",
+    };
+    /**
+     * Upper bound of the first histogram bucket, every next one is twice the previous.
+     */
+    private static final long FIRST_BUCKET = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int BUCKETS = 17;
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Histogram[] requests = new Histogram[REQUEST_NAMES.length];
+    private final LongAdder[] busy = new LongAdder[REQUEST_NAMES.length];
+    private final Histogram journalSyncs = new Histogram();
+    private final Histogram snapshots = new Histogram();
+    private final Histogram leaseSaves = new Histogram();
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    /**
+     * Cumulative histogram of durations, with buckets from FIRST_BUCKET doubling up to about 6.5 seconds.
+     */
+    private static final class Histogram {
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i != counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            int bucket = 0;
+            for (long bound = FIRST_BUCKET; bucket != BUCKETS && nanos > bound; bound *= 2) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(nanos);
+        }
+
+        private void writeTo(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            long bound = FIRST_BUCKET;
+            for (int i = 0; i != BUCKETS; i++, bound *= 2) {
+                cumulative += counts[i].sum();
+                out.append(String.format(
+                        Locale.ROOT,
+                        "%s_bucket{%s%sle=\"%s\"} %d\n",
+                        name, labels, separator, bound / NANOS_PER_SECOND, cumulative
+                ));
+            }
+            cumulative += counts[BUCKETS].sum();
+            out.append(String.format("%s_bucket{%s%sle=\"+Inf\"} %d\n", name, labels, separator, cumulative));
+            String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(String.format(Locale.ROOT, "%s_sum%s %s\n", name, braced, sum.sum() / NANOS_PER_SECOND));
+            out.append(String.format("%s_count%s %d\n", name, braced, cumulative));
+        }
+    }
+
+    private static final class Gauge {
+        private final String name;
+        private final String labels;
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String name, String labels, String help, LongSupplier value) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /*package*/ TrackerMetrics() {
+        for (int request = 1; request != REQUEST_NAMES.length; request++) {
+            requests[request] = new Histogram();
+            busy[request] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers a value read when metrics are written; the supplier should not block for long.
+     */
+    /*package*/ void addGauge(String name, String help, LongSupplier value) {
+        addGauge(name, "", help, value);
+    }
+
+    /**
+     * Same as addGauge, for one of the labelled series of a gauge; series of a gauge should be added in a row.
+     * @param labels Prometheus labels, such as {@code class="bulk"}
+     */
+    /*package*/ void addGauge(String name, String labels, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, labels, help, value));
+    }
+
+    /**
+     * @param nanos time from reading the request code to the response, admission included
+     */
+    /*package*/ void recordRequest(int request, long nanos) {
+        if (isKnown(request)) {
+            requests[request].record(nanos);
+        }
+    }
+
+    /*package*/ void recordBusy(int request) {
+        if (isKnown(request)) {
+            busy[request].increment();
+        }
+    }
+
+    /*package*/ void recordJournalSync(long nanos) {
+        journalSyncs.record(nanos);
+    }
+
+    /*package*/ void recordSnapshot(long nanos) {
+        snapshots.record(nanos);
+    }
+
+    /*package*/ void recordLeaseSave(long nanos) {
+        leaseSaves.record(nanos);
+    }
+
+    /**
+     * @return all metrics in Prometheus text exposition format
+     */
+    /*package*/ String format() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP tracker_request_duration_seconds Time to handle a request, by request type.\n");
+        out.append("# TYPE tracker_request_duration_seconds histogram\n");
+        for (int request = 1; request != REQUEST_NAMES.length; request++) {
+            requests[request].writeTo(
+                    out,
+                    "tracker_request_duration_seconds",
+                    "request=\"" + REQUEST_NAMES[request] + "\""
+            );
+        }
+        out.append("# HELP tracker_requests_busy_total Requests refused as busy, by request type.\n");
+        out.append("# TYPE tracker_requests_busy_total counter\n");
+        for (int request = 1; request != REQUEST_NAMES.length; request++) {
+            out.append(String.format(
+                    "tracker_requests_busy_total{request=\"%s\"} %d\n",
+                    REQUEST_NAMES[request], busy[request].sum()
+            ));
+        }
+        writeHistogram(out, "tracker_journal_sync_seconds", "Time to make an upload durable.", journalSyncs);
+        writeHistogram(out, "tracker_snapshot_seconds", "Time to write a catalog snapshot.", snapshots);
+        writeHistogram(out, "tracker_lease_save_seconds", "Time to save the seeder leases.", leaseSaves);
+        String previous = null;
+        for (Gauge gauge : gauges) {
+            if (!gauge.name.equals(previous)) {
+                out.append(String.format("# HELP %s %s\n", gauge.name, gauge.help));
+                out.append(String.format("# TYPE %s gauge\n", gauge.name));
+                previous = gauge.name;
+            }
+            String labels = gauge.labels.isEmpty() ? "" : "{" + gauge.labels + "}";
+            out.append(String.format("%s%s %d\n", gauge.name, labels, gauge.value.getAsLong()));
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String help, Histogram histogram) {
+        out.append(String.format("# HELP %s %s\n", name, help));
+        out.append(String.format("# TYPE %s histogram\n", name));
+        histogram.writeTo(out, name, "");
+    }
+
+    private static boolean isKnown(int request) {
+        return request > 0 && request < REQUEST_NAMES.length;
+    }
+}
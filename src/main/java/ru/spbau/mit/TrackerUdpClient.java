@@ -0,0 +1,222 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Created by ldvsoft on 09.06.16.
+ *
+ * Client side of TrackerUdpServer. Exchange is the same as over a session: the call writes its request into
+ * a buffer, and the first read sends it and waits for the answer. Datagrams are resent with growing timeouts;
+ * tracker that has not answered at all is not asked over UDP for a while.
+ */
+final class TrackerUdpClient {
+    private static final long INITIAL_TIMEOUT = 250;
+    private static final int ATTEMPTS = 4;
+    private static final long SILENCE_PERIOD = 5 * 60 * 1000;
+
+    private final Map<InetSocketAddress, ConnectionId> connectionIds = new HashMap<>();
+    private final Map<InetSocketAddress, Long> silentSince = new HashMap<>();
+
+    private static final class ConnectionId {
+        private final long id;
+        private final long obtained;
+
+        private ConnectionId(long id, long obtained) {
+            this.id = id;
+            this.obtained = obtained;
+        }
+    }
+
+    /**
+     * Thrown when the request cannot go over UDP, it should be sent over TCP then.
+     */
+    /*package*/ static final class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private UnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return whether the tracker has not failed to answer over UDP lately
+     */
+    /*package*/ synchronized boolean isAvailable(InetSocketAddress address) {
+        Long since = silentSince.get(address);
+        if (since != null && System.currentTimeMillis() - since >= SILENCE_PERIOD) {
+            silentSince.remove(address);
+            return true;
+        }
+        return since == null;
+    }
+
+    /**
+     * Runs a request-response exchange in datagrams.
+     * @throws UnavailableException if the tracker does not answer over UDP or refuses the request
+     */
+    /*package*/ <T> T execute(InetSocketAddress address, TrackerConnectionPool.Call<T> call) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        return call.call(new TorrentTrackerConnection(new ExchangeInput(address, request), request, address));
+    }
+
+    private byte[] exchange(InetSocketAddress address, byte[] request) throws IOException {
+        if (request.length > TrackerUdpServer.MAX_REQUEST) {
+            throw new UnavailableException("Request is too large for a datagram.");
+        }
+        boolean isReconnected = false;
+        while (true) {
+            long connectionId = getConnectionId(address);
+            ByteBuffer response = send(address, connectionId, request);
+            int status = Byte.toUnsignedInt(response.get());
+            switch (status) {
+                case TrackerUdpServer.STATUS_OK:
+                    byte[] body = new byte[response.remaining()];
+                    response.get(body);
+                    return body;
+                case TrackerUdpServer.STATUS_BAD_CONNECTION:
+                    forgetConnectionId(address, connectionId);
+                    if (isReconnected) {
+                        throw new UnavailableException("Tracker does not accept UDP connection id.");
+                    }
+                    isReconnected = true;
+                    break;
+                default:
+                    throw new UnavailableException("Tracker does not serve the request over UDP.");
+            }
+        }
+    }
+
+    private long getConnectionId(InetSocketAddress address) throws IOException {
+        synchronized (this) {
+            ConnectionId connectionId = connectionIds.get(address);
+            long now = System.currentTimeMillis();
+            if (connectionId != null && now - connectionId.obtained < TrackerUdpServer.CONNECTION_ID_LIFETIME) {
+                return connectionId.id;
+            }
+        }
+        long obtained = System.currentTimeMillis();
+        byte[] connect = new byte[] {(byte) TrackerUdpServer.REQUEST_CONNECT};
+        ByteBuffer response = send(address, TrackerUdpServer.PROTOCOL_ID, connect);
+        int status = Byte.toUnsignedInt(response.get());
+        if (status != TrackerUdpServer.STATUS_OK || response.remaining() < Long.BYTES) {
+            throw new UnavailableException("Tracker refused UDP connection.");
+        }
+        long id = response.getLong();
+        synchronized (this) {
+            connectionIds.put(address, new ConnectionId(id, obtained));
+        }
+        return id;
+    }
+
+    private synchronized void forgetConnectionId(InetSocketAddress address, long id) {
+        ConnectionId connectionId = connectionIds.get(address);
+        if (connectionId != null && connectionId.id == id) {
+            connectionIds.remove(address);
+        }
+    }
+
+    private synchronized void markSilent(InetSocketAddress address) {
+        silentSince.put(address, System.currentTimeMillis());
+    }
+
+    /**
+     * @param request request byte and body
+     * @return answer positioned at status
+     */
+    private ByteBuffer send(InetSocketAddress address, long connectionId, byte[] request) throws IOException {
+        int transaction = ThreadLocalRandom.current().nextInt();
+        ByteBuffer datagram = ByteBuffer.allocate(TrackerUdpServer.REQUEST_HEADER_LENGTH - 1 + request.length);
+        datagram.putLong(connectionId).putInt(transaction).put(request);
+        byte[] answer = new byte[TrackerUdpServer.MAX_DATAGRAM];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            long timeout = INITIAL_TIMEOUT;
+            for (int attempt = 0; attempt != ATTEMPTS; attempt++, timeout *= 2) {
+                socket.send(new DatagramPacket(datagram.array(), datagram.position(), address));
+                long deadline = System.currentTimeMillis() + timeout;
+                long left;
+                while ((left = deadline - System.currentTimeMillis()) > 0) {
+                    DatagramPacket packet = new DatagramPacket(answer, answer.length);
+                    socket.setSoTimeout((int) left);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    ByteBuffer response = ByteBuffer.wrap(answer, 0, packet.getLength());
+                    // Late answers to previous attempts have the same transaction and are as good
+                    if (response.remaining() >= TrackerUdpServer.RESPONSE_HEADER_LENGTH
+                            && response.getInt() == transaction) {
+                        return response;
+                    }
+                }
+            }
+        }
+        markSilent(address);
+        throw new UnavailableException("Tracker does not answer over UDP.");
+    }
+
+    /**
+     * Sends the request written so far on the first read, then reads the answer.
+     */
+    private final class ExchangeInput extends InputStream {
+        private final InetSocketAddress address;
+        private final ByteArrayOutputStream request;
+        private ByteArrayInputStream response = null;
+
+        private ExchangeInput(InetSocketAddress address, ByteArrayOutputStream request) {
+            this.address = address;
+            this.request = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return getResponse().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return getResponse().read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return getResponse().available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int limit) {
+            // Before the answer comes the mark is at its start anyway
+            if (response != null) {
+                response.mark(limit);
+            }
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            getResponse().reset();
+        }
+
+        private ByteArrayInputStream getResponse() throws IOException {
+            if (response == null) {
+                response = new ByteArrayInputStream(exchange(address, request.toByteArray()));
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ru.spbau.mit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Created by ldvsoft on 09.06.16.
+ *
+ * UDP endpoint of the tracker for announces and lookups, which are small enough to go without a TCP
+ * session. Datagram carries the same request and response as a session does, after a short header.
+ *
+ * Request: {@code <connection id: Long> <transaction: Int> <request: Byte> <request body>}.
+ * Response: {@code <transaction: Int> <status: Byte> <response body if OK>}.
+ *
+ * Client first sends CONNECT with PROTOCOL_ID as connection id and gets {@code <connection id: Long>}.
+ * Connection id is a keyed hash of the client IP and current minute, so the tracker keeps no state for it,
+ * and only the one receiving datagrams at that IP can announce for it. Ids are accepted for the next minute
+ * too, so an id is good for at least CONNECTION_ID_LIFETIME.
+ *
+ * Requests are served by one thread, which never waits for admission.
+ */
+final class TrackerUdpServer implements AutoCloseable {
+    /*package*/ static final long PROTOCOL_ID = 0x41727101980L;
+    /*package*/ static final int REQUEST_CONNECT = 0;
+    /*package*/ static final int STATUS_OK = 0;
+    /**
+     * Connection id is wrong or too old, client should CONNECT again.
+     */
+    /*package*/ static final int STATUS_BAD_CONNECTION = 1;
+    /**
+     * Request is not served over UDP or its response is too large, client should use TCP.
+     */
+    /*package*/ static final int STATUS_UNSUPPORTED = 2;
+    /*package*/ static final long CONNECTION_ID_LIFETIME = 60 * 1000;
+    /*package*/ static final int REQUEST_HEADER_LENGTH = Long.BYTES + Integer.BYTES + 1;
+    /*package*/ static final int RESPONSE_HEADER_LENGTH = Integer.BYTES + 1;
+    /*package*/ static final int MAX_DATAGRAM = 64 * 1024;
+    /*package*/ static final int MAX_RESPONSE = 8 * 1024;
+    /**
+     * Larger requests are sent over TCP by the client, to keep off IP fragmentation.
+     */
+    /*package*/ static final int MAX_REQUEST = 8 * 1024;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SECRET_LENGTH = 32;
+
+    private final DatagramChannel channel;
+    private final TorrentTrackerNioServer.Handler handler;
+    private final Mac mac;
+    private final Thread thread;
+
+    /*package*/ TrackerUdpServer(int port, TorrentTrackerNioServer.Handler handler) throws IOException {
+        this.handler = handler;
+        byte[] secret = new byte[SECRET_LENGTH];
+        new SecureRandom().nextBytes(secret);
+        try {
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        thread = new Thread(this::work, "tracker-udp");
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells whether the request may be sent over UDP: announces and lookups only.
+     */
+    /*package*/ static boolean isSupported(int request) {
+        switch (AdmissionControl.getRequestClass(request)) {
+            case ANNOUNCE:
+            case LOOKUP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void work() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        while (true) {
+            try {
+                buffer.clear();
+                InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                ByteBuffer response = handle(buffer, source);
+                if (response != null) {
+                    channel.send(response, source);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return response datagram, or null if the request is to be ignored
+     */
+    private ByteBuffer handle(ByteBuffer request, InetSocketAddress source) throws IOException {
+        if (request.remaining() < REQUEST_HEADER_LENGTH) {
+            return null;
+        }
+        long connectionId = request.getLong();
+        int transaction = request.getInt();
+        int type = Byte.toUnsignedInt(request.get());
+        long epoch = System.currentTimeMillis() / CONNECTION_ID_LIFETIME;
+        if (type == REQUEST_CONNECT) {
+            if (connectionId != PROTOCOL_ID) {
+                return null;
+            }
+            ByteBuffer response = ByteBuffer.allocate(RESPONSE_HEADER_LENGTH + Long.BYTES);
+            response.putInt(transaction).put((byte) STATUS_OK).putLong(getConnectionId(source, epoch));
+            response.flip();
+            return response;
+        }
+        if (connectionId != getConnectionId(source, epoch)
+                && connectionId != getConnectionId(source, epoch - 1)) {
+            return getStatus(transaction, STATUS_BAD_CONNECTION);
+        }
+        if (!isSupported(type)) {
+            return getStatus(transaction, STATUS_UNSUPPORTED);
+        }
+
+        ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(responseStream);
+        header.writeInt(transaction);
+        header.writeByte(STATUS_OK);
+        // Request byte is read by the handler again, as from a session
+        int start = request.position() - 1;
+        ByteArrayInputStream requestStream = new ByteArrayInputStream(
+                request.array(),
+                request.arrayOffset() + start,
+                request.limit() - start
+        );
+        try {
+            handler.handle(new TorrentTrackerConnection(requestStream, responseStream, source));
+        } catch (TrackerBusyException e) {
+            // BUSY response is already written
+        } catch (IOException | RuntimeException e) {
+            // Malformed request
+            return null;
+        }
+        if (responseStream.size() > MAX_RESPONSE) {
+            return getStatus(transaction, STATUS_UNSUPPORTED);
+        }
+        return ByteBuffer.wrap(responseStream.toByteArray());
+    }
+
+    private static ByteBuffer getStatus(int transaction, int status) {
+        ByteBuffer response = ByteBuffer.allocate(RESPONSE_HEADER_LENGTH);
+        response.putInt(transaction).put((byte) status);
+        response.flip();
+        return response;
+    }
+
+    private long getConnectionId(InetSocketAddress source, long epoch) {
+        mac.update(source.getAddress().getAddress());
+        byte[] hash = mac.doFinal(ByteBuffer.allocate(Long.BYTES).putLong(epoch).array());
+        return ByteBuffer.wrap(hash).getLong();
+    }
+}
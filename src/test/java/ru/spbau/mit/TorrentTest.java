@@ -7,10 +7,30 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 /**
  * Created by ldvsoft on 04.04.16.
@@ -18,10 +38,35 @@ import java.util.*;
 public class TorrentTest {
     private static final Path EXAMPLE_PATH = Paths.get("src", "test", "resources", "checkstyle.xml");
     private static final Path TRACKER_DIR = Paths.get("test", "tracker");
+    private static final Path TRACKER2_DIR = Paths.get("test", "tracker-02");
     private static final Path CLIENT1_DIR = Paths.get("test", "client-01");
     private static final Path CLIENT2_DIR = Paths.get("test", "client-02");
     private static final Path CLIENT3_DIR = Paths.get("test", "client-03");
+    private static final Path BULK_DIR = Paths.get("test", "bulk");
     private static final long TIME_LIMIT = 70 * 1000L;
+    private static final String CLUSTER = "localhost:8081,localhost:8082";
+    private static final int CLUSTER_FILES = 6;
+    private static final long LOAD_DURATION = 300;
+    private static final int SEEDER_PORT = 12345;
+    private static final int BUSY_RETRY_DELAY = 250;
+    private static final int PEERS_COUNT = 100;
+    private static final int MIN_ANNOUNCE_INTERVAL = 100;
+    private static final int SECOND = 1000;
+    private static final int PEERS_LIMIT = 10;
+    private static final int LOAD_CLIENTS = 100;
+    private static final int LOAD_FILES = 10;
+    private static final String REPLICATED = "localhost:8081+localhost:8082";
+    private static final int REPLICA_PORT = 8082;
+    private static final int REPLICATION_PERIOD = 50;
+    private static final int REPLICATION_LOG = 1024;
+    private static final int BULK_FILES = 1500;
+    private static final long ARCHIVE_AFTER = 100;
+    private static final int METRICS_PORT = 9100;
+    private static final int PLAN_PARTS = 4;
+    private static final int PLAN_PARTS_PER_FILE = 3;
+    private static final int PLAN_PARTS_PER_PEER = 2;
+    private static final int PEER_IDLE_TIMEOUT = 500;
+    private static final int PEER_READ_TIMEOUT = 200;
 
     @Test
     public void testListAndUpload() throws Throwable {
@@ -42,6 +87,782 @@ public class TorrentTest {
         }
     }
 
+    @Test
+    public void testNioListAndUpload() throws Throwable {
+        TorrentTrackerConfig config = new TorrentTrackerConfig()
+                .setMode(TorrentTrackerConfig.ServerMode.NIO)
+                .setReactorThreads(2);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                TorrentClientState clientState1 = new TorrentClientState("localhost", CLIENT1_DIR);
+                TorrentClientState clientState2 = new TorrentClientState("localhost", CLIENT2_DIR)
+        ) {
+            TorrentClient client1 = new TorrentClient(clientState1);
+            TorrentClient client2 = new TorrentClient(clientState2);
+            assertAllCollectionEquals(Collections.emptyList(), client1.requestList(), client2.requestList());
+
+            FileEntry entry1 = client1.newFile(EXAMPLE_PATH);
+            FileEntry entry2 = client2.newFile(EXAMPLE_PATH);
+            assertNotEquals("Should be different ids", entry1.getId(), entry2.getId());
+
+            assertAllCollectionEquals(Arrays.asList(entry1, entry2), client1.requestList(), client2.requestList());
+            assertTrue(client2.get(entry1.getId()));
+        }
+    }
+
+    @Test(timeout = TIME_LIMIT)
+    public void testNioSplitRequests() throws Throwable {
+        TorrentTrackerConfig config = new TorrentTrackerConfig()
+                .setMode(TorrentTrackerConfig.ServerMode.NIO);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                Socket socket = new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT);
+                Socket oversized = new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+        ) {
+            FileEntry entry = new FileEntry("file", SECOND);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            new TorrentTrackerConnection(new ByteArrayInputStream(new byte[0]), request, null)
+                    .writeUploadRequest(entry);
+            byte[] bytes = request.toByteArray();
+            // Request comes in two parts, as if the network has split it in the middle of the name
+            DataOutputStream raw = new DataOutputStream(socket.getOutputStream());
+            raw.write(bytes, 0, bytes.length / 2);
+            raw.flush();
+            Thread.sleep(MIN_ANNOUNCE_INTERVAL);
+            raw.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+            raw.flush();
+            TorrentTrackerConnection connection = new TorrentTrackerConnection(socket);
+            entry = entry.setId(connection.readUploadResponse());
+
+            // Requests as the README describes them, both in one packet
+            raw.writeByte(TorrentTrackerConnection.REQUEST_LIST);
+            raw.writeByte(TorrentTrackerConnection.REQUEST_ENTRY);
+            raw.writeInt(entry.getId());
+            raw.flush();
+            assertEquals(Collections.singletonList(entry), connection.readListResponse());
+            assertEquals(entry, connection.readEntryResponse());
+
+            DataOutputStream tooLarge = new DataOutputStream(oversized.getOutputStream());
+            tooLarge.writeByte(TorrentTrackerConnection.REQUEST_SOURCES);
+            tooLarge.writeInt(TorrentTrackerConnection.MAX_REQUEST_SIZE / Integer.BYTES);
+            tooLarge.flush();
+            assertEquals("Session should be closed", -1, oversized.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testSession() throws Throwable {
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeListRequest();
+            assertEquals(Collections.emptyList(), connection.readListResponse());
+            FileEntry entry = new FileEntry("file", 1);
+            connection.writeUploadRequest(entry);
+            entry = entry.setId(connection.readUploadResponse());
+            connection.writeListRequest();
+            assertEquals(Collections.singletonList(entry), connection.readListResponse());
+        }
+    }
+
+    @Test
+    public void testInvalidIds() throws Throwable {
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(new FileEntry("file", 1));
+            int id = connection.readUploadResponse();
+            connection.writeEntryRequest(-1);
+            assertNull(connection.readEntryResponse());
+            connection.writeUpdateRequest(new ClientInfo(
+                    new InetSocketAddress("localhost", SEEDER_PORT),
+                    Arrays.asList(id, -id - 2)
+            ));
+            assertTrue(connection.readUpdateResponse());
+            connection.writeSourcesRequest(Collections.singletonList(-1));
+            assertEquals(Collections.emptyList(), connection.readSourcesResponse());
+            connection.writeSourcesPartsRequest(-1);
+            assertEquals(Collections.emptyMap(), connection.readSourcesPartsResponse(1));
+            // Session goes on after them
+            connection.writeSourcesRequest(Collections.singletonList(id));
+            assertEquals(1, connection.readSourcesResponse().size());
+        }
+    }
+
+    @Test
+    public void testSearch() throws Throwable {
+        List<String> names = Arrays.asList("Report.pdf", "photo.jpg", "old report.txt", "a", "reports.zip");
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            for (String name : names) {
+                connection.writeUploadRequest(new FileEntry(name, 1));
+                connection.readUploadResponse();
+            }
+        }
+        // Index is rebuilt from the stored catalog
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentClientState state = new TorrentClientState("localhost", CLIENT1_DIR)
+        ) {
+            TorrentClient client = new TorrentClient(state);
+            SearchResult page = client.search("REPORT", SearchRequest.FIRST_PAGE, 2);
+            assertEquals(Arrays.asList(0, 2), getIds(page));
+            assertTrue(page.hasMore());
+            page = client.search("report", 2, 2);
+            assertEquals(Collections.singletonList(names.size() - 1), getIds(page));
+            assertFalse(page.hasMore());
+            assertEquals(Arrays.asList(0, 1), getIds(client.search("p", SearchRequest.FIRST_PAGE, 2)));
+            assertEquals(Collections.emptyList(), getIds(client.search("t.jpg", SearchRequest.FIRST_PAGE, 2)));
+        }
+    }
+
+    @Test
+    public void testPeerSelection() throws Throwable {
+        long[] candidates = new long[PEERS_COUNT];
+        for (int i = 0; i != PEERS_COUNT; i++) {
+            InetSocketAddress address = new InetSocketAddress(String.format("10.0.%d.%d", i % 2, i), SEEDER_PORT);
+            candidates[i] = IOUtils.packAddress(address);
+        }
+        long requester = IOUtils.packAddress(new InetSocketAddress("10.0.1.1", 0));
+
+        int count = new RandomPeerSelector(PEERS_LIMIT, false).select(candidates, requester);
+        assertEquals(PEERS_LIMIT, count);
+        assertEquals(PEERS_COUNT, Arrays.stream(candidates).distinct().count());
+
+        count = new RandomPeerSelector(PEERS_COUNT, true).select(candidates, requester);
+        assertEquals(PEERS_COUNT, count);
+        for (int i = 0; i != PEERS_COUNT; i++) {
+            // Seeders from the same /24 come first
+            String host = IOUtils.unpackAddress(candidates[i]).getHostString();
+            assertEquals(i < PEERS_COUNT / 2, host.startsWith("10.0.1."));
+        }
+    }
+
+    @Test
+    public void testBusy() throws Throwable {
+        for (TorrentTrackerConfig.ServerMode mode : TorrentTrackerConfig.ServerMode.values()) {
+            TorrentTrackerConfig config = new TorrentTrackerConfig()
+                    .setMode(mode)
+                    .setMaxSessions(1)
+                    .setBusyRetryDelay(BUSY_RETRY_DELAY);
+            try (
+                    TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                    TorrentTrackerConnection connection1 = new TorrentTrackerConnection(
+                            new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                    );
+                    TorrentTrackerConnection connection2 = new TorrentTrackerConnection(
+                            new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                    )
+            ) {
+                connection1.writeListRequest();
+                assertEquals(Collections.emptyList(), connection1.readListResponse());
+                // Request is left unread by the tracker, yet BUSY should not be lost
+                connection2.writeSearchRequest(new SearchRequest("file", 0, 1));
+                try {
+                    connection2.readListResponse();
+                    fail("Second session should be refused.");
+                } catch (TrackerBusyException e) {
+                    assertEquals(BUSY_RETRY_DELAY, e.getRetryAfter());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBusyRetry() throws Throwable {
+        TorrentTrackerConfig config = new TorrentTrackerConfig()
+                .setMaxSessions(1)
+                .setBusyRetryDelay(BUSY_RETRY_DELAY);
+        final InetSocketAddress address = new InetSocketAddress(
+                "localhost",
+                TorrentTrackerConnection.TRACKER_PORT
+        );
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                TrackerConnectionPool pool = new TrackerConnectionPool()
+        ) {
+            TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                    new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+            );
+            connection.writeListRequest();
+            connection.readListResponse();
+            try {
+                pool.execute(address, pooled -> {
+                    pooled.writeListRequest();
+                    return pooled.readListResponse();
+                });
+                fail("Pool should give up while the session is taken.");
+            } catch (TrackerBusyException e) {
+                assertEquals(BUSY_RETRY_DELAY, e.getRetryAfter());
+            }
+
+            Thread closer = new Thread(() -> {
+                try {
+                    Thread.sleep(BUSY_RETRY_DELAY / 2);
+                } catch (InterruptedException ignored) {
+                }
+                connection.close();
+            });
+            closer.start();
+            assertEquals(Collections.emptyList(), pool.execute(address, pooled -> {
+                pooled.writeListRequest();
+                return pooled.readListResponse();
+            }));
+            closer.join();
+        }
+    }
+
+    @Test
+    public void testAdmissionLimits() throws Throwable {
+        TorrentTrackerConfig config = new TorrentTrackerConfig()
+                .setAdmissionLimits(TorrentTrackerConfig.RequestClass.LOOKUP, 1, 1)
+                .setAdmissionLimits(TorrentTrackerConfig.RequestClass.BULK, 1, 0)
+                .setAdmissionTimeout(BUSY_RETRY_DELAY);
+        AdmissionControl admission = new AdmissionControl(config);
+        assertTrue(admission.enter(TorrentTrackerConfig.RequestClass.LOOKUP, false));
+        assertFalse(admission.enter(TorrentTrackerConfig.RequestClass.LOOKUP, false));
+        assertFalse("Queued request should give up after the timeout",
+                admission.enter(TorrentTrackerConfig.RequestClass.LOOKUP, true));
+        assertTrue(
+                "Classes should not share permits",
+                admission.enter(TorrentTrackerConfig.RequestClass.BULK, true)
+        );
+        assertFalse("No queue for bulk requests", admission.enter(TorrentTrackerConfig.RequestClass.BULK, true));
+        assertEquals(1, admission.getActive(TorrentTrackerConfig.RequestClass.LOOKUP));
+
+        admission.leave(TorrentTrackerConfig.RequestClass.LOOKUP);
+        assertTrue(admission.enter(TorrentTrackerConfig.RequestClass.LOOKUP, false));
+    }
+
+    @Test
+    public void testAnnounceDelta() throws Throwable {
+        // One announce per second: interval is a second per seeder
+        TorrentTrackerConfig config = new TorrentTrackerConfig()
+                .setAnnounceRate(1)
+                .setAnnounceInterval(MIN_ANNOUNCE_INTERVAL, TorrentTrackerConnection.UPDATE_DELAY);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i != 2; i++) {
+                connection.writeUploadRequest(new FileEntry("file", 1));
+                ids.add(connection.readUploadResponse());
+            }
+            byte[] bitmap = new PartsSet(1, true).toBitmap();
+            final InetSocketAddress seeder = new InetSocketAddress("127.0.0.1", SEEDER_PORT);
+            InetSocketAddress port = new InetSocketAddress("", SEEDER_PORT);
+
+            connection.writeAnnounceDeltaRequest(AnnounceDelta.full(new ClientInfo(
+                    port, ids.subList(0, 1), Collections.singletonList(bitmap)
+            )));
+            AnnounceResponse response = connection.readAnnounceDeltaResponse();
+            assertFalse(response.isRejected());
+            assertEquals(MIN_ANNOUNCE_INTERVAL, response.getInterval());
+            int version1 = response.getVersion();
+
+            connection.writeAnnounceDeltaRequest(new AnnounceDelta(
+                    version1,
+                    new ClientInfo(port, ids.subList(1, 2), Collections.singletonList(bitmap)),
+                    ids.subList(0, 1)
+            ));
+            response = connection.readAnnounceDeltaResponse();
+            assertFalse(response.isRejected());
+            assertEquals(SECOND, response.getInterval());
+            final int version2 = response.getVersion();
+            connection.writeSourcesRequest(ids.subList(0, 1));
+            assertEquals(Collections.emptyList(), connection.readSourcesResponse());
+            connection.writeSourcesRequest(ids.subList(1, 2));
+            assertEquals(Collections.singletonList(seeder), connection.readSourcesResponse());
+
+            connection.writeAnnounceDeltaRequest(new AnnounceDelta(
+                    version1,
+                    new ClientInfo(port, Collections.emptyList(), Collections.emptyList()),
+                    ids
+            ));
+            assertTrue(connection.readAnnounceDeltaResponse().isRejected());
+            connection.writeKeepAliveRequest(new KeepAliveRequest(SEEDER_PORT, version2));
+            assertEquals(version2, connection.readKeepAliveResponse().getVersion());
+            connection.writeKeepAliveRequest(new KeepAliveRequest(SEEDER_PORT, version1));
+            assertTrue(connection.readKeepAliveResponse().isRejected());
+        }
+    }
+
+    @Test
+    public void testUdp() throws Throwable {
+        InetSocketAddress address = new InetSocketAddress("localhost", TorrentTrackerConnection.TRACKER_PORT);
+        TorrentTrackerConfig config = new TorrentTrackerConfig().setUdpEnabled(true);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(new FileEntry("file", 1));
+            List<Integer> ids = Collections.singletonList(connection.readUploadResponse());
+            byte[] bitmap = new PartsSet(1, true).toBitmap();
+            TrackerUdpClient udp = new TrackerUdpClient();
+
+            AnnounceResponse response = udp.execute(address, udpConnection -> {
+                udpConnection.writeAnnounceDeltaRequest(AnnounceDelta.full(new ClientInfo(
+                        new InetSocketAddress("", SEEDER_PORT), ids, Collections.singletonList(bitmap)
+                )));
+                return udpConnection.readAnnounceDeltaResponse();
+            });
+            assertFalse(response.isRejected());
+            List<InetSocketAddress> sources = udp.execute(address, udpConnection -> {
+                udpConnection.writeSourcesRequest(ids);
+                return udpConnection.readSourcesResponse();
+            });
+            assertEquals(Collections.singletonList(new InetSocketAddress("127.0.0.1", SEEDER_PORT)), sources);
+
+            try {
+                udp.execute(address, udpConnection -> {
+                    udpConnection.writeListRequest();
+                    return udpConnection.readListResponse();
+                });
+                fail("LIST should not be served over UDP.");
+            } catch (TrackerUdpClient.UnavailableException e) {
+                assertTrue(udp.isAvailable(address));
+            }
+        }
+    }
+
+    @Test
+    public void testScrape() throws Throwable {
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(new FileEntry("file", 2 * FileEntry.PART_SIZE));
+            List<Integer> ids = Collections.singletonList(connection.readUploadResponse());
+            PartsSet half = new PartsSet(2, false);
+            half.set(0, true);
+
+            connection.writeAnnounceDeltaRequest(AnnounceDelta.full(
+                    new ClientInfo(
+                            new InetSocketAddress("", SEEDER_PORT),
+                            ids,
+                            Collections.singletonList(new PartsSet(2, true).toBitmap())
+                    ),
+                    ids
+            ));
+            connection.readAnnounceDeltaResponse();
+            connection.writeAnnounceDeltaRequest(AnnounceDelta.full(new ClientInfo(
+                    new InetSocketAddress("", SEEDER_PORT + 1), ids, Collections.singletonList(half.toBitmap())
+            )));
+            final int version = connection.readAnnounceDeltaResponse().getVersion();
+            connection.writeScrapeRequest(Arrays.asList(ids.get(0), ids.get(0) + 1));
+            assertEquals(
+                    Arrays.asList(new SwarmStats(1, 1, 1), SwarmStats.EMPTY),
+                    connection.readScrapeResponse()
+            );
+
+            connection.writeAnnounceDeltaRequest(new AnnounceDelta(
+                    version,
+                    new ClientInfo(
+                            new InetSocketAddress("", SEEDER_PORT + 1),
+                            Collections.emptyList(),
+                            Collections.emptyList()
+                    ),
+                    ids
+            ));
+            connection.readAnnounceDeltaResponse();
+            connection.writeScrapeRequest(ids);
+            assertEquals(Collections.singletonList(new SwarmStats(1, 0, 1)), connection.readScrapeResponse());
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Throwable {
+        TorrentTrackerConfig config = new TorrentTrackerConfig().setMetricsPort(METRICS_PORT);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, config);
+                TorrentClientState clientState = new TorrentClientState("localhost", CLIENT1_DIR)
+        ) {
+            TorrentClient client = new TorrentClient(clientState);
+            client.newFile(EXAMPLE_PATH);
+            client.requestList();
+
+            String metrics;
+            try (InputStream in = new URL("http://localhost:" + METRICS_PORT + "/metrics").openStream()) {
+                metrics = org.apache.commons.io.IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+            assertTrue(metrics.contains("tracker_request_duration_seconds_count{request=\"upload\"} 1\n"));
+            assertTrue(metrics.contains("tracker_request_duration_seconds_count{request=\"list\"} 1\n"));
+            assertTrue(metrics.contains("tracker_catalog_files 1\n"));
+            assertTrue(metrics.contains("tracker_journal_sync_seconds_count 1\n"));
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws Throwable {
+        List<Integer> ids = new ArrayList<>();
+        byte[] bitmap = new PartsSet(1, true).toBitmap();
+        InetSocketAddress port = new InetSocketAddress("", SEEDER_PORT);
+        int version;
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(new FileEntry("file", 1));
+            ids.add(connection.readUploadResponse());
+            connection.writeAnnounceDeltaRequest(AnnounceDelta.full(new ClientInfo(
+                    port, ids, Collections.singletonList(bitmap)
+            )));
+            version = connection.readAnnounceDeltaResponse().getVersion();
+        }
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeSourcesRequest(ids);
+            assertEquals(
+                    Collections.singletonList(new InetSocketAddress("127.0.0.1", SEEDER_PORT)),
+                    connection.readSourcesResponse()
+            );
+            connection.writeKeepAliveRequest(new KeepAliveRequest(SEEDER_PORT, version));
+            assertEquals(version, connection.readKeepAliveResponse().getVersion());
+        }
+    }
+
+    @Test
+    public void testLegacyCatalog() throws Throwable {
+        // Snapshot as written before the format header
+        List<FileEntry> entries = Arrays.asList(new FileEntry(0, "first", 1), new FileEntry(1, "second", 2));
+        Files.createDirectories(TRACKER_DIR);
+        Path snapshot = TRACKER_DIR.resolve("tracker-state.dat");
+        try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(snapshot))) {
+            IOUtils.writeCollection(entries, (output, entry) -> entry.writeTo(output), dos);
+        }
+        for (int i = 0; i != 2; i++) {
+            try (
+                    TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                    TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                            new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                    )
+            ) {
+                connection.writeListRequest();
+                assertEquals(entries, connection.readListResponse());
+            }
+            try (DataInputStream dis = new DataInputStream(Files.newInputStream(snapshot))) {
+                assertNotEquals("Snapshot should be rewritten", entries.size(), dis.readInt());
+            }
+        }
+    }
+
+    @Test(timeout = TIME_LIMIT)
+    public void testArchive() throws Throwable {
+        InetSocketAddress port = new InetSocketAddress("", SEEDER_PORT);
+        FileEntry seeded = new FileEntry("seeded", 1);
+        FileEntry idle = new FileEntry("idle", 1);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, new TorrentTrackerConfig()
+                        .setArchiveAfter(ARCHIVE_AFTER));
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(seeded);
+            seeded = seeded.setId(connection.readUploadResponse());
+            connection.writeUploadRequest(idle);
+            idle = idle.setId(connection.readUploadResponse());
+            List<FileEntry> hot = Collections.singletonList(seeded);
+            connection.writeUpdateRequest(new ClientInfo(port, Collections.singletonList(seeded.getId())));
+            connection.readUpdateResponse();
+            waitForList(connection, hot);
+            connection.writeEntryRequest(idle.getId());
+            assertEquals(idle, connection.readEntryResponse());
+            SearchRequest search = new SearchRequest("idle", SearchRequest.FIRST_PAGE, 1);
+            connection.writeSearchRequest(search);
+            assertEquals(Collections.emptyList(), connection.readSearchResponse().getEntries());
+
+            // Announce brings the file back at once
+            connection.writeUpdateRequest(new ClientInfo(port, Arrays.asList(seeded.getId(), idle.getId())));
+            connection.readUpdateResponse();
+            connection.writeListRequest();
+            assertEquals(Arrays.asList(seeded, idle), connection.readListResponse());
+            connection.writeSearchRequest(search);
+            assertEquals(Collections.singletonList(idle), connection.readSearchResponse().getEntries());
+
+            connection.writeUpdateRequest(new ClientInfo(port, Collections.singletonList(seeded.getId())));
+            connection.readUpdateResponse();
+            waitForList(connection, hot);
+        }
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeListRequest();
+            assertEquals(Collections.singletonList(seeded), connection.readListResponse());
+            connection.writeEntryRequest(idle.getId());
+            assertEquals(idle, connection.readEntryResponse());
+        }
+    }
+
+    @Test(timeout = TIME_LIMIT)
+    public void testArchiveSync() throws Throwable {
+        InetSocketAddress port = new InetSocketAddress("", SEEDER_PORT);
+        FileEntry seeded = new FileEntry("seeded", 1);
+        FileEntry idle = new FileEntry("idle", 1);
+        try (
+                TorrentTracker primary = new TorrentTracker(TRACKER_DIR, new TorrentTrackerConfig()
+                        .setArchiveAfter(ARCHIVE_AFTER));
+                TorrentTracker replica = new TorrentTracker(TRACKER2_DIR, new TorrentTrackerConfig()
+                        .setPort(REPLICA_PORT)
+                        .setPrimary(new InetSocketAddress("localhost", TorrentTrackerConnection.TRACKER_PORT))
+                        .setReplicationPeriod(REPLICATION_PERIOD));
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                );
+                TorrentTrackerConnection replicaConnection = new TorrentTrackerConnection(
+                        new Socket("localhost", REPLICA_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(seeded);
+            seeded = seeded.setId(connection.readUploadResponse());
+            connection.writeUploadRequest(idle);
+            idle = idle.setId(connection.readUploadResponse());
+            connection.writeUpdateRequest(new ClientInfo(port, Collections.singletonList(seeded.getId())));
+            connection.readUpdateResponse();
+            connection.writeListSinceRequest(0);
+            final int version = connection.readListSinceResponse().getVersion();
+            waitForList(replicaConnection, Arrays.asList(seeded, idle));
+
+            List<FileEntry> hot = Collections.singletonList(seeded);
+            waitForList(connection, hot);
+            waitForList(replicaConnection, hot);
+            connection.writeListSinceRequest(version);
+            CatalogDelta archived = connection.readListSinceResponse();
+            assertTrue(archived.getVersion() > version);
+            assertEquals(Collections.emptyList(), archived.getEntries());
+
+            // Revived entry comes after the version a client has synced to
+            connection.writeUpdateRequest(new ClientInfo(port, Arrays.asList(seeded.getId(), idle.getId())));
+            connection.readUpdateResponse();
+            connection.writeListSinceRequest(version);
+            CatalogDelta revived = connection.readListSinceResponse();
+            assertEquals(Collections.singletonList(idle), revived.getEntries());
+            waitForList(replicaConnection, Arrays.asList(seeded, idle));
+            replicaConnection.writeListSinceRequest(version);
+            assertEquals(Collections.singletonList(idle), replicaConnection.readListSinceResponse().getEntries());
+        }
+    }
+
+    @Test
+    public void testLoadGenerator() throws Throwable {
+        Path trace = TRACKER_DIR.resolveSibling("trace.dat");
+        try (TorrentTracker tracker = new TorrentTracker(TRACKER_DIR)) {
+            TrackerLoadGenerator.Report report = new TrackerLoadGenerator()
+                    .setConnections(2)
+                    .setVirtualClients(LOAD_CLIENTS)
+                    .setInitialFiles(LOAD_FILES)
+                    .setDuration(LOAD_DURATION)
+                    .setRecordTo(trace)
+                    .run();
+            assertEquals(0, report.getErrors());
+            assertTrue(report.getCount(TorrentTrackerConnection.REQUEST_UPDATE) > 0);
+            assertTrue(report.getCount(TorrentTrackerConnection.REQUEST_SOURCES) > 0);
+
+            TrackerLoadGenerator.Report replayReport = new TrackerLoadGenerator()
+                    .setConnections(1)
+                    .setReplayFrom(trace)
+                    .run();
+            assertEquals(0, replayReport.getErrors());
+            for (int type = TorrentTrackerConnection.REQUEST_LIST;
+                 type <= TorrentTrackerConnection.REQUEST_UPDATE; type++) {
+                assertEquals(report.getCount(type), replayReport.getCount(type));
+            }
+        }
+    }
+
+    @Test
+    public void testCatalogSync() throws Throwable {
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentClientState clientState1 = new TorrentClientState("localhost", CLIENT1_DIR)
+        ) {
+            TorrentClient client1 = new TorrentClient(clientState1);
+            FileEntry entry1 = client1.newFile(EXAMPLE_PATH);
+            FileEntry entry2 = client1.newFile(EXAMPLE_PATH);
+
+            try (TorrentClientState clientState2 = new TorrentClientState("localhost", CLIENT2_DIR)) {
+                TorrentClient client2 = new TorrentClient(clientState2);
+                assertEquals(Arrays.asList(entry1, entry2), client2.syncCatalog());
+            }
+
+            FileEntry entry3 = client1.newFile(EXAMPLE_PATH);
+            try (TorrentClientState clientState2 = new TorrentClientState("localhost", CLIENT2_DIR)) {
+                TorrentClient client2 = new TorrentClient(clientState2);
+                assertEquals(Arrays.asList(entry1, entry2, entry3), client2.syncCatalog());
+                assertEquals(client1.requestList(), client2.syncCatalog());
+            }
+
+            try (TorrentClientState clientState3 = new TorrentClientState("localhost", CLIENT3_DIR)) {
+                TorrentClient client3 = new TorrentClient(clientState3);
+                assertTrue(client3.get(entry2.getId()));
+                assertFalse(client3.get(entry2.getId()));
+                assertFalse(client3.get(entry3.getId() + 1));
+            }
+        }
+    }
+
+    @Test
+    public void testBulkUpload() throws Throwable {
+        for (int i = 0; i != BULK_FILES; i++) {
+            Path path = BULK_DIR.resolve(Integer.toString(i % 2)).resolve(String.format("file-%04d", i));
+            Files.createDirectories(path.getParent());
+            Files.write(path, new byte[i]);
+        }
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentClientState clientState1 = new TorrentClientState("localhost", CLIENT1_DIR)
+        ) {
+            TorrentClient client1 = new TorrentClient(clientState1);
+            List<FileEntry> entries = client1.newDirectory(BULK_DIR);
+            assertEquals(BULK_FILES, entries.size());
+            assertEquals(new HashSet<>(entries), new HashSet<>(client1.requestList()));
+            assertEquals("file-0000", entries.get(0).getName());
+            assertEquals(0, entries.get(0).getSize());
+
+            // Larger batch is refused before it is read
+            try (TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                    new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+            )) {
+                DataOutputStream dos = connection.getOutput();
+                dos.writeByte(TorrentTrackerConnection.REQUEST_BULK_UPLOAD);
+                dos.writeInt(TorrentTrackerConnection.MAX_BULK_UPLOAD + 1);
+                dos.flush();
+                connection.readBulkUploadResponse();
+                fail("Batch over the limit should be refused.");
+            } catch (IOException ignored) {
+            }
+            assertEquals(BULK_FILES, client1.requestList().size());
+        }
+    }
+
+    @Test
+    public void testCluster() throws Throwable {
+        List<InetSocketAddress> cluster = IOUtils.parseAddresses(CLUSTER, 0);
+        try (
+                TorrentTracker tracker1 = new TorrentTracker(TRACKER_DIR, new TorrentTrackerConfig()
+                        .setPort(cluster.get(0).getPort())
+                        .setCluster(cluster, 0));
+                TorrentTracker tracker2 = new TorrentTracker(TRACKER2_DIR, new TorrentTrackerConfig()
+                        .setPort(cluster.get(1).getPort())
+                        .setCluster(cluster, 1));
+                TorrentClientState clientState1 = new TorrentClientState(CLUSTER, CLIENT1_DIR)
+        ) {
+            TorrentClient client1 = new TorrentClient(clientState1);
+            List<FileEntry> entries = new ArrayList<>();
+            for (int i = 0; i != CLUSTER_FILES; i++) {
+                entries.add(client1.newFile(EXAMPLE_PATH));
+            }
+            entries.sort(Comparator.comparingInt(FileEntry::getId));
+            assertEquals(entries.size(), entries.stream().mapToInt(FileEntry::getId).distinct().count());
+            assertEquals(entries, client1.requestList());
+            assertEquals(entries, client1.syncCatalog());
+
+            // Second shard only: requests about the first shard files are forwarded
+            try (TorrentClientState clientState2 = new TorrentClientState("localhost:8082", CLIENT2_DIR)) {
+                TorrentClient client2 = new TorrentClient(clientState2);
+                for (FileEntry entry : entries) {
+                    assertTrue(client2.get(entry.getId()));
+                }
+            }
+
+            // Forwarded requests are answered only by the owner, and are never forwarded again
+            FileEntry foreign = entries.stream()
+                    .filter(entry -> IdSpace.getShard(entry.getId(), cluster.size()) == 0)
+                    .findFirst()
+                    .get();
+            FileEntry own = entries.stream()
+                    .filter(entry -> IdSpace.getShard(entry.getId(), cluster.size()) == 1)
+                    .findFirst()
+                    .get();
+            try (TorrentTrackerConnection connection = new TorrentTrackerConnection(new Socket(
+                    cluster.get(1).getHostString(),
+                    cluster.get(1).getPort()
+            ))) {
+                connection.writeForwardedPrefix();
+                connection.writeEntryRequest(own.getId());
+                assertEquals(own, connection.readEntryResponse());
+                connection.writeForwardedPrefix();
+                connection.writeEntryRequest(foreign.getId());
+                try {
+                    connection.readEntryResponse();
+                    fail("Forwarded request for a foreign file should be rejected.");
+                } catch (IOException e) {
+                    // Connection is closed by the shard
+                }
+            }
+        }
+    }
+
+    @Test(timeout = TIME_LIMIT)
+    public void testReplica() throws Throwable {
+        try (
+                TorrentTracker primary = new TorrentTracker(TRACKER_DIR, new TorrentTrackerConfig()
+                        .setReplicationLog(REPLICATION_LOG));
+                TorrentTracker replica = new TorrentTracker(TRACKER2_DIR, new TorrentTrackerConfig()
+                        .setPort(REPLICA_PORT)
+                        .setPrimary(new InetSocketAddress("localhost", TorrentTrackerConnection.TRACKER_PORT))
+                        .setReplicationPeriod(REPLICATION_PERIOD));
+                TorrentClientState clientState1 = new TorrentClientState(REPLICATED, CLIENT1_DIR);
+                TorrentTrackerConnection primaryConnection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                );
+                TorrentTrackerConnection replicaConnection = new TorrentTrackerConnection(
+                        new Socket("localhost", REPLICA_PORT)
+                )
+        ) {
+            TorrentClient client1 = new TorrentClient(clientState1);
+            FileEntry entry = client1.newFile(EXAMPLE_PATH);
+            List<Integer> ids = Collections.singletonList(entry.getId());
+            ClientInfo seeder = new ClientInfo(new InetSocketAddress("", SEEDER_PORT), ids);
+            primaryConnection.writeUpdateRequest(seeder);
+            assertTrue(primaryConnection.readUpdateResponse());
+            replicaConnection.writeUpdateRequest(seeder);
+            assertFalse(replicaConnection.readUpdateResponse());
+
+            List<InetSocketAddress> sources;
+            do {
+                Thread.sleep(REPLICATION_PERIOD);
+                replicaConnection.writeSourcesRequest(ids);
+                sources = replicaConnection.readSourcesResponse();
+            } while (sources.isEmpty());
+            assertEquals(Collections.singletonList(new InetSocketAddress("127.0.0.1", SEEDER_PORT)), sources);
+            replicaConnection.writeListRequest();
+            assertEquals(Collections.singletonList(entry), replicaConnection.readListResponse());
+
+            // Uploads to the replica are passed to the primary
+            replicaConnection.writeUploadRequest(new FileEntry("file", 1));
+            assertEquals(entry.getId() + 1, replicaConnection.readUploadResponse());
+            primaryConnection.writeListRequest();
+            assertEquals(2, primaryConnection.readListResponse().size());
+        }
+    }
+
     @Test
     public void testListConsistency() throws Throwable {
         try (TorrentClientState clientState = new TorrentClientState("localhost", CLIENT1_DIR)) {
@@ -59,6 +880,53 @@ public class TorrentTest {
         }
     }
 
+    @Test
+    public void testJournalReplay() throws Throwable {
+        FileEntry first = new FileEntry("first", 1);
+        FileEntry second = new FileEntry("second", 1);
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(first);
+            first = first.setId(connection.readUploadResponse());
+            connection.writeUploadRequest(second);
+            second = second.setId(connection.readUploadResponse());
+            // Files of a running tracker are what a crash leaves
+            FileUtils.copyDirectory(TRACKER_DIR.toFile(), TRACKER2_DIR.toFile());
+        }
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER2_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeListRequest();
+            assertEquals(Arrays.asList(first, second), connection.readListResponse());
+        }
+
+        // Record of the second upload is torn
+        try (FileChannel journal = FileChannel.open(
+                TRACKER2_DIR.resolve("tracker-journal-0.dat"),
+                StandardOpenOption.WRITE
+        )) {
+            journal.truncate(journal.size() - 1);
+        }
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER2_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeListRequest();
+            assertEquals(Collections.singletonList(first), connection.readListResponse());
+            connection.writeUploadRequest(new FileEntry("third", 1));
+            assertEquals(second.getId(), connection.readUploadResponse());
+        }
+    }
+
     @Test(timeout = TIME_LIMIT)
     public void testDownload() throws Throwable {
         final DownloadWaiter waiter2 = new DownloadWaiter();
@@ -122,6 +990,451 @@ public class TorrentTest {
         ));
     }
 
+    @Test
+    public void testEncodedCaches() throws Throwable {
+        final InetSocketAddress seeder = new InetSocketAddress("127.0.0.1", SEEDER_PORT);
+        List<FileEntry> entries = new ArrayList<>();
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR, new TorrentTrackerConfig()
+                        .setPeerSelector(PeerSelector.ALL));
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            for (String name : Arrays.asList("first", "second")) {
+                connection.writeUploadRequest(new FileEntry(name, 1));
+                entries.add(new FileEntry(connection.readUploadResponse(), name, 1));
+            }
+            List<Integer> sourcesRequest = Collections.singletonList(entries.get(0).getId());
+            connection.writeListRequest();
+            assertResponse(connection, listed -> listed.writeListResponse(entries));
+            connection.writeSourcesRequest(sourcesRequest);
+            assertResponse(connection, sources -> sources.writeSourcesResponse(Collections.emptyList()));
+
+            // Caches follow an upload and announces
+            connection.writeUploadRequest(new FileEntry("third", 1));
+            entries.add(new FileEntry(connection.readUploadResponse(), "third", 1));
+            connection.writeListRequest();
+            assertResponse(connection, listed -> listed.writeListResponse(entries));
+            connection.writeUpdateRequest(new ClientInfo(new InetSocketAddress("", SEEDER_PORT), sourcesRequest));
+            assertTrue(connection.readUpdateResponse());
+            connection.writeSourcesRequest(sourcesRequest);
+            assertResponse(connection, sources -> sources.writeSourcesResponse(Collections.singletonList(seeder)));
+            connection.writeUpdateRequest(new ClientInfo(
+                    new InetSocketAddress("", SEEDER_PORT),
+                    Collections.singletonList(entries.get(1).getId())
+            ));
+            assertTrue(connection.readUpdateResponse());
+            connection.writeSourcesRequest(sourcesRequest);
+            assertResponse(connection, sources -> sources.writeSourcesResponse(Collections.emptyList()));
+        }
+    }
+
+    @Test(timeout = TIME_LIMIT)
+    public void testPeerConnectionPool() throws Throwable {
+        final InetSocketAddress peer = new InetSocketAddress("localhost", SEEDER_PORT);
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try (
+                ServerSocket server = new ServerSocket(SEEDER_PORT);
+                PeerConnectionPool pool = new PeerConnectionPool(PEER_IDLE_TIMEOUT, PEER_READ_TIMEOUT)
+        ) {
+            // Every request is sent before the first response, responses reach their callers in order
+            List<Future<PartsSet>> stats = new ArrayList<>();
+            for (int i = 0; i != PLAN_PARTS; i++) {
+                stats.add(callers.submit(statCall(pool, peer, i)));
+            }
+            TorrentP2PConnection first = new TorrentP2PConnection(server.accept());
+            List<Integer> fileIds = new ArrayList<>();
+            for (int i = 0; i != PLAN_PARTS; i++) {
+                assertEquals(TorrentP2PConnection.REQUEST_STAT, first.readRequest());
+                fileIds.add(first.readStatRequest());
+            }
+            for (int fileId : fileIds) {
+                writeStatResponse(first, fileId);
+            }
+            for (int i = 0; i != PLAN_PARTS; i++) {
+                assertTrue(stats.get(i).get().get(i));
+            }
+
+            // Reused connection closed by the peer: request is repeated over a new one
+            first.close();
+            Future<PartsSet> retried = callers.submit(statCall(pool, peer, 1));
+            TorrentP2PConnection second = new TorrentP2PConnection(server.accept());
+            assertEquals(TorrentP2PConnection.REQUEST_STAT, second.readRequest());
+            writeStatResponse(second, second.readStatRequest());
+            assertTrue(retried.get().get(1));
+
+            // Idle connection is replaced before the peer drops it
+            Thread.sleep(2 * PEER_IDLE_TIMEOUT);
+            final Future<PartsSet> replaced = callers.submit(statCall(pool, peer, 2));
+            TorrentP2PConnection third = new TorrentP2PConnection(server.accept());
+            try {
+                second.readRequest();
+                fail("Idle connection should be closed.");
+            } catch (IOException ignored) {
+            }
+            assertEquals(TorrentP2PConnection.REQUEST_STAT, third.readRequest());
+            writeStatResponse(third, third.readStatRequest());
+            assertTrue(replaced.get().get(2));
+
+            // Silent peer fails the request instead of holding it
+            try {
+                callers.submit(statCall(pool, peer, 0)).get();
+                fail("Silent peer should time out.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            third.close();
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(timeout = TIME_LIMIT)
+    public void testSeederSession() throws Throwable {
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentClientState clientState1 = new TorrentClientState("localhost", CLIENT1_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                );
+                PeerConnectionPool pool = new PeerConnectionPool()
+        ) {
+            TorrentClient client1 = new TorrentClient(clientState1);
+            FileEntry entry = client1.newFile(EXAMPLE_PATH);
+            TorrentRunningClient runningClient1 = new TorrentRunningClient(clientState1);
+            runningClient1.startRun(null);
+            List<InetSocketAddress> sources = Collections.emptyList();
+            while (sources.isEmpty()) {
+                Thread.sleep(MIN_ANNOUNCE_INTERVAL);
+                connection.writeSourcesRequest(Collections.singletonList(entry.getId()));
+                sources = connection.readSourcesResponse();
+            }
+            InetSocketAddress seeder = sources.get(0);
+
+            // Pipelined requests of several callers are served in turn over one connection
+            ExecutorService callers = Executors.newCachedThreadPool();
+            List<Future<PartsSet>> stats = new ArrayList<>();
+            List<Future<Path>> parts = new ArrayList<>();
+            for (int i = 0; i != PLAN_PARTS; i++) {
+                Path target = CLIENT2_DIR.resolve(Integer.toString(i));
+                stats.add(callers.submit(() -> pool.execute(
+                        seeder,
+                        peer -> peer.writeStatRequest(entry.getId()),
+                        peer -> peer.readStatResponse(entry.getPartsCount())
+                )));
+                parts.add(callers.submit(() -> pool.execute(
+                        seeder,
+                        peer -> peer.writeGetRequest(new GetRequest(entry.getId(), 0)),
+                        peer -> {
+                            Files.createDirectories(CLIENT2_DIR);
+                            try (RandomAccessFile file = new RandomAccessFile(target.toString(), "rw")) {
+                                peer.readGetResponse(file, 0, entry);
+                            }
+                            return target;
+                        }
+                )));
+            }
+            for (int i = 0; i != PLAN_PARTS; i++) {
+                assertEquals(entry.getPartsCount(), stats.get(i).get().getCount());
+                assertTrue(FileUtils.contentEquals(EXAMPLE_PATH.toFile(), parts.get(i).get().toFile()));
+            }
+            callers.shutdown();
+            runningClient1.shutdown();
+        }
+    }
+
+    @Test
+    public void testSourcesPartsRanking() throws Throwable {
+        try (
+                TorrentTracker tracker = new TorrentTracker(TRACKER_DIR);
+                TorrentTrackerConnection connection = new TorrentTrackerConnection(
+                        new Socket("localhost", TorrentTrackerConnection.TRACKER_PORT)
+                )
+        ) {
+            connection.writeUploadRequest(new FileEntry("file", (long) PLAN_PARTS * FileEntry.PART_SIZE));
+            final int id = connection.readUploadResponse();
+            // Full seed, seeders with half of the parts, with unknown parts and with one part only
+            int[] partsAvailable = {PLAN_PARTS, PLAN_PARTS / 2, -1, 1};
+            for (int i = 0; i != partsAvailable.length; i++) {
+                InetSocketAddress address = new InetSocketAddress("localhost", SEEDER_PORT + i);
+                if (partsAvailable[i] == -1) {
+                    connection.writeUpdateRequest(new ClientInfo(address, Collections.singletonList(id)));
+                } else {
+                    PartsSet parts = new PartsSet(PLAN_PARTS, false);
+                    for (int part = 0; part != partsAvailable[i]; part++) {
+                        parts.set(part, true);
+                    }
+                    connection.writeUpdatePartsRequest(new ClientInfo(
+                            address,
+                            Collections.singletonList(id),
+                            Collections.singletonList(parts.toBitmap())
+                    ));
+                }
+                assertTrue(connection.readUpdateResponse());
+            }
+
+            connection.writeSourcesPartsRequest(id);
+            List<Integer> ports = new ArrayList<>();
+            List<Integer> counts = new ArrayList<>();
+            for (Map.Entry<InetSocketAddress, PartsSet> source
+                    : connection.readSourcesPartsResponse(PLAN_PARTS).entrySet()) {
+                ports.add(source.getKey().getPort() - SEEDER_PORT);
+                counts.add(source.getValue() == null ? -1 : source.getValue().getCount());
+            }
+            assertEquals(
+                    "Full seeds, unknown parts, then by parts",
+                    Arrays.asList(0, 2, 1, partsAvailable.length - 1),
+                    ports
+            );
+            assertEquals(Arrays.asList(PLAN_PARTS, -1, PLAN_PARTS / 2, 1), counts);
+
+            // Bitmap of another length is taken for unknown parts
+            final InetSocketAddress wrongBitmap = new InetSocketAddress("localhost", SEEDER_PORT + ports.size());
+            connection.writeUpdatePartsRequest(new ClientInfo(
+                    wrongBitmap,
+                    Collections.singletonList(id),
+                    Collections.singletonList(new byte[PLAN_PARTS])
+            ));
+            assertTrue(connection.readUpdateResponse());
+            connection.writeSourcesPartsRequest(id);
+            Map<InetSocketAddress, PartsSet> sources = connection.readSourcesPartsResponse(PLAN_PARTS);
+            assertEquals(ports.size() + 1, sources.size());
+            assertNull(sources.get(wrongBitmap));
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(response);
+        dos.writeInt(1);
+        IOUtils.writeAddress(dos, new InetSocketAddress("localhost", SEEDER_PORT));
+        dos.writeInt(PLAN_PARTS);
+        dos.writeInt(Integer.MAX_VALUE);
+        try {
+            new TorrentTrackerConnection(new ByteArrayInputStream(response.toByteArray()), response, null)
+                    .readSourcesPartsResponse(PLAN_PARTS);
+            fail("Bitmap length should be checked before reading it.");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void testLongHashSet() throws Throwable {
+        LongHashSet set = new LongHashSet();
+        LongHashMap<InetSocketAddress> map = new LongHashMap<>();
+        Set<Long> expected = new HashSet<>();
+        // Packed seeder addresses, close to each other as many share the host
+        for (int i = 0; i != PEERS_COUNT; i++) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0." + (i % 2 + 1), SEEDER_PORT + i / 2);
+            long packed = IOUtils.packAddress(address);
+            assertTrue(set.add(packed));
+            assertFalse(set.add(packed));
+            assertNull(map.put(packed, address));
+            expected.add(packed);
+        }
+        // Removing every other one shifts probe chains back
+        for (int i = 0; i != PEERS_COUNT; i += 2) {
+            long packed = IOUtils.packAddress(new InetSocketAddress("127.0.0.1", SEEDER_PORT + i / 2));
+            assertTrue(set.remove(packed));
+            assertFalse(set.remove(packed));
+            assertEquals(packed, IOUtils.packAddress(map.remove(packed)));
+            assertNull(map.remove(packed));
+            expected.remove(packed);
+        }
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, Arrays.stream(set.toArray()).boxed().collect(Collectors.toSet()));
+        for (long packed : expected) {
+            assertTrue(set.contains(packed));
+            assertEquals(IOUtils.unpackAddress(packed), map.get(packed));
+        }
+        assertEquals(expected.size(), map.values().size());
+        try {
+            set.add(0);
+            fail("Zero cannot be stored.");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testTimingWheel() throws Throwable {
+        final long tick = MIN_ANNOUNCE_INTERVAL;
+        // PLAN_PARTS slots, so a deadline of two turns ahead shares a slot with an earlier one
+        final long farDeadline = tick * (2 * PLAN_PARTS + 1);
+        TimingWheel<String> wheel = new TimingWheel<>(tick, PLAN_PARTS, 0);
+        wheel.schedule("first", tick);
+        final TimingWheel.Node<String> renewed = wheel.schedule("renewed", tick);
+        wheel.schedule("far", farDeadline);
+        TimingWheel.Node<String> cancelled = wheel.schedule("cancelled", tick);
+        int scheduled = wheel.size();
+        wheel.cancel(cancelled);
+        assertEquals(scheduled - 1, wheel.size());
+
+        assertEquals(Collections.emptyList(), wheel.advance(tick - 1));
+        wheel.reschedule(renewed, 2 * tick);
+        assertEquals(Collections.singletonList("first"), wheel.advance(tick));
+        assertEquals(Collections.singletonList("renewed"), wheel.advance(2 * tick));
+        assertEquals("Slot is passed, but the deadline is a turn later", Collections.emptyList(),
+                wheel.advance(farDeadline - PLAN_PARTS * tick));
+        assertEquals(Collections.singletonList("far"), wheel.advance(farDeadline));
+        assertEquals(0, wheel.size());
+
+        // Jump over several turns at once
+        wheel.schedule("late", farDeadline + tick);
+        assertEquals(Collections.singletonList("late"), wheel.advance(farDeadline * PLAN_PARTS));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testDownloadPlan() throws Throwable {
+        final InetSocketAddress seeder1 = new InetSocketAddress("localhost", SEEDER_PORT);
+        final InetSocketAddress seeder2 = new InetSocketAddress("localhost", SEEDER_PORT + 1);
+        PartsSet firstHalf = new PartsSet(PLAN_PARTS, false);
+        firstHalf.set(0, true);
+        firstHalf.set(1, true);
+        DownloadPlan plan = new DownloadPlan(
+                new PartsSet(PLAN_PARTS, true),
+                PLAN_PARTS_PER_FILE,
+                PLAN_PARTS_PER_PEER,
+                PiecePicker.SEQUENTIAL
+        );
+        plan.addPeer(seeder1, firstHalf);
+        plan.addPeer(seeder2, new PartsSet(PLAN_PARTS, true));
+
+        List<DownloadPlan.Assignment> assignments = new ArrayList<>();
+        for (DownloadPlan.Assignment assignment = plan.next(); assignment != null; assignment = plan.next()) {
+            assignments.add(assignment);
+        }
+        assertEquals("Should stop at the file limit", PLAN_PARTS_PER_FILE, assignments.size());
+        assertEquals(seeder1, assignments.get(0).getPeer());
+        assertEquals(seeder2, assignments.get(1).getPeer());
+        assertEquals(seeder2, assignments.get(2).getPeer());
+        assertEquals(2, assignments.get(2).getPartId());
+
+        plan.fail(assignments.get(0));
+        DownloadPlan.Assignment retry = plan.next();
+        assertNull("Failed seeder is dropped, other one is at its limit", retry);
+        plan.complete(assignments.get(1));
+        retry = plan.next();
+        assertEquals(seeder2, retry.getPeer());
+        assertEquals(0, retry.getPartId());
+        plan.complete(assignments.get(2));
+        plan.complete(retry);
+        assertEquals(PLAN_PARTS - 1, plan.next().getPartId());
+        assertFalse(plan.isComplete());
+    }
+
+    @Test
+    public void testRarestFirst() throws Throwable {
+        PartsSet firstHalf = new PartsSet(PLAN_PARTS, false);
+        firstHalf.set(0, true);
+        firstHalf.set(1, true);
+        DownloadPlan plan = new DownloadPlan(
+                new PartsSet(PLAN_PARTS, true),
+                PLAN_PARTS,
+                PLAN_PARTS,
+                PiecePicker.RAREST_FIRST
+        );
+        plan.addPeer(new InetSocketAddress("localhost", SEEDER_PORT), firstHalf);
+        plan.addPeer(new InetSocketAddress("localhost", SEEDER_PORT + 1), new PartsSet(PLAN_PARTS, true));
+
+        Set<Integer> rare = new HashSet<>();
+        rare.add(plan.next().getPartId());
+        rare.add(plan.next().getPartId());
+        assertEquals(
+                "Parts held by one seeder only should go first",
+                new HashSet<>(Arrays.asList(PLAN_PARTS - 2, PLAN_PARTS - 1)),
+                rare
+        );
+    }
+
+    @Test
+    public void testClientStateFormat() throws Throwable {
+        final Path statePath = CLIENT1_DIR.resolve("client-state.dat");
+        FileEntry entry = new FileEntry(1, "file", SECOND);
+        try (TorrentClientState state = new TorrentClientState("localhost", CLIENT1_DIR)) {
+            state.files.put(entry.getId(), new TorrentClientState.FileState(
+                    entry,
+                    EXAMPLE_PATH,
+                    CLIENT1_DIR,
+                    PiecePicker.Strategy.RANDOM_FIRST
+            ));
+        }
+        try (TorrentClientState state = new TorrentClientState("localhost", CLIENT1_DIR)) {
+            assertEquals(PiecePicker.Strategy.RANDOM_FIRST, state.files.get(entry.getId()).strategy);
+        }
+
+        // Strategy code is the last byte of the only file
+        byte[] saved = Files.readAllBytes(statePath);
+        saved[saved.length - 1] = 0;
+        Files.write(statePath, saved);
+        try {
+            new TorrentClientState("localhost", CLIENT1_DIR).close();
+            fail("Unknown strategy should be rejected.");
+        } catch (IOException ignored) {
+        }
+
+        byte[] unknownFormat = saved.clone();
+        ByteBuffer.wrap(unknownFormat).putInt(Integer.BYTES, Integer.MAX_VALUE);
+        Files.write(statePath, unknownFormat);
+        try {
+            new TorrentClientState("localhost", CLIENT1_DIR).close();
+            fail("Unknown format should be rejected.");
+        } catch (IOException ignored) {
+        }
+
+        // State saved before the header, files had no strategy then
+        Files.write(statePath, Arrays.copyOfRange(saved, 2 * Integer.BYTES, saved.length - 1));
+        for (int i = 0; i != 2; i++) {
+            try (TorrentClientState state = new TorrentClientState("localhost", CLIENT1_DIR)) {
+                assertEquals(entry, state.files.get(entry.getId()).entry);
+                assertEquals(PiecePicker.Strategy.RAREST_FIRST, state.files.get(entry.getId()).strategy);
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptedLeases() throws Throwable {
+        final long now = System.currentTimeMillis();
+        final Path leasesPath = TRACKER_DIR.resolve("tracker-leases.dat");
+        SeederRegistry seeders = new SeederRegistry(SECOND, 0, now);
+        seeders.addFile(PLAN_PARTS);
+        seeders.addFile(PLAN_PARTS);
+        byte[] bitmap = new PartsSet(PLAN_PARTS, true).toBitmap();
+        seeders.announce(1, Collections.singletonMap(0, bitmap), Collections.emptyList(), now + SECOND);
+        seeders.announce(2, Collections.singletonMap(1, bitmap), Collections.emptyList(), now + SECOND);
+        Files.createDirectories(TRACKER_DIR);
+        LeaseStore store = new LeaseStore(TRACKER_DIR, IdSpace.SINGLE);
+        store.save(seeders);
+        byte[] saved = Files.readAllBytes(leasesPath);
+
+        // <shard> <shards count> <version> <count>, then <address> <deadline> <version> <ids count> <id> <length>
+        int header = 2 * Integer.BYTES;
+        int leaseHeader = 2 * Long.BYTES + 2 * Integer.BYTES;
+        int secondId = 2 * header + leaseHeader + 2 * Integer.BYTES + bitmap.length + leaseHeader;
+        byte[] damaged = saved.clone();
+        ByteBuffer.wrap(damaged).putInt(secondId + Integer.BYTES, Integer.MAX_VALUE);
+        Files.write(leasesPath, damaged);
+        SeederRegistry loaded = new SeederRegistry(SECOND, 0, now);
+        loaded.addFile(PLAN_PARTS);
+        loaded.addFile(PLAN_PARTS);
+        store.load(loaded, now);
+        assertEquals("Lease before the damage is kept", 1, loaded.getLeasesCount());
+
+        damaged = saved.clone();
+        ByteBuffer.wrap(damaged).putInt(secondId, -1);
+        Files.write(leasesPath, damaged);
+        loaded = new SeederRegistry(SECOND, 0, now);
+        loaded.addFile(PLAN_PARTS);
+        loaded.addFile(PLAN_PARTS);
+        store.load(loaded, now);
+        assertEquals(1, loaded.getLeasesCount());
+
+        loaded = new SeederRegistry(SECOND, 0, now);
+        loaded.addFile(PLAN_PARTS);
+        store.load(loaded, now);
+        assertTrue("Leases of unknown files are not loaded", loaded.getLeasesCount() <= 1);
+    }
+
     @Before
     @After
     public void clear() throws IOException {
@@ -143,6 +1456,23 @@ public class TorrentTest {
         }
     }
 
+    private static void waitForList(TorrentTrackerConnection connection, List<FileEntry> expected)
+            throws IOException, InterruptedException {
+        while (true) {
+            connection.writeListRequest();
+            if (connection.readListResponse().equals(expected)) {
+                return;
+            }
+            Thread.sleep(ARCHIVE_AFTER);
+        }
+    }
+
+    private static List<Integer> getIds(SearchResult result) {
+        List<Integer> ids = new ArrayList<>();
+        result.getEntries().forEach(entry -> ids.add(entry.getId()));
+        return ids;
+    }
+
     private static class Deleter extends SimpleFileVisitor<Path> {
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
@@ -157,6 +1487,41 @@ public class TorrentTest {
         }
     }
 
+    private interface ResponseWriter {
+        void write(TorrentTrackerConnection connection) throws IOException;
+    }
+
+    /**
+     * Checks that the response read next is exactly what the writer, as the tracker did before the caches, sends.
+     */
+    private static void assertResponse(
+            TorrentTrackerConnection connection,
+            ResponseWriter writer
+    ) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writer.write(new TorrentTrackerConnection(new ByteArrayInputStream(new byte[0]), expected, null));
+        byte[] actual = new byte[expected.size()];
+        connection.getInput().readFully(actual);
+        assertArrayEquals(expected.toByteArray(), actual);
+    }
+
+    private static Callable<PartsSet> statCall(PeerConnectionPool pool, InetSocketAddress peer, int fileId) {
+        return () -> pool.execute(
+                peer,
+                connection -> connection.writeStatRequest(fileId),
+                connection -> connection.readStatResponse(PLAN_PARTS)
+        );
+    }
+
+    /**
+     * Answers STAT of the file with a set of the part with the same number.
+     */
+    private static void writeStatResponse(TorrentP2PConnection connection, int fileId) throws IOException {
+        PartsSet parts = new PartsSet(PLAN_PARTS, false);
+        parts.set(fileId, true);
+        connection.writeStatResponse(parts);
+    }
+
     private static final class DownloadWaiter implements TorrentRunningClient.RunCallbacks {
         private boolean ready = false;
 